@@ -0,0 +1,29 @@
+package io.github.cubedtear.jcubit.bds.benchmarks;
+
+import io.github.cubedtear.jcubit.bds.BDS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of writing and loading BDS documents.
+ *
+ * @author Aritz Lopez
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BDSBenchmark {
+
+    @Benchmark
+    public byte[] write(Payloads payloads) {
+        return payloads.graphBDS.write();
+    }
+
+    @Benchmark
+    public BDS load(Payloads payloads) {
+        return BDS.load(payloads.graphBDSData);
+    }
+}
@@ -0,0 +1,71 @@
+package io.github.cubedtear.jcubit.bds.benchmarks;
+
+import io.github.cubedtear.jcubit.bds.BDS;
+import io.github.cubedtear.jcubit.bds.BDSUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of serializing object graphs with {@link BDSUtil}, compared with java.io serialization.
+ *
+ * @author Aritz Lopez
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BDSUtilBenchmark {
+
+    @Benchmark
+    public BDS serialize(Payloads payloads) throws Exception {
+        return BDSUtil.serialize(payloads.graph);
+    }
+
+    @Benchmark
+    public BDS serializeCompact(Payloads payloads) throws Exception {
+        return BDSUtil.serializeCompact(payloads.graph);
+    }
+
+    @Benchmark
+    public Object deserialize(Payloads payloads) throws Exception {
+        return BDSUtil.deserialize(payloads.graphBDS);
+    }
+
+    /**
+     * Serializes and writes, to compare with {@link BDSUtilBenchmark#javaSerialize(Payloads)}.
+     */
+    @Benchmark
+    public byte[] serializeAndWrite(Payloads payloads) throws Exception {
+        return BDSUtil.serialize(payloads.graph).write();
+    }
+
+    /**
+     * Loads and deserializes, to compare with {@link BDSUtilBenchmark#javaDeserialize(Payloads)}.
+     */
+    @Benchmark
+    public Object loadAndDeserialize(Payloads payloads) throws Exception {
+        return BDSUtil.deserialize(BDS.load(payloads.graphBDSData));
+    }
+
+    @Benchmark
+    public byte[] javaSerialize(Payloads payloads) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+            oos.writeObject(payloads.graph);
+        }
+        return baos.toByteArray();
+    }
+
+    @Benchmark
+    public Object javaDeserialize(Payloads payloads) throws Exception {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(payloads.javaData))) {
+            return ois.readObject();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package io.github.cubedtear.jcubit.bds.benchmarks;
+
+import io.github.cubedtear.jcubit.bds.BAIS;
+import io.github.cubedtear.jcubit.bds.BDSv2;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of writing and parsing BDSv2 documents.
+ *
+ * @author Aritz Lopez
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BDSv2Benchmark {
+
+    @Benchmark
+    public byte[] write(Payloads payloads) {
+        return payloads.bdsv2.write();
+    }
+
+    @Benchmark
+    public byte[] writeDeduplicated(Payloads payloads) {
+        return payloads.bdsv2.writeDeduplicated();
+    }
+
+    @Benchmark
+    public BDSv2 parse(Payloads payloads) throws Exception {
+        return BDSv2.parse(payloads.bdsv2Data);
+    }
+
+    @Benchmark
+    public BDSv2 parseStream(Payloads payloads) throws Exception {
+        return BDSv2.parseStream(new BAIS(payloads.bdsv2Data));
+    }
+}
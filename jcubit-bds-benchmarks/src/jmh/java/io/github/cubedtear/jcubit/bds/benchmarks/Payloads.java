@@ -0,0 +1,266 @@
+package io.github.cubedtear.jcubit.bds.benchmarks;
+
+import io.github.cubedtear.jcubit.bds.BDS;
+import io.github.cubedtear.jcubit.bds.BDSUtil;
+import io.github.cubedtear.jcubit.bds.BDSv2;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The data every benchmark works on, in each of the payload shapes, prepared once per trial.
+ *
+ * @author Aritz Lopez
+ */
+@State(Scope.Benchmark)
+public class Payloads {
+
+    /**
+     * The payload shapes.
+     */
+    public enum Shape {
+        /**
+         * Many objects, each with a few primitive and String fields.
+         */
+        SMALL_FIELDS,
+        /**
+         * A few big primitive arrays.
+         */
+        LARGE_ARRAYS,
+        /**
+         * A long chain of nested objects.
+         */
+        DEEP_NESTING,
+        /**
+         * A graph of objects referencing each other, with cycles.
+         */
+        SHARED_GRAPH
+    }
+
+    private static final int OBJECTS = 1000;
+    private static final int ARRAY_LENGTH = 64 * 1024;
+    private static final int DEPTH = 200; // Serialization is recursive, keep it far from a StackOverflowError
+    private static final int EDGES = 4;
+
+    @Param
+    public Shape shape;
+
+    /**
+     * The object graph, for {@link BDSUtil} and java.io serialization.
+     */
+    public Object graph;
+    /**
+     * {@link Payloads#graph}, serialized with {@link BDSUtil#serialize(Object)}.
+     */
+    public BDS graphBDS;
+    /**
+     * {@link Payloads#graphBDS}, written with {@link BDS#write()}.
+     */
+    public byte[] graphBDSData;
+    /**
+     * {@link Payloads#graph}, written with an ObjectOutputStream.
+     */
+    public byte[] javaData;
+    /**
+     * A BDSv2 document of the same shape.
+     */
+    public BDSv2 bdsv2;
+    /**
+     * {@link Payloads#bdsv2}, written with {@link BDSv2#write()}.
+     */
+    public byte[] bdsv2Data;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Random random = new Random(42);
+        switch (shape) {
+            case SMALL_FIELDS:
+                graph = records(random);
+                bdsv2 = recordsV2(random);
+                break;
+            case LARGE_ARRAYS:
+                graph = arrays(random);
+                bdsv2 = arraysV2(random);
+                break;
+            case DEEP_NESTING:
+                graph = chain();
+                bdsv2 = chainV2();
+                break;
+            case SHARED_GRAPH:
+                graph = sharedGraph(random);
+                bdsv2 = sharedGraphV2(random);
+                break;
+            default:
+                throw new AssertionError("Unknown shape: " + shape);
+        }
+        graphBDS = BDSUtil.serialize(graph);
+        graphBDSData = graphBDS.write();
+        bdsv2Data = bdsv2.write();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+            oos.writeObject(graph);
+        }
+        javaData = baos.toByteArray();
+    }
+
+    // region ... Object graphs ...
+
+    private static ArrayList<Record> records(Random random) {
+        ArrayList<Record> records = new ArrayList<>();
+        for (int i = 0; i < OBJECTS; i++) records.add(new Record(random, i));
+        return records;
+    }
+
+    private static Arrays arrays(Random random) {
+        Arrays arrays = new Arrays();
+        arrays.ints = new int[ARRAY_LENGTH];
+        arrays.longs = new long[ARRAY_LENGTH];
+        arrays.doubles = new double[ARRAY_LENGTH];
+        for (int i = 0; i < ARRAY_LENGTH; i++) {
+            arrays.ints[i] = random.nextInt();
+            arrays.longs[i] = random.nextLong();
+            arrays.doubles[i] = random.nextDouble();
+        }
+        return arrays;
+    }
+
+    private static Node chain() {
+        Node root = new Node();
+        Node current = root;
+        for (int i = 1; i < DEPTH; i++) {
+            Node next = new Node();
+            next.id = i;
+            current.edges.add(next);
+            current = next;
+        }
+        return root;
+    }
+
+    private static ArrayList<Node> sharedGraph(Random random) {
+        ArrayList<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < OBJECTS; i++) {
+            Node node = new Node();
+            node.id = i;
+            nodes.add(node);
+        }
+        for (Node node : nodes) {
+            for (int i = 0; i < EDGES; i++) node.edges.add(nodes.get(random.nextInt(nodes.size())));
+        }
+        return nodes;
+    }
+
+    // endregion
+
+    // region ... BDSv2 documents ...
+
+    private static BDSv2 recordsV2(Random random) {
+        BDSv2[] records = new BDSv2[OBJECTS];
+        for (int i = 0; i < OBJECTS; i++) {
+            Record r = new Record(random, i);
+            records[i] = new BDSv2();
+            records[i].addInt("id", r.id);
+            records[i].addLong("timestamp", r.timestamp);
+            records[i].addDouble("value", r.value);
+            records[i].addByte("flag", (byte) (r.flag ? 1 : 0));
+            records[i].addString("name", r.name);
+            records[i].addString("category", r.category);
+        }
+        BDSv2 bds = new BDSv2();
+        bds.addBDSs("records", records);
+        return bds;
+    }
+
+    private static BDSv2 arraysV2(Random random) {
+        Arrays arrays = arrays(random);
+        BDSv2 bds = new BDSv2();
+        bds.addInts("ints", arrays.ints);
+        bds.addLongs("longs", arrays.longs);
+        bds.addDoubles("doubles", arrays.doubles);
+        return bds;
+    }
+
+    private static BDSv2 chainV2() {
+        BDSv2 root = new BDSv2();
+        BDSv2 current = root;
+        for (int i = 1; i < DEPTH; i++) {
+            BDSv2 next = new BDSv2();
+            next.addInt("id", i);
+            current.addBDS("next", next);
+            current = next;
+        }
+        return root;
+    }
+
+    /**
+     * BDSv2 has no references, so shared objects are written as a copy of the same BDSv2 each time.
+     */
+    private static BDSv2 sharedGraphV2(Random random) {
+        BDSv2[] shared = new BDSv2[OBJECTS / 10];
+        for (int i = 0; i < shared.length; i++) {
+            shared[i] = new BDSv2();
+            shared[i].addInt("id", i);
+            shared[i].addString("name", "Node" + i);
+        }
+        BDSv2[] nodes = new BDSv2[OBJECTS];
+        for (int i = 0; i < OBJECTS; i++) {
+            BDSv2[] edges = new BDSv2[EDGES];
+            for (int j = 0; j < EDGES; j++) edges[j] = shared[random.nextInt(shared.length)];
+            nodes[i] = new BDSv2();
+            nodes[i].addInt("id", i);
+            nodes[i].addBDSs("edges", edges);
+        }
+        BDSv2 bds = new BDSv2();
+        bds.addBDSs("nodes", nodes);
+        return bds;
+    }
+
+    // endregion
+
+    public static class Record implements Serializable {
+        public int id;
+        public long timestamp;
+        public double value;
+        public boolean flag;
+        public String name;
+        public String category;
+
+        public Record() {
+        }
+
+        Record(Random random, int id) {
+            this.id = id;
+            this.timestamp = random.nextLong();
+            this.value = random.nextDouble();
+            this.flag = random.nextBoolean();
+            this.name = "Record" + id;
+            this.category = "Category" + random.nextInt(10);
+        }
+    }
+
+    public static class Arrays implements Serializable {
+        public int[] ints;
+        public long[] longs;
+        public double[] doubles;
+
+        public Arrays() {
+        }
+    }
+
+    public static class Node implements Serializable {
+        public int id;
+        public List<Node> edges = new ArrayList<>();
+
+        public Node() {
+        }
+    }
+}
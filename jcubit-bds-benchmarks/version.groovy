@@ -0,0 +1,2 @@
+minor=0
+build=0
\ No newline at end of file
@@ -37,12 +37,14 @@ public class BAIS extends InputStream {
 
     @Override
     public int read() throws IOException {
+        if (index >= length) return -1;
         return data[index++] & 0xFF;
     }
 
     @Override
     public int read(@NotNull byte[] b, int off, int len) throws IOException {
         if (len == 0) return 0;
+        if (index >= length) return -1;
         int read = Math.min(len, this.getLeft());
         System.arraycopy(this.data, index, b, off, read);
         this.index += read;
@@ -61,8 +63,14 @@ public class BAIS extends InputStream {
         return index;
     }
 
+    @Override
+    public int available() {
+        return getLeft();
+    }
+
     @Override
     public long skip(long n) throws IOException {
+        if (n <= 0) return 0;
         long toSkip = Math.min(n, getLeft());
         this.index += toSkip;
         return toSkip;
@@ -12,7 +12,7 @@ public class BAOS extends OutputStream {
 
     private final byte[] data;
     private final int length;
-    private int index = 0;
+    private int index;
 
     public BAOS(byte[] data) {
         this(data, 0, data.length);
@@ -29,19 +29,30 @@ public class BAOS extends OutputStream {
             throw new IllegalArgumentException("Data cannot be null, unless length is 0");
         else if (data != null && offset + length > data.length)
             throw new IllegalArgumentException("Offset + length (" + (offset + length) + ") > data.length (" + data.length + ")");
+        this.index = offset;
         this.data = data;
-        this.length = length;
+        this.length = length + offset;
     }
 
     @Override
     public void write(int b) throws IOException {
+        if (index >= length) throw new IOException("BAOS is full (" + length + " bytes)");
         data[index++] = (byte) b;
     }
 
     @Override
     public void write(@NotNull byte[] b, int off, int len) throws IOException {
         if (len == 0) return;
+        if (len > getLeft()) throw new IOException("Cannot write " + len + " bytes, only " + getLeft() + " left");
         System.arraycopy(b, off, this.data, index, len);
         this.index += len;
     }
+
+    public int getLeft() {
+        return length - index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
 }
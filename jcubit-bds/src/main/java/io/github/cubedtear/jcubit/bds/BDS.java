@@ -28,8 +28,8 @@ import java.util.Set;
 @SuppressWarnings("unused")
 public class BDS {
 
-    private final static byte[] SIGNATURE = ".BDS\r\n".getBytes(StandardCharsets.UTF_8);
-    private final static byte[] NEW_LINE = "\r\n".getBytes(StandardCharsets.UTF_8);
+    final static byte[] SIGNATURE = ".BDS\r\n".getBytes(StandardCharsets.UTF_8);
+    final static byte[] NEW_LINE = "\r\n".getBytes(StandardCharsets.UTF_8);
 
     private String name;
     private transient Set<String> takenNames = Sets.newHashSet();
@@ -1272,7 +1272,7 @@ public class BDS {
                 bdss.hashCode()) + bdsArrays.hashCode();
     }
 
-    private enum BDSType {
+    enum BDSType {
         BYTE((byte) 1),
         CHAR((byte) 11),
         SHORT((byte) 2),
@@ -1296,13 +1296,13 @@ public class BDS {
             TYPE_MAP = ImmutableMap.copyOf(types);
         }
 
-        private final byte signature;
+        final byte signature;
 
         BDSType(byte signature) {
             this.signature = signature;
         }
 
-        private static BDSType fromSignature(byte signature) {
+        static BDSType fromSignature(byte signature) {
             return TYPE_MAP.containsKey(signature) ? TYPE_MAP.get(signature) : ERROR;
         }
     }
@@ -0,0 +1,271 @@
+package io.github.cubedtear.jcubit.bds;
+
+import com.google.common.collect.Lists;
+import io.github.cubedtear.jcubit.bds.BDS.BDSType;
+import io.github.cubedtear.jcubit.bds.BDSv2.BDSv2Type;
+import io.github.cubedtear.jcubit.util.API;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Converts data written in the BDS format into the BDSv2 format.
+ * <p>
+ * The conversion is done in a single pass over the input, copying each value as it is read, without building
+ * a {@link BDS} or a {@link BDSv2}. Names are kept, except the ones of the root BDS and of the elements of
+ * BDS arrays, as BDSv2 has no place for them.
+ *
+ * @author Aritz Lopez
+ */
+public class BDSConverter {
+
+    /**
+     * Extension given to the converted files by {@link BDSConverter#v1ToV2(Path, Path, Executor)}.
+     */
+    public static final String V2_EXTENSION = ".BDSv2";
+
+    private static final String V1_EXTENSION = ".BDS";
+
+    private BDSConverter() {
+    }
+
+    /**
+     * Converts a BDS into a BDSv2.
+     * <p>
+     * Only the bytes of the BDS are read from {@code in}, so it should be buffered for performance.
+     * As the size of every BDSv2 is written before its contents, the BDSv2 is kept in memory (as bytes, in a pooled
+     * buffer) until it is complete, and then written to {@code out}.
+     *
+     * @param in  The stream to read the BDS from.
+     * @param out The stream to write the BDSv2 to.
+     * @return the number of bytes written.
+     * @throws IOException            If any of the streams throws an exception, or the input ends before the BDS.
+     * @throws SerializationException If the input is not a correct BDS.
+     */
+    @API
+    public static long v1ToV2(InputStream in, OutputStream out) throws IOException, SerializationException {
+        DataInputStream din = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+        byte[] scratch = new byte[8192];
+        din.readFully(scratch, 0, BDS.SIGNATURE.length);
+        for (int i = 0; i < BDS.SIGNATURE.length; i++) {
+            if (scratch[i] != BDS.SIGNATURE[i]) throw new SerializationException("BDS signature not present, or incorrect!");
+        }
+        if (din.readByte() != BDSType.BDS.signature) throw new SerializationException("BDS does not start with a BDS section!");
+        skip(din, din.readInt()); // Root name
+
+        GrowableOutput output = new GrowableOutput(BufferPool.SHARED);
+        try {
+            output.write(BDSv2.SIGNATURE, 0, BDSv2.SIGNATURE.length);
+            convertBDS(din, output, scratch);
+            din.readFully(scratch, 0, BDS.NEW_LINE.length); // Final new line
+            output.writeTo(out);
+            return output.size();
+        } finally {
+            output.release();
+        }
+    }
+
+    /**
+     * Converts every BDS file (with the {@code .BDS} extension) in the {@code source} directory and its
+     * subdirectories, concurrently, using the given Executor. Each file is written to the same relative path in
+     * {@code target}, with the {@link BDSConverter#V2_EXTENSION} extension instead.
+     *
+     * @param source   The directory containing the BDS files.
+     * @param target   The directory to write the BDSv2 files to. It is created if needed.
+     * @param executor The executor in which each file is converted.
+     * @return the number of files converted.
+     * @throws IOException            If a file cannot be read or written, or the calling thread is interrupted.
+     * @throws SerializationException If a file is not a correct BDS.
+     */
+    @API
+    public static int v1ToV2(Path source, final Path target, Executor executor) throws IOException, SerializationException {
+        final List<Path> files = Lists.newArrayList();
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && file.getFileName().toString().toUpperCase().endsWith(V1_EXTENSION)) files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        List<FutureTask<Long>> tasks = Lists.newArrayListWithCapacity(files.size());
+        for (final Path file : files) {
+            String name = file.getFileName().toString();
+            final Path destination = target.resolve(source.relativize(file)).resolveSibling(
+                    name.substring(0, name.length() - V1_EXTENSION.length()) + V2_EXTENSION);
+            FutureTask<Long> task = new FutureTask<>(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException, SerializationException {
+                    return convertFile(file, destination);
+                }
+            });
+            tasks.add(task);
+            executor.execute(task);
+        }
+        try {
+            for (FutureTask<Long> task : tasks) task.get();
+        } catch (InterruptedException e) {
+            for (FutureTask<Long> task : tasks) task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while converting", e);
+        } catch (ExecutionException e) {
+            for (FutureTask<Long> task : tasks) task.cancel(true);
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof SerializationException) throw (SerializationException) e.getCause();
+            throw new SerializationException(e.getCause());
+        }
+        return tasks.size();
+    }
+
+    private static long convertFile(Path source, Path destination) throws IOException, SerializationException {
+        Files.createDirectories(destination.getParent());
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(source));
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(destination))) {
+            return v1ToV2(in, out);
+        } catch (SerializationException e) {
+            throw new SerializationException("Error converting " + source + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Converts the contents of a BDS section (after its name), up to and including its END signature,
+     * into the contents of a BDSv2 (its size, and its elements).
+     */
+    private static void convertBDS(DataInputStream in, GrowableOutput out, byte[] scratch) throws IOException, SerializationException {
+        int start = out.reserveLength();
+        while (true) {
+            byte signature = in.readByte();
+            BDSType type = BDSType.fromSignature(signature);
+            if (type == BDSType.END) break;
+            if (type == BDSType.LIST) {
+                BDSType elementType = BDSType.fromSignature(in.readByte());
+                out.write(toV2(elementType).getSignature(true));
+                copyString(in, out, scratch);
+                int length = in.readInt();
+                if (length < 0) throw new SerializationException("Invalid array length: " + length);
+                BDSv2.writeInt(out, length);
+                switch (elementType) {
+                    case STRING:
+                        for (int i = 0; i < length; i++) copyString(in, out, scratch);
+                        break;
+                    case BDS:
+                        for (int i = 0; i < length; i++) {
+                            if (in.readByte() != BDSType.BDS.signature)
+                                throw new SerializationException("BDS array element is not a BDS section!");
+                            skip(in, in.readInt()); // BDSv2 array elements have no name
+                            convertBDS(in, out, scratch);
+                        }
+                        break;
+                    default:
+                        copy(in, out, (long) length * size(elementType), scratch);
+                }
+            } else {
+                out.write(toV2(type).getSignature(false));
+                copyString(in, out, scratch);
+                switch (type) {
+                    case STRING:
+                        copyString(in, out, scratch);
+                        break;
+                    case BDS:
+                        convertBDS(in, out, scratch);
+                        break;
+                    default:
+                        copy(in, out, size(type), scratch);
+                }
+            }
+        }
+        out.patchLength(start);
+    }
+
+    private static BDSv2Type toV2(BDSType type) throws SerializationException {
+        switch (type) {
+            case BYTE:
+                return BDSv2Type.BYTE;
+            case CHAR:
+                return BDSv2Type.CHAR;
+            case SHORT:
+                return BDSv2Type.SHORT;
+            case INT:
+                return BDSv2Type.INT;
+            case LONG:
+                return BDSv2Type.LONG;
+            case FLOAT:
+                return BDSv2Type.FLOAT;
+            case DOUBLE:
+                return BDSv2Type.DOUBLE;
+            case STRING:
+                return BDSv2Type.STRING;
+            case BDS:
+                return BDSv2Type.BDS;
+            case LIST:
+                throw new SerializationException("Nested lists are not allowed!");
+            default:
+                throw new SerializationException("Unknown data type found");
+        }
+    }
+
+    /**
+     * Returns the size in bytes of a value of the given primitive type. Both formats store them in big endian order.
+     */
+    private static int size(BDSType type) {
+        switch (type) {
+            case BYTE:
+                return 1;
+            case CHAR:
+            case SHORT:
+                return 2;
+            case INT:
+            case FLOAT:
+                return 4;
+            case LONG:
+            case DOUBLE:
+                return 8;
+            default:
+                throw new AssertionError("Not a primitive type: " + type);
+        }
+    }
+
+    /**
+     * Copies a String (its length and UTF-8 bytes), which has the same encoding in both formats.
+     */
+    private static void copyString(DataInputStream in, GrowableOutput out, byte[] scratch) throws IOException, SerializationException {
+        int length = in.readInt();
+        if (length < 0) throw new SerializationException("Invalid string length: " + length);
+        BDSv2.writeInt(out, length);
+        copy(in, out, length, scratch);
+    }
+
+    private static void copy(DataInputStream in, GrowableOutput out, long length, byte[] scratch) throws IOException {
+        while (length > 0) {
+            int n = (int) Math.min(length, scratch.length);
+            in.readFully(scratch, 0, n);
+            out.write(scratch, 0, n);
+            length -= n;
+        }
+    }
+
+    private static void skip(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                in.readByte(); // Throws EOFException at the end of the stream
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
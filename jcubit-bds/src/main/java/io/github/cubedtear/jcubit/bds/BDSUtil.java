@@ -2,10 +2,15 @@ package io.github.cubedtear.jcubit.bds;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import io.github.cubedtear.jcubit.math.Rectangle;
+import io.github.cubedtear.jcubit.math.Vec2i;
 import io.github.cubedtear.jcubit.util.API;
+import io.github.cubedtear.jcubit.util.Consumer;
 import io.github.cubedtear.jcubit.util.Nullable;
 import io.github.cubedtear.jcubit.util.ReflectionUtil;
 
@@ -13,11 +18,21 @@ import java.io.File;
 import java.io.PrintStream;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Collection of utility methods using BDS.
+ * All of them can be called concurrently: the state of each (de)serialization is only kept by that call.
  *
  * @author Aritz Lopez
  * @see BDS
@@ -34,11 +49,45 @@ public class BDSUtil {
     private static final String NULL_TAG = "0__null__";
     private static final String PRIMITIVE_ARRAY_VALUE_TAG = "0__primVal";
     private static final String DATE_VALUE_TAG = "0__date__";
+    private static final String PACKED_TYPE_TAG = "0__packedType";
+    private static final String ENUM_TYPE_TAG = "0__enumType";
+    private static final String MAP_KEYS_TAG = "0__keys";
+    private static final String MAP_VALUES_TAG = "0__values";
+    private static final String MAP_KEY_TYPE_TAG = "0__keyType";
+    private static final String MAP_COMPARATOR_TAG = "0__comparator";
+    private static final String TYPE_TABLE_TAG = "0__types";
+    private static final String[] PACKED_COLUMN_TAGS = {"0__x", "0__y", "0__width", "0__height"};
 
-    private static final Map<String, Serializer> serializers = Maps.newHashMap();
+    private static final Map<Class<?>, String> PACKED_TYPES = ImmutableMap.<Class<?>, String>builder()
+            .put(Boolean.class, "Boolean")
+            .put(Byte.class, "Byte")
+            .put(Character.class, "Char")
+            .put(Short.class, "Short")
+            .put(Integer.class, "Int")
+            .put(Long.class, "Long")
+            .put(Float.class, "Float")
+            .put(Double.class, "Double")
+            .put(String.class, "String")
+            .put(Vec2i.class, "Vec2i")
+            .put(Rectangle.class, "Rectangle")
+            .build();
+
+    /**
+     * Minimum number of elements an array, Collection or Map must have to be split across the pool given to
+     * {@link BDSUtil#serializeParallel(Object, ForkJoinPool)}.
+     */
+    public static final int PARALLEL_THRESHOLD = 4096;
+    private static final int PARALLEL_CHUNK_SIZE = 1024;
+
+    private static final Map<String, Serializer> serializers = Maps.newConcurrentMap();
+
+    static {
+        DefaultSerializers.registerAll(serializers);
+    }
 
     /**
      * Registers a serializer to be used when (de)serializing the specified type.
+     * Serializers can be registered at any time, even while other threads are (de)serializing.
      *
      * @param type       The type that has to be serialized by the given serializer.
      * @param serializer The serializer.
@@ -48,6 +97,11 @@ public class BDSUtil {
         serializers.put(type.getName(), serializer);
     }
 
+    @Nullable
+    static Serializer getSerializer(String typeName) {
+        return serializers.get(typeName);
+    }
+
     /**
      * Serializes the given object into a BDS.
      * <p>
@@ -57,9 +111,17 @@ public class BDSUtil {
      * <li>Wrapper types</li>
      * <li>{@link Date java.util.Date}</li>
      * <li>{@link File java.io.File}</li>
+     * <li>Enums</li>
+     * <li>{@link Vec2i}, {@link Rectangle}, {@link io.github.cubedtear.jcubit.collections.Matrix Matrix} and
+     * {@code Sprite}, through serializers registered by default</li>
      * <li>All subclasses of {@link Collection java.util.Collection&lt;E&gt;} (See below)</li>
+     * <li>All subclasses of {@link Map java.util.Map&lt;K, V&gt;} (See below)</li>
      * </ul>
      * <p>
+     * Collections and arrays whose elements are all non-null and of the same wrapper type (or String) are stored as a
+     * single packed array instead of one nested BDS per element. Boolean arrays are stored as a packed bitset, and
+     * {@link Vec2i Vec2is} and {@link Rectangle Rectangles} as one packed int array per coordinate.
+     * <p>
      * All other types will be serialized by writing each field (private fields included), provided they are not
      * annotated with {@link Transient @Transient}.
      * <p>
@@ -68,6 +130,10 @@ public class BDSUtil {
      * the {@link List List&lt;E&gt;} interface. In case this is not possible or it does not work, a custom serialization must be
      * provided.
      * <p>
+     * Maps are stored as two parallel arrays of keys and values, in iteration order, so the order of a
+     * {@link LinkedHashMap} is preserved. The same constructor requirement applies, except for {@link EnumMap EnumMaps},
+     * and for {@link SortedMap SortedMaps} with a comparator, which must have a public constructor taking a {@link Comparator}.
+     * <p>
      * When a type has to be specially serialized, both to minimize the resulting BDS size (because maybe some fields are redundant)
      * or because the default serialization does not work, a {@link Serializer} must be written for the type, and registered through
      * {@link BDSUtil#registerSerializer(Class, Serializer)}.
@@ -79,6 +145,7 @@ public class BDSUtil {
      * @return The BDS version of the given object.
      * @throws SerializationException If an exception occurs when serializing (e.g. There is a cycle that cannot be solved, or a field cannot be accessed).
      * @see BDSUtil#serialize(Object, BackrefFixer)
+     * @see BDSUtil#serializeCompact(Object)
      * @see BDSUtil#registerSerializer(Class, Serializer)
      */
     @API
@@ -86,6 +153,26 @@ public class BDSUtil {
         return serialize(instance, null);
     }
 
+    /**
+     * Serializes the given object into a BDS, like {@link BDSUtil#serialize(Object)}, but with smaller metadata:
+     * <ul>
+     * <li>Class names are written once, in a type table at the root, and referenced by their index.</li>
+     * <li>IDs are only written for objects which are referenced more than once.</li>
+     * <li>Fields of primitive type, and non-null String fields, are stored directly in the BDS of their object.</li>
+     * <li>Null fields and null elements are not written at all.</li>
+     * </ul>
+     * The result can be deserialized with {@link BDSUtil#deserialize(BDS)}.
+     *
+     * @param instance The object to serialize.
+     * @return The compact BDS version of the given object.
+     * @throws SerializationException If an exception occurs when serializing (e.g. There is a cycle that cannot be solved, or a field cannot be accessed).
+     * @see BDSUtil#serialize(Object)
+     */
+    @API
+    public static BDS serializeCompact(Object instance) throws SerializationException {
+        return serialize(instance, new BackrefFixer(true));
+    }
+
     /**
      * Serializes the given object into a BDS. This method may only be run from a {@link Serializer}.
      * Uses the given {@link BackrefFixer} to fix future cycles. Useful when deserializing a custom object requires deserializing
@@ -105,8 +192,72 @@ public class BDSUtil {
             BDS result = new BDS(NULL_TAG);
             result.addString(CLASS_NAME_TAG, NULL_TAG);
             return result;
-        } else
-            return serializeInternal2(ROOT_OBJ_TAG, instance, fixer != null ? fixer.alreadyWritten : HashMultimap.<Map.Entry<String, Integer>, Map.Entry<Integer, Object>>create(), fixer != null ? fixer.biggest : new IntRef(-1));
+        }
+        // Each call is a separate document, with its own type table, so that Serializers can deserialize it on its own
+        BackrefFixer document = fixer != null ? new BackrefFixer(fixer) : new BackrefFixer(false);
+        BDS result = serializeInternal2(ROOT_OBJ_TAG, instance, document);
+        if (document.compact) {
+            result.addStrings(TYPE_TABLE_TAG, document.typeIds.keySet().toArray(new String[document.typeIds.size()]));
+        }
+        return result;
+    }
+
+    /**
+     * Serializes the given object into a BDS, like {@link BDSUtil#serialize(Object)}, but the elements of arrays,
+     * Collections and Maps with at least {@link BDSUtil#PARALLEL_THRESHOLD} elements are serialized concurrently in the given pool.
+     * <p>
+     * References shared between elements are kept, as when serializing sequentially. The object must not be modified
+     * while it is being serialized, and registered {@link Serializer Serializers} must be thread-safe.
+     *
+     * @param instance The object to serialize.
+     * @param pool     The pool in which large groups of elements are serialized.
+     * @return The BDS version of the given object.
+     * @throws SerializationException If an exception occurs when serializing (e.g. There is a cycle that cannot be solved, or a field cannot be accessed).
+     * @see BDSUtil#serialize(Object)
+     */
+    @API
+    public static BDS serializeParallel(Object instance, ForkJoinPool pool) throws SerializationException {
+        return serialize(instance, new BackrefFixer(false, pool));
+    }
+
+    /**
+     * Serializes each of the given objects into its own BDS, concurrently, using the given Executor.
+     * The objects are serialized independently, so references between them are not kept.
+     * <p>
+     * The objects must not be modified while they are being serialized.
+     *
+     * @param instances The objects to serialize.
+     * @param executor  The executor in which each object is serialized.
+     * @return The serialized objects, in the iteration order of {@code instances}.
+     * @throws SerializationException If an exception occurs when serializing any of the objects, or the calling thread is interrupted.
+     * @see BDSUtil#serialize(Object)
+     */
+    @API
+    public static List<BDS> serializeAll(Collection<?> instances, Executor executor) throws SerializationException {
+        List<FutureTask<BDS>> tasks = Lists.newArrayListWithCapacity(instances.size());
+        for (final Object instance : instances) {
+            FutureTask<BDS> task = new FutureTask<>(new Callable<BDS>() {
+                @Override
+                public BDS call() throws SerializationException {
+                    return serialize(instance);
+                }
+            });
+            tasks.add(task);
+            executor.execute(task);
+        }
+        List<BDS> result = Lists.newArrayListWithCapacity(tasks.size());
+        try {
+            for (FutureTask<BDS> task : tasks) result.add(task.get());
+        } catch (InterruptedException e) {
+            for (FutureTask<BDS> task : tasks) task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new SerializationException("Interrupted while serializing", e);
+        } catch (ExecutionException e) {
+            for (FutureTask<BDS> task : tasks) task.cancel(true);
+            if (e.getCause() instanceof SerializationException) throw (SerializationException) e.getCause();
+            throw new SerializationException(e.getCause());
+        }
+        return result;
     }
 
     /**
@@ -120,10 +271,10 @@ public class BDSUtil {
     @API
     public static Object deserialize(BDS data) throws SerializationException {
         try {
-            String oldName = data.getName();
-            data.setName(ROOT_OBJ_TAG);
-            Object o = deserializeInternal(data, Maps.<Integer, Object>newHashMap(), Sets.<UnresolvedReference>newHashSet());
-            data.setName(oldName);
+            Map<Integer, Object> pastInstances = Maps.newHashMap();
+            Set<UnresolvedReference> unresolvedReferences = Sets.newLinkedHashSet();
+            Object o = deserializeInternal(data, pastInstances, unresolvedReferences, data.getStringArray(TYPE_TABLE_TAG));
+            resolveReferences(pastInstances, unresolvedReferences);
             return o;
         } catch (CannotDeserializeYet cannotDeserializeYet) {
             throw new AssertionError("Should never happen");
@@ -140,7 +291,7 @@ public class BDSUtil {
         return bds == null || NULL_TAG.equals(bds.getString(CLASS_NAME_TAG));
     }
 
-    private static BDS serializeInternal2(String name, Object instance, Multimap<Map.Entry<String, Integer>, Map.Entry<Integer, Object>> alreadyWritten, IntRef biggest) throws SerializationException {
+    private static BDS serializeInternal2(String name, Object instance, BackrefFixer fixer) throws SerializationException {
         BDS bds = new BDS(name);
         if (instance == null) {
             bds.addString(CLASS_NAME_TAG, NULL_TAG);
@@ -149,73 +300,70 @@ public class BDSUtil {
 
         Class<?> type = instance.getClass();
 
-        bds.addInt(IDX_TAG, ++biggest.value);
+        int id = fixer.compact ? -1 : fixer.nextId.getAndIncrement();
+        if (id != -1) bds.addInt(IDX_TAG, id);
 
         if (serializers.containsKey(type.getName())) {
-            int idx = findCycle(instance, type, alreadyWritten);
-            if (idx != -1) bds.addInt(BACKREF_TAG, idx);
+            WrittenObject written = fixer.claim(instance, type, bds, id);
+            if (written != null) bds.addInt(BACKREF_TAG, fixer.getId(written));
             else {
-                alreadyWritten.put(Maps.immutableEntry(type.getName(), instance.hashCode()), Maps.immutableEntry(biggest.value, instance));
                 Serializer serializer = serializers.get(type.getName());
-                serializer.serialize(instance, bds, new BackrefFixer(alreadyWritten, biggest));
-                if (!bds.addString(CLASS_NAME_TAG, type.getName())) {
+                serializer.serialize(instance, bds, fixer);
+                if (!writeTypeName(bds, CLASS_NAME_TAG, type.getName(), fixer)) {
                     throw new IllegalStateException("BDS String \"" + CLASS_NAME_TAG + "\" cannot be used when serializing!");
                 }
             }
         } else if (Boolean.class.equals(type) || boolean.class.equals(type)) {
-            bds.addString(CLASS_NAME_TAG, "Boolean");
+            writeTypeName(bds, CLASS_NAME_TAG, "Boolean", fixer);
             bds.addInt(PRIMITIVE_VALUE_TAG, (Boolean) instance ? 1 : 0);
         } else if (Byte.class.equals(type) || byte.class.equals(type)) {
-            bds.addString(CLASS_NAME_TAG, "Byte");
+            writeTypeName(bds, CLASS_NAME_TAG, "Byte", fixer);
             bds.addByte(PRIMITIVE_VALUE_TAG, (Byte) instance);
         } else if (Character.class.equals(type) || byte.class.equals(type)) {
-            bds.addString(CLASS_NAME_TAG, "Char");
+            writeTypeName(bds, CLASS_NAME_TAG, "Char", fixer);
             bds.addChar(PRIMITIVE_VALUE_TAG, (Character) instance);
         } else if (Short.class.equals(type) || short.class.equals(type)) {
-            bds.addString(CLASS_NAME_TAG, "Short");
+            writeTypeName(bds, CLASS_NAME_TAG, "Short", fixer);
             bds.addShort(PRIMITIVE_VALUE_TAG, (Short) instance);
         } else if (Integer.class.equals(type) || int.class.equals(type)) {
-            bds.addString(CLASS_NAME_TAG, "Int");
+            writeTypeName(bds, CLASS_NAME_TAG, "Int", fixer);
             bds.addInt(PRIMITIVE_VALUE_TAG, (Integer) instance);
         } else if (Long.class.equals(type) || long.class.equals(type)) {
-            bds.addString(CLASS_NAME_TAG, "Long");
+            writeTypeName(bds, CLASS_NAME_TAG, "Long", fixer);
             bds.addLong(PRIMITIVE_VALUE_TAG, (Long) instance);
         } else if (Float.class.equals(type) || float.class.equals(type)) {
-            bds.addString(CLASS_NAME_TAG, "Float");
+            writeTypeName(bds, CLASS_NAME_TAG, "Float", fixer);
             bds.addFloat(PRIMITIVE_VALUE_TAG, (Float) instance);
         } else if (Double.class.equals(type) || double.class.equals(type)) {
-            bds.addString(CLASS_NAME_TAG, "Double");
+            writeTypeName(bds, CLASS_NAME_TAG, "Double", fixer);
             bds.addDouble(PRIMITIVE_VALUE_TAG, (Double) instance);
         } else if (String.class.equals(type)) {
-            bds.addString(CLASS_NAME_TAG, "String");
+            writeTypeName(bds, CLASS_NAME_TAG, "String", fixer);
             bds.addString(PRIMITIVE_VALUE_TAG, (String) instance);
         } else if (File.class.equals(type)) {
-            bds.addString(CLASS_NAME_TAG, "File");
+            writeTypeName(bds, CLASS_NAME_TAG, "File", fixer);
             bds.addString(PRIMITIVE_VALUE_TAG, ((File) instance).getAbsolutePath());
         } else if (instance instanceof Date) {
             long time = ((Date) instance).getTime();
-            bds.addString(CLASS_NAME_TAG, "Date");
+            writeTypeName(bds, CLASS_NAME_TAG, "Date", fixer);
             bds.addLong(DATE_VALUE_TAG, time);
+        } else if (instance instanceof Enum) {
+            writeTypeName(bds, CLASS_NAME_TAG, "Enum", fixer);
+            writeTypeName(bds, ENUM_TYPE_TAG, ((Enum<?>) instance).getDeclaringClass().getName(), fixer);
+            bds.addString(PRIMITIVE_VALUE_TAG, ((Enum<?>) instance).name());
         } else {
-            int idx = findCycle(instance, type, alreadyWritten);
-            if (idx != -1) bds.addInt(BACKREF_TAG, idx);
+            WrittenObject written = fixer.claim(instance, type, bds, id);
+            if (written != null) bds.addInt(BACKREF_TAG, fixer.getId(written));
             else {
-                alreadyWritten.put(Maps.immutableEntry(type.getName(), instance.hashCode()), Maps.immutableEntry(biggest.value, instance));
-
                 if (type.isArray()) {
-                    bds.addString(CLASS_NAME_TAG, "Array");
+                    writeTypeName(bds, CLASS_NAME_TAG, "Array", fixer);
                     String componentType = type.getComponentType().getName();
-                    bds.addString(ARRAY_TYPE_TAG, componentType);
+                    writeTypeName(bds, ARRAY_TYPE_TAG, componentType, fixer);
                     int length = Array.getLength(instance);
                     bds.addInt(ARRAY_LENGTH_TAG, length);
                     if (type.getComponentType().isPrimitive()) {
                         if ("boolean".equals(componentType)) {
-                            boolean[] bArray = (boolean[]) instance;
-                            int[] b2i = new int[bArray.length];
-                            for (int i = 0; i < bArray.length; i++) {
-                                b2i[i] = bArray[i] ? 1 : 0;
-                            }
-                            bds.addInts(PRIMITIVE_ARRAY_VALUE_TAG, b2i);
+                            bds.addBytes(PRIMITIVE_ARRAY_VALUE_TAG, packBits((boolean[]) instance));
                         } else if ("byte".equals(componentType)) {
                             bds.addBytes(PRIMITIVE_ARRAY_VALUE_TAG, (byte[]) instance);
                         } else if ("short".equals(componentType)) {
@@ -234,25 +382,38 @@ public class BDSUtil {
                             throw new AssertionError("Unknown primitive type: " + componentType);
                         }
                     } else {
-                        for (int i = 0; i < length; i++) {
-                            Object o = Array.get(instance, i);
-                            BDS element = serializeInternal2("Item" + i, o, alreadyWritten, biggest);
-                            bds.addBDS(element);
-                        }
+                        serializeElements(bds, Arrays.asList((Object[]) instance), fixer);
                     }
                 } else if (Collection.class.isAssignableFrom(type)) {
                     Collection c = (Collection) instance;
-                    bds.addString(CLASS_NAME_TAG, "Collection");
-                    bds.addString(ARRAY_TYPE_TAG, type.getName());
+                    writeTypeName(bds, CLASS_NAME_TAG, "Collection", fixer);
+                    writeTypeName(bds, ARRAY_TYPE_TAG, type.getName(), fixer);
                     bds.addInt(ARRAY_LENGTH_TAG, c.size());
-                    Iterator<?> iter = c.iterator();
-                    int i = 0;
-                    while (iter.hasNext()) {
-                        Object next = iter.next();
-                        bds.addBDS(serializeInternal2("Item" + i++, next, alreadyWritten, biggest));
+                    serializeElements(bds, c, fixer);
+                } else if (instance instanceof Map) {
+                    Map<?, ?> m = (Map<?, ?>) instance;
+                    writeTypeName(bds, CLASS_NAME_TAG, "Map", fixer);
+                    writeTypeName(bds, ARRAY_TYPE_TAG, type.getName(), fixer);
+                    bds.addInt(ARRAY_LENGTH_TAG, m.size());
+                    if (instance instanceof EnumMap) {
+                        writeTypeName(bds, MAP_KEY_TYPE_TAG, getEnumKeyType((EnumMap<?, ?>) instance).getName(), fixer);
+                    } else if (instance instanceof SortedMap && ((SortedMap<?, ?>) instance).comparator() != null) {
+                        bds.addBDS(serializeInternal2(MAP_COMPARATOR_TAG, ((SortedMap<?, ?>) instance).comparator(), fixer));
+                    }
+                    List<Object> keys = new ArrayList<>(m.size());
+                    List<Object> values = new ArrayList<>(m.size());
+                    for (Map.Entry<?, ?> e : m.entrySet()) {
+                        keys.add(e.getKey());
+                        values.add(e.getValue());
                     }
+                    BDS keysBDS = new BDS(MAP_KEYS_TAG);
+                    serializeElements(keysBDS, keys, fixer);
+                    bds.addBDS(keysBDS);
+                    BDS valuesBDS = new BDS(MAP_VALUES_TAG);
+                    serializeElements(valuesBDS, values, fixer);
+                    bds.addBDS(valuesBDS);
                 } else {
-                    bds.addString(CLASS_NAME_TAG, type.getName());
+                    writeTypeName(bds, CLASS_NAME_TAG, type.getName(), fixer);
                     for (Field f : ReflectionUtil.getAllFields(type)) {
                         if (f.isAnnotationPresent(Transient.class) || Modifier.isStatic(f.getModifiers())) continue;
                         if (!f.isAccessible()) {
@@ -264,7 +425,9 @@ public class BDSUtil {
                         }
                         try {
                             try {
-                                bds.addBDS(serializeInternal2(f.getName(), f.get(instance), alreadyWritten, biggest));
+                                Object value = f.get(instance);
+                                if (fixer.compact && (value == null || addInline(bds, f.getName(), f.getType(), value))) continue;
+                                bds.addBDS(serializeInternal2(f.getName(), value, fixer));
                             } catch (IllegalAccessException e) {
                                 throw new AssertionError("This should never happen");
                             }
@@ -278,26 +441,276 @@ public class BDSUtil {
         return bds;
     }
 
-    private static int findCycle(Object instance, Class<?> type, Multimap<Map.Entry<String, Integer>, Map.Entry<Integer, Object>> alreadyWritten) {
-        Integer idx = null;
-        Collection<Map.Entry<Integer, Object>> entries = alreadyWritten.get(Maps.immutableEntry(type.getName(), instance.hashCode()));
-        for (Map.Entry<Integer, Object> entry : entries) {
-            if (entry.getValue().equals(instance)) {
-                idx = entry.getKey();
+    private static void serializeElements(BDS bds, Collection<?> elements, BackrefFixer fixer) throws SerializationException {
+        String packedType = getPackedType(elements);
+        if (packedType != null) {
+            pack(bds, packedType, elements);
+        } else if (fixer.pool != null && elements.size() >= PARALLEL_THRESHOLD) {
+            BDS[] items = new BDS[elements.size()];
+            ElementsTask task = new ElementsTask(elements.toArray(), items, 0, items.length, fixer);
+            try {
+                if (ForkJoinTask.inForkJoinPool()) task.invoke();
+                else fixer.pool.invoke(task);
+            } catch (ParallelSerializationException e) {
+                throw (SerializationException) e.getCause();
+            }
+            for (BDS item : items) {
+                if (item != null) bds.addBDS(item);
+            }
+        } else {
+            int i = 0;
+            for (Object o : elements) {
+                String name = "Item" + i++;
+                if (o != null || !fixer.compact) bds.addBDS(serializeInternal2(name, o, fixer));
+            }
+        }
+    }
+
+    /**
+     * Writes a type name with the given tag. In compact mode, only the index of the type in the type table is written.
+     */
+    private static boolean writeTypeName(BDS bds, String tag, String typeName, BackrefFixer fixer) {
+        if (!fixer.compact) return bds.addString(tag, typeName);
+        Integer id = fixer.typeIds.get(typeName);
+        if (id == null) {
+            id = fixer.typeIds.size();
+            fixer.typeIds.put(typeName, id);
+        }
+        return bds.addInt(tag, id);
+    }
+
+    @Nullable
+    private static String readTypeName(BDS bds, String tag, @Nullable String[] types) throws SerializationException {
+        String typeName = bds.getString(tag);
+        if (typeName != null || types == null) return typeName;
+        Integer id = bds.getInt(tag);
+        if (id == null) return null;
+        if (id < 0 || id >= types.length)
+            throw new SerializationException("Error deserializing: Type " + id + " is not in the type table.");
+        return types[id];
+    }
+
+    /**
+     * Stores a field value directly in the BDS of its object, if the field is of primitive type or a String.
+     *
+     * @return whether the value was stored.
+     */
+    private static boolean addInline(BDS bds, String name, Class<?> fieldType, Object value) {
+        if (serializers.containsKey(value.getClass().getName())) return false;
+        if (fieldType == boolean.class) return bds.addByte(name, (byte) ((Boolean) value ? 1 : 0));
+        if (fieldType == byte.class) return bds.addByte(name, (Byte) value);
+        if (fieldType == char.class) return bds.addChar(name, (Character) value);
+        if (fieldType == short.class) return bds.addShort(name, (Short) value);
+        if (fieldType == int.class) return bds.addInt(name, (Integer) value);
+        if (fieldType == long.class) return bds.addLong(name, (Long) value);
+        if (fieldType == float.class) return bds.addFloat(name, (Float) value);
+        if (fieldType == double.class) return bds.addDouble(name, (Double) value);
+        if (fieldType == String.class) return bds.addString(name, (String) value);
+        return false;
+    }
+
+    @Nullable
+    private static Object getInline(BDS bds, String name, Class<?> fieldType) {
+        if (fieldType == boolean.class) {
+            Byte b = bds.getByte(name);
+            return b == null ? null : b != 0;
+        }
+        if (fieldType == byte.class) return bds.getByte(name);
+        if (fieldType == char.class) return bds.getChar(name);
+        if (fieldType == short.class) return bds.getShort(name);
+        if (fieldType == int.class) return bds.getInt(name);
+        if (fieldType == long.class) return bds.getLong(name);
+        if (fieldType == float.class) return bds.getFloat(name);
+        if (fieldType == double.class) return bds.getDouble(name);
+        if (fieldType == String.class) return bds.getString(name);
+        return null;
+    }
+
+    static Class<?> getEnumKeyType(EnumMap<?, ?> map) throws SerializationException {
+        if (!map.isEmpty()) return map.keySet().iterator().next().getDeclaringClass();
+        try {
+            Field keyType = EnumMap.class.getDeclaredField("keyType");
+            keyType.setAccessible(true);
+            return (Class<?>) keyType.get(map);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new SerializationException("Error serializing: Cannot find the key type of an empty EnumMap", e);
+        }
+    }
+
+    /**
+     * Returns the tag of the packed representation of the given elements, or {@code null} if they cannot be packed.
+     * Elements can be packed only if none is null, all have the same wrapper type (or String, {@link Vec2i} or
+     * {@link Rectangle}), and no custom serializer has been registered for that type.
+     */
+    @Nullable
+    private static String getPackedType(Collection<?> elements) {
+        Class<?> type = null;
+        for (Object o : elements) {
+            if (o == null) return null;
+            if (type == null) type = o.getClass();
+            else if (type != o.getClass()) return null;
+        }
+        if (type == null) return null;
+        Serializer serializer = serializers.get(type.getName());
+        if (serializer != null && !DefaultSerializers.isDefault(serializer)) return null;
+        return PACKED_TYPES.get(type);
+    }
+
+    private static void pack(BDS bds, String packedType, Collection<?> elements) {
+        bds.addString(PACKED_TYPE_TAG, packedType);
+        int i = 0;
+        switch (packedType) {
+            case "Boolean":
+                boolean[] booleans = new boolean[elements.size()];
+                for (Object o : elements) booleans[i++] = (Boolean) o;
+                bds.addBytes(PRIMITIVE_ARRAY_VALUE_TAG, packBits(booleans));
+                break;
+            case "Byte":
+                byte[] bytes = new byte[elements.size()];
+                for (Object o : elements) bytes[i++] = (Byte) o;
+                bds.addBytes(PRIMITIVE_ARRAY_VALUE_TAG, bytes);
+                break;
+            case "Char":
+                char[] chars = new char[elements.size()];
+                for (Object o : elements) chars[i++] = (Character) o;
+                bds.addChars(PRIMITIVE_ARRAY_VALUE_TAG, chars);
+                break;
+            case "Short":
+                short[] shorts = new short[elements.size()];
+                for (Object o : elements) shorts[i++] = (Short) o;
+                bds.addShorts(PRIMITIVE_ARRAY_VALUE_TAG, shorts);
+                break;
+            case "Int":
+                int[] ints = new int[elements.size()];
+                for (Object o : elements) ints[i++] = (Integer) o;
+                bds.addInts(PRIMITIVE_ARRAY_VALUE_TAG, ints);
+                break;
+            case "Long":
+                long[] longs = new long[elements.size()];
+                for (Object o : elements) longs[i++] = (Long) o;
+                bds.addLongs(PRIMITIVE_ARRAY_VALUE_TAG, longs);
+                break;
+            case "Float":
+                float[] floats = new float[elements.size()];
+                for (Object o : elements) floats[i++] = (Float) o;
+                bds.addFloats(PRIMITIVE_ARRAY_VALUE_TAG, floats);
+                break;
+            case "Double":
+                double[] doubles = new double[elements.size()];
+                for (Object o : elements) doubles[i++] = (Double) o;
+                bds.addDoubles(PRIMITIVE_ARRAY_VALUE_TAG, doubles);
+                break;
+            case "String":
+                bds.addStrings(PRIMITIVE_ARRAY_VALUE_TAG, elements.toArray(new String[elements.size()]));
+                break;
+            case "Vec2i":
+                addColumns(bds, DefaultSerializers.packVec2is(elements));
+                break;
+            case "Rectangle":
+                addColumns(bds, DefaultSerializers.packRectangles(elements));
+                break;
+            default:
+                throw new AssertionError("Unknown packed type: " + packedType);
+        }
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    private static List<Object> unpack(BDS bds, String packedType, int length) throws SerializationException {
+        List<Object> result = new ArrayList<>(length);
+        switch (packedType) {
+            case "Boolean":
+                for (boolean b : unpackBits(bds.getByteArray(PRIMITIVE_ARRAY_VALUE_TAG), length)) result.add(b);
+                break;
+            case "Byte":
+                for (byte b : bds.getByteArray(PRIMITIVE_ARRAY_VALUE_TAG)) result.add(b);
+                break;
+            case "Char":
+                for (char c : bds.getCharArray(PRIMITIVE_ARRAY_VALUE_TAG)) result.add(c);
+                break;
+            case "Short":
+                for (short s : bds.getShortArray(PRIMITIVE_ARRAY_VALUE_TAG)) result.add(s);
+                break;
+            case "Int":
+                for (int i : bds.getIntArray(PRIMITIVE_ARRAY_VALUE_TAG)) result.add(i);
+                break;
+            case "Long":
+                for (long l : bds.getLongArray(PRIMITIVE_ARRAY_VALUE_TAG)) result.add(l);
                 break;
+            case "Float":
+                for (float f : bds.getFloatArray(PRIMITIVE_ARRAY_VALUE_TAG)) result.add(f);
+                break;
+            case "Double":
+                for (double d : bds.getDoubleArray(PRIMITIVE_ARRAY_VALUE_TAG)) result.add(d);
+                break;
+            case "String":
+                Collections.addAll(result, bds.getStringArray(PRIMITIVE_ARRAY_VALUE_TAG));
+                break;
+            case "Vec2i":
+                int[][] vectors = getColumns(bds, 2, length);
+                for (int i = 0; i < length; i++) result.add(new Vec2i(vectors[0][i], vectors[1][i]));
+                break;
+            case "Rectangle":
+                int[][] rectangles = getColumns(bds, 4, length);
+                for (int i = 0; i < length; i++)
+                    result.add(new Rectangle(rectangles[0][i], rectangles[1][i], rectangles[2][i], rectangles[3][i]));
+                break;
+            default:
+                throw new SerializationException("Error deserializing: Unknown packed type " + packedType);
+        }
+        if (result.size() != length)
+            throw new SerializationException("Error deserializing: Expected " + length + " packed elements, found " + result.size());
+        return result;
+    }
+
+    private static void addColumns(BDS bds, int[][] columns) {
+        for (int i = 0; i < columns.length; i++) bds.addInts(PACKED_COLUMN_TAGS[i], columns[i]);
+    }
+
+    private static int[][] getColumns(BDS bds, int count, int length) throws SerializationException {
+        int[][] columns = new int[count][];
+        for (int i = 0; i < count; i++) {
+            columns[i] = bds.getIntArray(PACKED_COLUMN_TAGS[i]);
+            if (columns[i] == null || columns[i].length != length)
+                throw new SerializationException("Error deserializing: Packed column " + PACKED_COLUMN_TAGS[i] + " is missing or has the wrong length");
+        }
+        return columns;
+    }
+
+    private static byte[] packBits(boolean[] bits) {
+        byte[] packed = new byte[(bits.length + 7) / 8];
+        for (int i = 0; i < bits.length; i++) {
+            if (bits[i]) packed[i >> 3] |= 1 << (i & 7);
+        }
+        return packed;
+    }
+
+    private static boolean[] unpackBits(byte[] packed, int length) {
+        boolean[] bits = new boolean[length];
+        for (int i = 0; i < length; i++) {
+            bits[i] = (packed[i >> 3] & (1 << (i & 7))) != 0;
+        }
+        return bits;
+    }
+
+    @Nullable
+    private static WrittenObject findCycle(Object instance, Class<?> type, Multimap<Map.Entry<String, Integer>, WrittenObject> alreadyWritten) {
+        Collection<WrittenObject> entries = alreadyWritten.get(Maps.immutableEntry(type.getName(), instance.hashCode()));
+        for (WrittenObject entry : entries) {
+            if (entry.instance.equals(instance)) {
+                return entry;
             }
         }
-        return idx != null ? idx : -1;
+        return null;
     }
 
     @Nullable
     @SuppressWarnings({"unchecked", "ConstantConditions"})
-    private static Object deserializeInternal(BDS bds, Map<Integer, Object> pastInstances, Set<UnresolvedReference> unresolvedReferences) throws SerializationException, CannotDeserializeYet {
+    private static Object deserializeInternal(BDS bds, Map<Integer, Object> pastInstances, Set<UnresolvedReference> unresolvedReferences, @Nullable String[] types) throws SerializationException, CannotDeserializeYet {
         if (isNull(bds)) return null;
 
         Object result;
 
-        String type = bds.getString(CLASS_NAME_TAG);
+        String type = readTypeName(bds, CLASS_NAME_TAG, types);
 
         Integer backRef = bds.getInt(BACKREF_TAG);
         if (type == null) {
@@ -308,10 +721,14 @@ public class BDSUtil {
             }
         }
 
-        int refId = bds.getInt(IDX_TAG);
+        // Compact BDSs only have IDs for objects referenced more than once
+        Integer refId = bds.getInt(IDX_TAG);
 
-        if (serializers.containsKey(type)) {
-            result = serializers.get(type).deserialize(bds);
+        Serializer serializer = serializers.get(type);
+        if (serializer != null && !DefaultSerializers.isLegacy(serializer, bds)) {
+            result = serializer instanceof CompoundSerializer
+                    ? ((CompoundSerializer) serializer).deserialize(bds, new Deserialization(pastInstances, unresolvedReferences))
+                    : serializer.deserialize(bds);
             pastInstances.put(refId, result);
         } else if ("Boolean".equals(type)) {
             result = bds.getInt(PRIMITIVE_VALUE_TAG) == 1;
@@ -347,16 +764,44 @@ public class BDSUtil {
             result = new Date();
             ((Date) result).setTime(bds.getLong(DATE_VALUE_TAG));
             pastInstances.put(refId, result);
+        } else if ("Enum".equals(type)) {
+            String enumType = readTypeName(bds, ENUM_TYPE_TAG, types);
+            try {
+                result = Enum.valueOf(Class.forName(enumType).asSubclass(Enum.class), bds.getString(PRIMITIVE_VALUE_TAG));
+            } catch (ClassNotFoundException e) {
+                throw new SerializationException("Error deserializing: Class " + enumType + " could not be found.", e);
+            } catch (ClassCastException | IllegalArgumentException e) {
+                throw new SerializationException("Error deserializing: " + bds.getString(PRIMITIVE_VALUE_TAG) + " is not a constant of " + enumType, e);
+            }
+            pastInstances.put(refId, result);
+        } else if ("Map".equals(type)) {
+            int length = bds.getInt(ARRAY_LENGTH_TAG);
+            Map map = createMap(bds, pastInstances, unresolvedReferences, types);
+            pastInstances.put(refId, map);
+            int unresolvedCount = unresolvedReferences.size();
+            Object[] keys = deserializeElements(bds.getBDS(MAP_KEYS_TAG), length, pastInstances, unresolvedReferences, types);
+            Object[] values = deserializeElements(bds.getBDS(MAP_VALUES_TAG), length, pastInstances, unresolvedReferences, types);
+            if (unresolvedReferences.size() == unresolvedCount) {
+                for (int i = 0; i < length; i++) map.put(keys[i], values[i]);
+            } else {
+                // Filled once every reference is resolved, so that insertion order is kept
+                unresolvedReferences.add(new UnresolvedMap(map, keys, values));
+            }
+            result = map;
         } else if ("Array".equals(type)) {
-            String componentType = bds.getString(ARRAY_TYPE_TAG);
+            String componentType = readTypeName(bds, ARRAY_TYPE_TAG, types);
             if (componentType != null) {
                 int length = bds.getInt(ARRAY_LENGTH_TAG);
 
                 if ("boolean".equals(componentType)) {
-                    result = new boolean[length];
                     int[] ints = bds.getIntArray(PRIMITIVE_ARRAY_VALUE_TAG);
-                    for (int i = 0; i < ints.length; i++) {
-                        ((boolean[]) result)[i] = ints[i] == 1;
+                    if (ints != null) { // Written before booleans were packed
+                        result = new boolean[length];
+                        for (int i = 0; i < ints.length; i++) {
+                            ((boolean[]) result)[i] = ints[i] == 1;
+                        }
+                    } else {
+                        result = unpackBits(bds.getByteArray(PRIMITIVE_ARRAY_VALUE_TAG), length);
                     }
                 } else if ("byte".equals(componentType)) {
                     result = bds.getByteArray(PRIMITIVE_ARRAY_VALUE_TAG);
@@ -377,9 +822,15 @@ public class BDSUtil {
                         Class<?> cType = Class.forName(componentType);
                         result = Array.newInstance(cType, length);
                         pastInstances.put(refId, result);
-                        for (int i = 0; i < length; i++) {
+                        String packedType = bds.getString(PACKED_TYPE_TAG);
+                        if (packedType != null) {
+                            List<Object> elements = unpack(bds, packedType, length);
+                            for (int i = 0; i < length; i++) {
+                                Array.set(result, i, elements.get(i));
+                            }
+                        } else for (int i = 0; i < length; i++) {
                             try {
-                                Object element = deserializeInternal(bds.getBDS("Item" + i), pastInstances, unresolvedReferences);
+                                Object element = deserializeInternal(bds.getBDS("Item" + i), pastInstances, unresolvedReferences, types);
                                 Array.set(result, i, element);
                             } catch (CannotDeserializeYet e) {
                                 unresolvedReferences.add(new UnresolvedArray(result, i, e.refId));
@@ -396,7 +847,7 @@ public class BDSUtil {
                 } else throw new CannotDeserializeYet(backref);
             }
         } else if ("Collection".equals(type)) {
-            String collectionType = bds.getString(ARRAY_TYPE_TAG);
+            String collectionType = readTypeName(bds, ARRAY_TYPE_TAG, types);
             if (collectionType != null) {
                 int length = bds.getInt(ARRAY_LENGTH_TAG);
                 try {
@@ -404,9 +855,12 @@ public class BDSUtil {
                     try {
                         Collection collection = (Collection) cType.newInstance();
                         pastInstances.put(refId, collection);
-                        for (int i = 0; i < length; i++) {
+                        String packedType = bds.getString(PACKED_TYPE_TAG);
+                        if (packedType != null) {
+                            collection.addAll(unpack(bds, packedType, length));
+                        } else for (int i = 0; i < length; i++) {
                             try {
-                                Object element = deserializeInternal(bds.getBDS("Item" + i), pastInstances, unresolvedReferences);
+                                Object element = deserializeInternal(bds.getBDS("Item" + i), pastInstances, unresolvedReferences, types);
                                 collection.add(element);
                             } catch (CannotDeserializeYet e) {
                                 unresolvedReferences.add(new UnresolvedCol(collection, i, e.refId));
@@ -445,7 +899,8 @@ public class BDSUtil {
                         }
                         BDS fieldBDS = bds.getBDS(f.getName());
                         try {
-                            Object value = deserializeInternal(fieldBDS, pastInstances, unresolvedReferences);
+                            Object value = fieldBDS != null ? deserializeInternal(fieldBDS, pastInstances, unresolvedReferences, types) : getInline(bds, f.getName(), f.getType());
+                            if (value == null && f.getType().isPrimitive()) continue;
                             f.set(result, value);
                         } catch (CannotDeserializeYet e) {
                             unresolvedReferences.add(new UnresolvedField(result, f, e.refId));
@@ -461,37 +916,96 @@ public class BDSUtil {
             }
         }
 
-        if (ROOT_OBJ_TAG.equals(bds.getName())) {
-            Set<UnresolvedReference> toReSolve = new HashSet<>(unresolvedReferences);
-            while (!toReSolve.isEmpty()) {
-                unresolvedReferences = toReSolve;
-                toReSolve = Sets.newHashSet();
-                for (UnresolvedReference ur : unresolvedReferences) {
-                    if (pastInstances.containsKey(ur.refId) || ur.refId == 0) {
-                        Object value = pastInstances.get(ur.refId);
-                        if (ur instanceof UnresolvedField) {
-                            UnresolvedField urf = (UnresolvedField) ur;
-                            try {
-                                urf.f.set(urf.instance, value);
-                            } catch (IllegalAccessException e) {
-                                throw new AssertionError("How did this even happen?");
-                            }
-                        } else if (ur instanceof UnresolvedArray) {
-                            UnresolvedArray ura = (UnresolvedArray) ur;
-                            Array.set(ura.array, ura.idx, value);
-                        } else if (ur instanceof UnresolvedCol) {
-                            UnresolvedCol urc = ((UnresolvedCol) ur);
-                            if (urc.collection instanceof List) {
-                                ((List) urc.collection).add(urc.idx, value);
-                            } else {
-                                urc.collection.add(value);
-                            }
+        return result;
+    }
+
+    /**
+     * Sets every reference which could not be set while deserializing, because the referenced object had not been created yet.
+     */
+    @SuppressWarnings("unchecked")
+    private static void resolveReferences(Map<Integer, Object> pastInstances, Set<UnresolvedReference> unresolvedReferences) {
+        List<UnresolvedMap> unresolvedMaps = Lists.newArrayList();
+        List<UnresolvedNested> unresolvedNested = Lists.newArrayList();
+        Set<UnresolvedReference> toReSolve = new LinkedHashSet<>(unresolvedReferences);
+        while (!toReSolve.isEmpty()) {
+            unresolvedReferences = toReSolve;
+            toReSolve = Sets.newLinkedHashSet();
+            for (UnresolvedReference ur : unresolvedReferences) {
+                if (ur instanceof UnresolvedMap) {
+                    unresolvedMaps.add((UnresolvedMap) ur);
+                } else if (ur instanceof UnresolvedNested) {
+                    unresolvedNested.add((UnresolvedNested) ur);
+                } else if (pastInstances.containsKey(ur.refId) || ur.refId == 0) {
+                    Object value = pastInstances.get(ur.refId);
+                    if (ur instanceof UnresolvedField) {
+                        UnresolvedField urf = (UnresolvedField) ur;
+                        try {
+                            urf.f.set(urf.instance, value);
+                        } catch (IllegalAccessException e) {
+                            throw new AssertionError("How did this even happen?");
                         }
-                    } else toReSolve.add(ur);
-                }
+                    } else if (ur instanceof UnresolvedArray) {
+                        UnresolvedArray ura = (UnresolvedArray) ur;
+                        Array.set(ura.array, ura.idx, value);
+                    } else if (ur instanceof UnresolvedCol) {
+                        UnresolvedCol urc = ((UnresolvedCol) ur);
+                        if (urc.collection instanceof List) {
+                            ((List) urc.collection).add(urc.idx, value);
+                        } else {
+                            urc.collection.add(value);
+                        }
+                    }
+                } else toReSolve.add(ur);
             }
         }
-        return result;
+        // Inner objects register first, so they are given their nested objects first too
+        for (UnresolvedNested urn : unresolvedNested) {
+            urn.consumer.accept(urn.resolved ? urn.value : pastInstances.get(urn.refId));
+        }
+        // Inner maps are filled first, in case they are used as keys of outer maps
+        for (UnresolvedMap urm : Lists.reverse(unresolvedMaps)) {
+            for (int i = 0; i < urm.keys.length; i++) urm.map.put(urm.keys[i], urm.values[i]);
+        }
+    }
+
+    private static Object[] deserializeElements(BDS bds, int length, Map<Integer, Object> pastInstances, Set<UnresolvedReference> unresolvedReferences, @Nullable String[] types) throws SerializationException {
+        String packedType = bds.getString(PACKED_TYPE_TAG);
+        if (packedType != null) return unpack(bds, packedType, length).toArray();
+        Object[] elements = new Object[length];
+        for (int i = 0; i < length; i++) {
+            try {
+                elements[i] = deserializeInternal(bds.getBDS("Item" + i), pastInstances, unresolvedReferences, types);
+            } catch (CannotDeserializeYet e) {
+                unresolvedReferences.add(new UnresolvedArray(elements, i, e.refId));
+            }
+        }
+        return elements;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map createMap(BDS bds, Map<Integer, Object> pastInstances, Set<UnresolvedReference> unresolvedReferences, @Nullable String[] types) throws SerializationException {
+        String mapType = readTypeName(bds, ARRAY_TYPE_TAG, types);
+        try {
+            String keyType = readTypeName(bds, MAP_KEY_TYPE_TAG, types);
+            if (keyType != null) return new EnumMap(Class.forName(keyType).asSubclass(Enum.class));
+            Class<?> cType = Class.forName(mapType);
+            BDS comparatorBDS = bds.getBDS(MAP_COMPARATOR_TAG);
+            if (comparatorBDS == null) return (Map) cType.newInstance();
+            try {
+                Object comparator = deserializeInternal(comparatorBDS, pastInstances, unresolvedReferences, types);
+                return (Map) cType.getConstructor(Comparator.class).newInstance(comparator);
+            } catch (CannotDeserializeYet e) {
+                throw new SerializationException("Error deserializing: The comparator of a " + mapType + " cannot be a reference to a parent object.");
+            } catch (NoSuchMethodException | InvocationTargetException e) {
+                throw new SerializationException("Error deserializing: Class " + mapType + " needs a public constructor taking a Comparator.", e);
+            }
+        } catch (ClassNotFoundException e) {
+            throw new SerializationException("Error deserializing: Class " + mapType + " could not be found.", e);
+        } catch (InstantiationException e) {
+            throw new SerializationException("Error deserializing: Class " + mapType + " cannot be instantiated. Add a default constructor.", e);
+        } catch (IllegalAccessException e) {
+            throw new SerializationException("Error deserializing: Constructor for class " + mapType + " is not public.", e);
+        }
     }
 
     /**
@@ -657,20 +1171,174 @@ public class BDSUtil {
      */
     public static class BackrefFixer {
 
-        private final Multimap<Map.Entry<String, Integer>, Map.Entry<Integer, Object>> alreadyWritten;
-        private final IntRef biggest;
+        private final Multimap<Map.Entry<String, Integer>, WrittenObject> alreadyWritten;
+        private final AtomicInteger nextId;
+        private final boolean compact;
+        @Nullable
+        private final ForkJoinPool pool;
+        private final Map<String, Integer> typeIds = Maps.newLinkedHashMap();
+
+        private BackrefFixer(boolean compact) {
+            this(compact, null);
+        }
+
+        private BackrefFixer(boolean compact, @Nullable ForkJoinPool pool) {
+            this.alreadyWritten = HashMultimap.create();
+            this.nextId = new AtomicInteger();
+            this.compact = compact;
+            this.pool = pool;
+        }
+
+        private BackrefFixer(BackrefFixer parent) {
+            this.alreadyWritten = parent.alreadyWritten;
+            this.nextId = parent.nextId;
+            this.compact = parent.compact;
+            this.pool = parent.pool;
+        }
+
+        static BackrefFixer create() {
+            return new BackrefFixer(false);
+        }
+
+        /**
+         * Returns the ID of an already written object. In compact mode, IDs are only given to objects when they are
+         * first referenced again, and added to their BDS at that moment.
+         */
+        private int getId(WrittenObject written) {
+            if (written.id == -1) {
+                written.id = nextId.getAndIncrement();
+                written.bds.addInt(IDX_TAG, written.id);
+            }
+            return written.id;
+        }
 
-        private BackrefFixer(Multimap<Map.Entry<String, Integer>, Map.Entry<Integer, Object>> alreadyWritten, IntRef biggest) {
-            this.alreadyWritten = alreadyWritten;
-            this.biggest = biggest;
+        /**
+         * Returns the object equal to the given one which has already been written, or registers the given one as
+         * written if there is none. Elements may be written concurrently, so both steps are done atomically.
+         */
+        @Nullable
+        private WrittenObject claim(Object instance, Class<?> type, BDS bds, int id) {
+            Map.Entry<String, Integer> key = Maps.immutableEntry(type.getName(), instance.hashCode());
+            synchronized (alreadyWritten) {
+                WrittenObject written = findCycle(instance, type, alreadyWritten);
+                if (written == null) alreadyWritten.put(key, new WrittenObject(instance, bds, id));
+                return written;
+            }
         }
     }
 
-    private static class IntRef {
-        int value;
+    /**
+     * Deserializes an object with a {@link CompoundSerializer}, as a document on its own.
+     */
+    static Object deserialize(CompoundSerializer serializer, BDS data) throws SerializationException {
+        Map<Integer, Object> pastInstances = Maps.newHashMap();
+        Set<UnresolvedReference> unresolvedReferences = Sets.newLinkedHashSet();
+        Object o = serializer.deserialize(data, new Deserialization(pastInstances, unresolvedReferences));
+        resolveReferences(pastInstances, unresolvedReferences);
+        return o;
+    }
 
-        public IntRef(int value) {
-            this.value = value;
+    /**
+     * A {@link Serializer} of objects which contain other objects, written with {@link BDSUtil#serialize(Object, BackrefFixer)}.
+     * Those are deserialized as part of the document which contains the object, so that references between them are kept.
+     */
+    interface CompoundSerializer extends Serializer {
+
+        /**
+         * Deserializes the given BDS as an Object, deserializing the objects it contains with the given Deserialization.
+         */
+        Object deserialize(BDS data, Deserialization deserialization) throws SerializationException;
+    }
+
+    /**
+     * The state of the deserialization of a document, given to {@link CompoundSerializer CompoundSerializers}.
+     */
+    static final class Deserialization {
+        private final Map<Integer, Object> pastInstances;
+        private final Set<UnresolvedReference> unresolvedReferences;
+
+        private Deserialization(Map<Integer, Object> pastInstances, Set<UnresolvedReference> unresolvedReferences) {
+            this.pastInstances = pastInstances;
+            this.unresolvedReferences = unresolvedReferences;
+        }
+
+        /**
+         * Deserializes a nested object.
+         *
+         * @throws SerializationException If it is a reference to a parent object, which is not deserialized yet.
+         */
+        @Nullable
+        Object deserialize(BDS nested) throws SerializationException {
+            try {
+                return deserializeInternal(nested, pastInstances, unresolvedReferences, nested.getStringArray(TYPE_TABLE_TAG));
+            } catch (CannotDeserializeYet e) {
+                if (pastInstances.containsKey(e.refId)) return pastInstances.get(e.refId);
+                throw new SerializationException("Error deserializing: A nested object cannot be a reference to a parent object.");
+            }
+        }
+
+        /**
+         * Deserializes a nested object, and gives it to the consumer once every reference in the document is resolved.
+         */
+        void deserializeLater(BDS nested, Consumer<Object> consumer) throws SerializationException {
+            try {
+                Object value = deserializeInternal(nested, pastInstances, unresolvedReferences, nested.getStringArray(TYPE_TABLE_TAG));
+                unresolvedReferences.add(new UnresolvedNested(consumer, value, true, -1));
+            } catch (CannotDeserializeYet e) {
+                unresolvedReferences.add(new UnresolvedNested(consumer, null, false, e.refId));
+            }
+        }
+    }
+
+    /**
+     * Serializes a range of elements, splitting it in halves while it is bigger than {@link BDSUtil#PARALLEL_CHUNK_SIZE}.
+     */
+    private static class ElementsTask extends RecursiveAction {
+        private final Object[] elements;
+        private final BDS[] items;
+        private final int start, end;
+        private final BackrefFixer fixer;
+
+        private ElementsTask(Object[] elements, BDS[] items, int start, int end, BackrefFixer fixer) {
+            this.elements = elements;
+            this.items = items;
+            this.start = start;
+            this.end = end;
+            this.fixer = fixer;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > PARALLEL_CHUNK_SIZE) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new ElementsTask(elements, items, start, middle, fixer), new ElementsTask(elements, items, middle, end, fixer));
+                return;
+            }
+            for (int i = start; i < end; i++) {
+                try {
+                    items[i] = serializeInternal2("Item" + i, elements[i], fixer);
+                } catch (SerializationException e) {
+                    throw new ParallelSerializationException(e);
+                }
+            }
+        }
+    }
+
+    private static class ParallelSerializationException extends RuntimeException {
+        private ParallelSerializationException(SerializationException cause) {
+            super(cause);
+        }
+    }
+
+    private static class WrittenObject {
+        final Object instance;
+        final BDS bds;
+        int id;
+
+        private WrittenObject(Object instance, BDS bds, int id) {
+            this.instance = instance;
+            this.bds = bds;
+            this.id = id;
         }
     }
 
@@ -711,6 +1379,31 @@ public class BDSUtil {
         }
     }
 
+    private static class UnresolvedMap extends UnresolvedReference {
+        final Map map;
+        final Object[] keys;
+        final Object[] values;
+
+        private UnresolvedMap(Map map, Object[] keys, Object[] values) {
+            this.map = map;
+            this.keys = keys;
+            this.values = values;
+        }
+    }
+
+    private static class UnresolvedNested extends UnresolvedReference {
+        final Consumer<Object> consumer;
+        final Object value;
+        final boolean resolved;
+
+        private UnresolvedNested(Consumer<Object> consumer, Object value, boolean resolved, int refId) {
+            this.consumer = consumer;
+            this.value = value;
+            this.resolved = resolved;
+            this.refId = refId;
+        }
+    }
+
     private static class CannotDeserializeYet extends Exception {
         final int refId;
 
@@ -1,14 +1,19 @@
 package io.github.cubedtear.jcubit.bds;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import io.github.cubedtear.jcubit.util.Nullable;
 import io.github.cubedtear.jcubit.util.Set2;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -549,155 +554,217 @@ public class BDSv2 {
      */
     public void writeToStream(OutputStream os) throws IOException {
         os.write(SIGNATURE);
-        writeInternal(os);
+        writeInternal(os, null, null);
     }
 
-    private void writeInternal(OutputStream os) throws IOException {
-        writeInt(os, getInternalSize());
+    /**
+     * Writes this BDSv2 to a byte array, replacing every nested BDSv2 which is identical to a previously written one
+     * by a reference to it. When parsed, both will be the same instance.
+     * <p>
+     * Useful for highly redundant data, as both the written data and the parsed BDSv2 are smaller.
+     *
+     * @return A byte array containing this BDSv2, serialized.
+     * @see BDSv2#writeDeduplicatedToStream(OutputStream)
+     */
+    public byte[] writeDeduplicated() {
+        return write(null, true);
+    }
+
+    /**
+     * Writes this BDSv2 to a byte array, with the given options.
+     *
+     * @param schema      If not null, the elements declared in this schema are identified by their tag instead of their name.
+     *                    The same schema (or a compatible one) must be given to {@link BDSv2#parse(byte[], BDSv2Schema)}.
+     * @param deduplicate Whether to replace nested BDSv2s identical to previously written ones by a reference to them.
+     * @return A byte array containing this BDSv2, serialized.
+     * @see BDSv2Schema
+     * @see BDSv2#writeDeduplicated()
+     */
+    public byte[] write(@Nullable BDSv2Schema schema, boolean deduplicate) {
+        if (schema == null && !deduplicate) return write();
+        GrowableOutput out = new GrowableOutput(BufferPool.SHARED);
+        out.write(SIGNATURE, 0, SIGNATURE.length);
+        try {
+            writeInternal(out, deduplicate ? new Deduplicator() : null, schema);
+            return out.toByteArray();
+        } catch (IOException ignored) {
+            throw new AssertionError("GrowableOutput cannot throw IOException");
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Writes this BDSv2 to an OutputStream, with the given options.
+     *
+     * @see BDSv2#write(BDSv2Schema, boolean)
+     */
+    public void writeToStream(OutputStream os, @Nullable BDSv2Schema schema, boolean deduplicate) throws IOException {
+        os.write(write(schema, deduplicate));
+    }
+
+    /**
+     * Writes this BDSv2 to an OutputStream, replacing every nested BDSv2 which is identical to a previously written one
+     * by a reference to it.
+     *
+     * @see BDSv2#writeDeduplicated()
+     */
+    public void writeDeduplicatedToStream(OutputStream os) throws IOException {
+        writeToStream(os, null, true);
+    }
+
+    /**
+     * Writes the contents of this BDSv2. If a Deduplicator or a BDSv2Schema are given, {@code os} must be a
+     * {@link GrowableOutput}, since the size of the contents is only known once they have been written.
+     */
+    private void writeInternal(OutputStream os, @Nullable Deduplicator dedup, @Nullable BDSv2Schema schema) throws IOException {
+        int index = -1, start = -1;
+        if (dedup == null && schema == null) {
+            writeInt(os, getInternalSize());
+        } else {
+            if (dedup != null) index = dedup.begin();
+            start = ((GrowableOutput) os).reserveLength();
+        }
 
         // region ... Normal elements ...
 
         for (Map.Entry<String, Byte> e : this.bytes.entrySet()) {
-            writeByte(os, BDSv2Type.BYTE.getSignature(false));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.BYTE.getSignature(false), e.getKey(), schema);
             writeByte(os, e.getValue());
         }
 
         for (Map.Entry<String, Short> e : this.shorts.entrySet()) {
-            writeByte(os, BDSv2Type.SHORT.getSignature(false));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.SHORT.getSignature(false), e.getKey(), schema);
             writeShort(os, e.getValue());
         }
         for (Map.Entry<String, Character> e : this.chars.entrySet()) {
-            writeByte(os, BDSv2Type.CHAR.getSignature(false));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.CHAR.getSignature(false), e.getKey(), schema);
             writeChar(os, e.getValue());
         }
         for (Map.Entry<String, Integer> e : this.ints.entrySet()) {
-            writeByte(os, BDSv2Type.INT.getSignature(false));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.INT.getSignature(false), e.getKey(), schema);
             writeInt(os, e.getValue());
         }
         for (Map.Entry<String, Long> e : this.longs.entrySet()) {
-            writeByte(os, BDSv2Type.LONG.getSignature(false));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.LONG.getSignature(false), e.getKey(), schema);
             writeLong(os, e.getValue());
         }
         for (Map.Entry<String, Float> e : this.floats.entrySet()) {
-            writeByte(os, BDSv2Type.FLOAT.getSignature(false));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.FLOAT.getSignature(false), e.getKey(), schema);
             writeFloat(os, e.getValue());
         }
         for (Map.Entry<String, Double> e : this.doubles.entrySet()) {
-            writeByte(os, BDSv2Type.DOUBLE.getSignature(false));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.DOUBLE.getSignature(false), e.getKey(), schema);
             writeDouble(os, e.getValue());
         }
         for (Map.Entry<String, Set2<String, byte[]>> e : this.strings.entrySet()) {
-            writeByte(os, BDSv2Type.STRING.getSignature(false));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.STRING.getSignature(false), e.getKey(), schema);
             writeString(os, e.getValue().getU());
         }
         for (Map.Entry<String, BDSv2> e : this.bdss.entrySet()) {
-            writeByte(os, BDSv2Type.BDS.getSignature(false));
-            writeString(os, e.getKey());
-            e.getValue().writeInternal(os);
+            writeHeader(os, BDSv2Type.BDS.getSignature(false), e.getKey(), schema);
+            e.getValue().writeInternal(os, dedup, schema);
         }
 
         // endregion
         // region ... Array types ...
 
         for (Map.Entry<String, byte[]> e : this.byteArrays.entrySet()) {
-            writeByte(os, BDSv2Type.BYTE.getSignature(true));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.BYTE.getSignature(true), e.getKey(), schema);
             writeInt(os, e.getValue().length);
             for (byte b : e.getValue()) writeByte(os, b);
         }
 
         for (Map.Entry<String, short[]> e : this.shortArrays.entrySet()) {
-            writeByte(os, BDSv2Type.SHORT.getSignature(true));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.SHORT.getSignature(true), e.getKey(), schema);
             writeInt(os, e.getValue().length);
             for (short b : e.getValue()) writeShort(os, b);
         }
         for (Map.Entry<String, char[]> e : this.charArrays.entrySet()) {
-            writeByte(os, BDSv2Type.CHAR.getSignature(true));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.CHAR.getSignature(true), e.getKey(), schema);
             writeInt(os, e.getValue().length);
             for (char b : e.getValue()) writeChar(os, b);
         }
         for (Map.Entry<String, int[]> e : this.intArrays.entrySet()) {
-            writeByte(os, BDSv2Type.INT.getSignature(true));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.INT.getSignature(true), e.getKey(), schema);
             writeInt(os, e.getValue().length);
             for (int b : e.getValue()) writeInt(os, b);
         }
         for (Map.Entry<String, long[]> e : this.longArrays.entrySet()) {
-            writeByte(os, BDSv2Type.LONG.getSignature(true));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.LONG.getSignature(true), e.getKey(), schema);
             writeInt(os, e.getValue().length);
             for (long b : e.getValue()) writeLong(os, b);
         }
         for (Map.Entry<String, float[]> e : this.floatArrays.entrySet()) {
-            writeByte(os, BDSv2Type.FLOAT.getSignature(true));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.FLOAT.getSignature(true), e.getKey(), schema);
             writeInt(os, e.getValue().length);
             for (float b : e.getValue()) writeFloat(os, b);
         }
         for (Map.Entry<String, double[]> e : this.doubleArrays.entrySet()) {
-            writeByte(os, BDSv2Type.DOUBLE.getSignature(true));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.DOUBLE.getSignature(true), e.getKey(), schema);
             writeInt(os, e.getValue().length);
             for (double b : e.getValue()) writeDouble(os, b);
         }
         for (Map.Entry<String, Set2<String, byte[]>[]> e : this.stringArrays.entrySet()) {
-            writeByte(os, BDSv2Type.STRING.getSignature(true));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.STRING.getSignature(true), e.getKey(), schema);
             writeInt(os, e.getValue().length);
             for (Set2<String, byte[]> b : e.getValue()) writeString(os, b.getU());
         }
         for (Map.Entry<String, BDSv2[]> e : this.bdsArrays.entrySet()) {
-            writeByte(os, BDSv2Type.BDS.getSignature(true));
-            writeString(os, e.getKey());
+            writeHeader(os, BDSv2Type.BDS.getSignature(true), e.getKey(), schema);
             writeInt(os, e.getValue().length);
-            for (BDSv2 b : e.getValue()) b.writeInternal(os);
+            for (BDSv2 b : e.getValue()) b.writeInternal(os, dedup, schema);
         }
 
         // endregion
+
+        if (start != -1) ((GrowableOutput) os).patchLength(start);
+        if (dedup != null) dedup.end((GrowableOutput) os, index, start);
+    }
+
+    private static void writeHeader(OutputStream os, byte signature, String name, @Nullable BDSv2Schema schema) throws IOException {
+        int tag = schema != null ? schema.getTag(name, signature) : -1;
+        if (tag != -1) {
+            writeByte(os, BDSv2Type.tagged(signature));
+            writeShort(os, (short) tag);
+        } else {
+            writeByte(os, signature);
+            writeString(os, name);
+        }
     }
 
     // region ... Internal writers ...
-    private static void writeString(OutputStream os, String s) throws IOException {
+    static void writeString(OutputStream os, String s) throws IOException {
         writeString(os, s.getBytes("UTF-8"));
     }
 
-    private static void writeString(OutputStream os, byte[] data) throws IOException {
+    static void writeString(OutputStream os, byte[] data) throws IOException {
         writeInt(os, data.length);
         os.write(data);
     }
 
-    private static void writeByte(OutputStream os, byte s) throws IOException {
+    static void writeByte(OutputStream os, byte s) throws IOException {
         os.write(s);
     }
 
-    private static void writeShort(OutputStream os, short s) throws IOException {
+    static void writeShort(OutputStream os, short s) throws IOException {
         os.write(s >> 8);
         os.write(s);
     }
 
-    private static void writeChar(OutputStream os, char s) throws IOException {
+    static void writeChar(OutputStream os, char s) throws IOException {
         os.write(s >> 8);
         os.write(s);
     }
 
-    private static void writeInt(OutputStream os, int s) throws IOException {
+    static void writeInt(OutputStream os, int s) throws IOException {
         os.write(s >> 24);
         os.write(s >> 16);
         os.write(s >> 8);
         os.write(s);
     }
 
-    private static void writeLong(OutputStream os, long s) throws IOException {
+    static void writeLong(OutputStream os, long s) throws IOException {
         os.write((byte) (s >> 56));
         os.write((byte) (s >> 48));
         os.write((byte) (s >> 40));
@@ -708,11 +775,11 @@ public class BDSv2 {
         os.write((byte) s);
     }
 
-    private static void writeFloat(OutputStream os, float s) throws IOException {
+    static void writeFloat(OutputStream os, float s) throws IOException {
         writeInt(os, Float.floatToIntBits(s));
     }
 
-    private static void writeDouble(OutputStream os, double s) throws IOException {
+    static void writeDouble(OutputStream os, double s) throws IOException {
         writeLong(os, Double.doubleToLongBits(s));
     }
 
@@ -733,6 +800,20 @@ public class BDSv2 {
         return BDSv2.parse(data, 0);
     }
 
+    /**
+     * Parses a BDSv2 written with a schema, from the beginning of the given byte array.
+     * Elements whose tag is not declared in the schema (or has a different type) are skipped.
+     *
+     * @param data   The array from which to parse.
+     * @param schema The schema used to name the tagged elements.
+     * @return The parsed BDSv2.
+     * @throws SerializationException If there is an error deserializing.
+     * @see BDSv2#write(BDSv2Schema, boolean)
+     */
+    public static BDSv2 parse(byte[] data, @Nullable BDSv2Schema schema) throws SerializationException {
+        return BDSv2.parse(data, 0, schema);
+    }
+
     /**
      * Parses a BDSv2 from the beginning of the given byte array.
      *
@@ -742,12 +823,26 @@ public class BDSv2 {
      * @throws SerializationException If there is an error deserializing.
      */
     public static BDSv2 parse(byte[] data, int offset) throws SerializationException {
+        return BDSv2.parse(data, offset, null);
+    }
+
+    /**
+     * Parses a BDSv2 written with a schema, from the given byte array.
+     *
+     * @param data   The array from which to parse.
+     * @param offset The index of the array from which to start parsing the BDSv2.
+     * @param schema The schema used to name the tagged elements.
+     * @return The parsed BDSv2.
+     * @throws SerializationException If there is an error deserializing.
+     * @see BDSv2#parse(byte[], BDSv2Schema)
+     */
+    public static BDSv2 parse(byte[] data, int offset, @Nullable BDSv2Schema schema) throws SerializationException {
         try {
             for (byte b : SIGNATURE) {
                 if (data[offset++] != b)
                     throw new SerializationException("BDSv2 signature not present, or incorrect!");
             }
-            return parseInternal(data, new int[]{offset});
+            return parseInternal(data, new int[]{offset}, Lists.<BDSv2>newArrayList(), schema);
         } catch (IOException e) {
             throw new AssertionError("BAIS never throws an IO Exception");
         }
@@ -761,35 +856,74 @@ public class BDSv2 {
      * @throws SerializationException If there is an error deserializing.
      */
     public static BDSv2 parseStream(InputStream is) throws IOException, SerializationException {
-        for (byte b : SIGNATURE)
-            if ((byte) is.read() != b) throw new SerializationException("BDSv2 signature not present, or incorrect!");
-        int length = 0;
-        for (int i = 0; i < 4; i++) {
-            final byte read = (byte) (is.read() & 0xFF);
-            length = (length << 8) | read & 0xFF;
-        }
+        return parseStream(is, null);
+    }
+
+    /**
+     * Parses a BDSv2 written with a schema, from an InputStream.
+     *
+     * @param is     The InputStream to parse from.
+     * @param schema The schema used to name the tagged elements.
+     * @return The parsed BDSv2.
+     * @throws SerializationException If there is an error deserializing.
+     * @see BDSv2#parse(byte[], BDSv2Schema)
+     */
+    public static BDSv2 parseStream(InputStream is, @Nullable BDSv2Schema schema) throws IOException, SerializationException {
+        byte[] header = new byte[SIGNATURE.length + 4];
+        readFully(is, header, 0, header.length);
+        for (int i = 0; i < SIGNATURE.length; i++)
+            if (header[i] != SIGNATURE[i]) throw new SerializationException("BDSv2 signature not present, or incorrect!");
+        int length = parseInt(header, new int[]{SIGNATURE.length});
+        if (length < 0) throw new SerializationException("Invalid BDSv2 length: " + length);
         byte[] data = new byte[length + 4];
+        System.arraycopy(header, SIGNATURE.length, data, 0, 4);
+        readFully(is, data, 4, length);
 
-        data[0] = (byte) ((length & 0xFF000000) >> 24);
-        data[1] = (byte) ((length & 0xFF0000) >> 16);
-        data[2] = (byte) ((length & 0xFF00) >> 8);
-        data[3] = (byte) (length & 0xFF);
+        return parseInternal(data, new int[]{0}, Lists.<BDSv2>newArrayList(), schema);
+    }
 
-        for (int i = 0; i < length; i++) {
-            data[i + 4] = (byte) is.read();
+    /**
+     * Reads exactly {@code length} bytes from the stream.
+     *
+     * @throws EOFException If the stream ends before.
+     */
+    static void readFully(InputStream is, byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = is.read(data, offset, length);
+            if (read < 0) throw new EOFException("Unexpected end of stream");
+            offset += read;
+            length -= read;
         }
-
-        return parseInternal(data, new int[]{0});
     }
 
-    private static BDSv2 parseInternal(byte[] is, int[] offset) throws IOException, SerializationException {
-        BDSv2 bds = new BDSv2();
-        int initialOffset = offset[0];
+    private static BDSv2 parseInternal(byte[] is, int[] offset, List<BDSv2> parsed, @Nullable BDSv2Schema schema) throws IOException, SerializationException {
         int length = parseInt(is, offset);
+        if (length < 0) {
+            // Reference to an identical BDSv2, written by writeDeduplicated()
+            int reference = -length - 1;
+            if (reference >= parsed.size())
+                throw new SerializationException("Reference to an unknown BDSv2: " + reference);
+            return parsed.get(reference);
+        }
+        BDSv2 bds = new BDSv2();
+        parsed.add(bds);
 
-        while (initialOffset + length > offset[0]) {
+        int end = offset[0] + length;
+        while (end > offset[0]) {
             byte signature = is[offset[0]++];
-            String name = parseString(is, offset);
+            String name;
+            if (BDSv2Type.isTagged(signature)) {
+                int tag = parseShort(is, offset) & 0xFFFF;
+                signature = BDSv2Type.untagged(signature);
+                name = schema != null ? schema.getName(tag, signature) : null;
+                if (name == null) {
+                    // Unknown field, maybe written with a newer version of the schema
+                    skipValue(is, offset, signature, parsed, schema);
+                    continue;
+                }
+            } else {
+                name = parseString(is, offset);
+            }
             BDSv2Type type = BDSv2Type.fromSignature(signature);
             if (type == null)
                 throw new SerializationException("Unknown type signature: " + Integer.toHexString(signature & 0xFF));
@@ -883,11 +1017,11 @@ public class BDSv2 {
                         int arrayLength = parseInt(is, offset);
                         BDSv2[] array = new BDSv2[arrayLength];
                         for (int i = 0; i < arrayLength; i++) {
-                            array[i] = parseInternal(is, offset);
+                            array[i] = parseInternal(is, offset, parsed, schema);
                         }
                         bds.addBDSs(name, array);
                     } else {
-                        bds.addBDS(name, BDSv2.parseInternal(is, offset));
+                        bds.addBDS(name, BDSv2.parseInternal(is, offset, parsed, schema));
                     }
                     break;
                 case STRING:
@@ -907,38 +1041,82 @@ public class BDSv2 {
         return bds;
     }
 
+    /**
+     * Skips the value of an element with the given signature.
+     * If {@code parsed} is not null, nested BDSv2s are parsed and discarded instead, so that references to
+     * deduplicated BDSv2s after them can be resolved.
+     */
+    static void skipValue(byte[] is, int[] offset, byte signature, @Nullable List<BDSv2> parsed, @Nullable BDSv2Schema schema) throws IOException, SerializationException {
+        BDSv2Type type = BDSv2Type.fromSignature(signature);
+        if (type == null)
+            throw new SerializationException("Unknown type signature: " + Integer.toHexString(signature & 0xFF));
+        int count = BDSv2Type.isArray(signature) ? parseInt(is, offset) : 1;
+        switch (type) {
+            case BYTE:
+                offset[0] += count;
+                break;
+            case CHAR:
+            case SHORT:
+                offset[0] += 2 * count;
+                break;
+            case INT:
+            case FLOAT:
+                offset[0] += 4 * count;
+                break;
+            case LONG:
+            case DOUBLE:
+                offset[0] += 8 * count;
+                break;
+            case STRING:
+                for (int i = 0; i < count; i++) {
+                    int length = parseInt(is, offset);
+                    offset[0] += length;
+                }
+                break;
+            case BDS:
+                for (int i = 0; i < count; i++) {
+                    if (parsed != null) parseInternal(is, offset, parsed, schema);
+                    else {
+                        int length = parseInt(is, offset);
+                        offset[0] += Math.max(0, length);
+                    }
+                }
+                break;
+        }
+    }
+
     // region ... Internal parsers ...
 
-    private static byte parseByte(byte[] is, int[] offset) throws IOException {
+    static byte parseByte(byte[] is, int[] offset) throws IOException {
         return is[offset[0]++];
     }
 
-    private static char parseChar(byte[] is, int[] offset) throws IOException {
+    static char parseChar(byte[] is, int[] offset) throws IOException {
         return (char) (is[offset[0]++] << 8 | (is[offset[0]++] & 0xFF));
     }
 
-    private static short parseShort(byte[] is, int[] offset) throws IOException {
+    static short parseShort(byte[] is, int[] offset) throws IOException {
         return (short) (is[offset[0]++] << 8 | (is[offset[0]++] & 0xFF));
     }
 
-    private static int parseInt(byte[] is, int[] offset) throws IOException {
+    static int parseInt(byte[] is, int[] offset) throws IOException {
         return is[offset[0]++] << 24 | (is[offset[0]++] & 0xFF) << 16 | (is[offset[0]++] & 0xFF) << 8 | (is[offset[0]++] & 0xFF);
     }
 
-    private static long parseLong(byte[] is, int[] offset) throws IOException {
+    static long parseLong(byte[] is, int[] offset) throws IOException {
         return ((long) is[offset[0]++]) << 56L | (is[offset[0]++] & 0xFFL) << 48L | (is[offset[0]++] & 0xFFL) << 40L | (is[offset[0]++] & 0xFFL) << 32 |
                 (is[offset[0]++] & 0xFFL) << 24 | (is[offset[0]++] & 0xFFL) << 16 | (is[offset[0]++] & 0xFFL) << 8 | (is[offset[0]++] & 0xFFL);
     }
 
-    private static float parseFloat(byte[] is, int[] offset) throws IOException {
+    static float parseFloat(byte[] is, int[] offset) throws IOException {
         return Float.intBitsToFloat(parseInt(is, offset));
     }
 
-    private static double parseDouble(byte[] is, int[] offset) throws IOException {
+    static double parseDouble(byte[] is, int[] offset) throws IOException {
         return Double.longBitsToDouble(parseLong(is, offset));
     }
 
-    private static String parseString(byte[] is, int[] offset) throws IOException, SerializationException {
+    static String parseString(byte[] is, int[] offset) throws IOException, SerializationException {
         int length = parseInt(is, offset);
         String s = new String(is, offset[0], length, StandardCharsets.UTF_8);
         offset[0] += length;
@@ -949,7 +1127,134 @@ public class BDSv2 {
 
     // endregion
 
-    private enum BDSv2Type {
+    /**
+     * Keeps track of the nested BDSv2s already written, by their canonical contents: their bytes, with each nested
+     * BDSv2 replaced by the id of its own canonical contents. Thus, a BDSv2 is identical to a previous one even if
+     * their children were written differently (e.g. inline in the first one, and as references in the second one).
+     * Each BDSv2 is numbered in the order it starts, which is the same order in which they are parsed.
+     */
+    private static class Deduplicator {
+        private final List<Written> written = Lists.newArrayList();
+        private final Map<Integer, Written> byId = Maps.newHashMap();
+        private final Map<Contents, Integer> ids = Maps.newHashMap();
+        /**
+         * The children of each BDSv2 being written, from the outermost one.
+         */
+        private final List<List<Child>> open = Lists.newArrayList();
+
+        private int begin() {
+            written.add(null);
+            open.add(Lists.<Child>newArrayList());
+            return written.size() - 1;
+        }
+
+        private void end(GrowableOutput out, int index, int start) {
+            List<Child> children = open.remove(open.size() - 1);
+            int end = out.size();
+            Contents contents = contents(out.getData(), start + 4, end, children);
+            Integer id = ids.get(contents);
+            if (id == null) {
+                id = ids.size();
+                ids.put(contents, id);
+            }
+            Written w = byId.get(id);
+            if (w != null) {
+                // Forget this BDSv2 and its children, and write a reference instead
+                for (int i = written.size() - 1; i >= index; i--) {
+                    Written removed = written.remove(i);
+                    if (removed != null && byId.get(removed.id) == removed) byId.remove(removed.id);
+                }
+                out.truncate(start);
+                try {
+                    writeInt(out, -w.index - 1);
+                } catch (IOException ignored) {
+                    throw new AssertionError("GrowableOutput cannot throw IOException");
+                }
+                end = out.size();
+            } else {
+                w = new Written(index, id);
+                written.set(index, w);
+                byId.put(id, w);
+            }
+            if (!open.isEmpty()) open.get(open.size() - 1).add(new Child(start, end, id));
+        }
+
+        /**
+         * Returns the canonical contents of the bytes between {@code start} and {@code end}, whose nested BDSv2s are
+         * {@code children}. As the bytes can be parsed, replacing each child by its 4-byte id keeps them unambiguous.
+         */
+        private static Contents contents(byte[] data, int start, int end, List<Child> children) {
+            int length = end - start;
+            for (Child c : children) length -= c.end - c.start - 4;
+            byte[] bytes = new byte[length];
+            int from = start, to = 0;
+            for (Child c : children) {
+                System.arraycopy(data, from, bytes, to, c.start - from);
+                to += c.start - from;
+                bytes[to++] = (byte) (c.id >> 24);
+                bytes[to++] = (byte) (c.id >> 16);
+                bytes[to++] = (byte) (c.id >> 8);
+                bytes[to++] = (byte) c.id;
+                from = c.end;
+            }
+            System.arraycopy(data, from, bytes, to, end - from);
+            return new Contents(bytes);
+        }
+
+        private static class Contents {
+            private final byte[] bytes;
+            private final int hash;
+
+            private Contents(byte[] bytes) {
+                this.bytes = bytes;
+                long hash = hash(bytes);
+                this.hash = (int) (hash ^ (hash >>> 32));
+            }
+
+            /**
+             * 64-bit FNV-1a hash.
+             */
+            private static long hash(byte[] data) {
+                long hash = 0xcbf29ce484222325L;
+                for (byte b : data) {
+                    hash ^= b & 0xFF;
+                    hash *= 0x100000001b3L;
+                }
+                return hash;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                return o instanceof Contents && Arrays.equals(bytes, ((Contents) o).bytes);
+            }
+
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+        }
+
+        private static class Child {
+            private final int start, end, id;
+
+            private Child(int start, int end, int id) {
+                this.start = start;
+                this.end = end;
+                this.id = id;
+            }
+        }
+
+        private static class Written {
+            private final int index, id;
+
+            private Written(int index, int id) {
+                this.index = index;
+                this.id = id;
+            }
+        }
+    }
+
+    enum BDSv2Type {
         BYTE((byte) 0x01),
         CHAR((byte) 0x02),
         SHORT((byte) 0x03),
@@ -962,6 +1267,7 @@ public class BDSv2 {
 
         private static final Map<Byte, BDSv2Type> TYPE_MAP;
         private static final byte ARRAY_MASK = 0x20;
+        private static final byte TAG_MASK = 0x40;
 
         static {
             Map<Byte, BDSv2Type> types = Maps.newHashMap();
@@ -978,11 +1284,23 @@ public class BDSv2 {
             this.signature = signature;
         }
 
-        private static BDSv2Type fromSignature(byte signature) {
-            return TYPE_MAP.get(signature);
+        static BDSv2Type fromSignature(byte signature) {
+            return TYPE_MAP.get(untagged(signature));
+        }
+
+        static boolean isTagged(byte signature) {
+            return (signature & TAG_MASK) != 0;
+        }
+
+        static byte tagged(byte signature) {
+            return (byte) (signature | TAG_MASK);
+        }
+
+        static byte untagged(byte signature) {
+            return (byte) (signature & ~TAG_MASK);
         }
 
-        private static boolean isArray(byte signature) {
+        static boolean isArray(byte signature) {
             return (signature & ARRAY_MASK) != 0;
         }
 
@@ -0,0 +1,593 @@
+package io.github.cubedtear.jcubit.bds;
+
+import com.google.common.collect.Lists;
+import io.github.cubedtear.jcubit.bds.BDSv2.BDSv2Type;
+import io.github.cubedtear.jcubit.util.API;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Builds a BDSv2 directly in its serialized form, in direct (off-heap) memory.
+ * <p>
+ * Unlike {@link BDSv2}, which keeps every element on the heap until it is written, each element is encoded as soon as
+ * it is added, into an arena made of a chain of direct ByteBuffers. Therefore, very big documents can be built
+ * without keeping them on the heap, and written to a channel without copying them:
+ * <pre>{@code
+ * BDSv2Builder builder = new BDSv2Builder();
+ * builder.addString("name", "export");
+ * builder.beginBDSArray("rows", rows.size());
+ * for (Row row : rows) {
+ *     builder.beginBDS().addLong("id", row.id).addDoubles("values", row.values).endBDS();
+ * }
+ * builder.endBDSArray();
+ * builder.writeTo(fileChannel);
+ * }</pre>
+ * The result is exactly what {@link BDSv2#write()} would write, so it can be parsed with {@link BDSv2#parse(byte[])}
+ * or {@link BDSv2#parseStream(java.io.InputStream)}. Elements are written in the order they are added.
+ * <p>
+ * Once written, the builder can be {@link BDSv2Builder#reset() reset} to build another document reusing the same
+ * memory. This class is not thread-safe.
+ *
+ * @author Aritz Lopez
+ */
+public class BDSv2Builder {
+
+    /**
+     * Size of each ByteBuffer of the arena, unless other is specified in the constructor.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final int chunkSize;
+    private final List<ByteBuffer> chunks = Lists.newArrayList();
+    private final Deque<Frame> frames = new ArrayDeque<>();
+    private int current;
+    private long size;
+    private boolean finished;
+
+    /**
+     * Creates a builder whose arena is made of ByteBuffers of {@link BDSv2Builder#DEFAULT_CHUNK_SIZE} bytes.
+     */
+    @API
+    public BDSv2Builder() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a builder whose arena is made of ByteBuffers of the given size.
+     *
+     * @param chunkSize The size of each ByteBuffer, in bytes. Must be at least 8 bytes.
+     */
+    @API
+    public BDSv2Builder(int chunkSize) {
+        if (chunkSize < 8) throw new IllegalArgumentException("Chunk size must be at least 8 bytes!");
+        this.chunkSize = chunkSize;
+        reset();
+    }
+
+    /**
+     * Discards the document being built, to start a new one. The memory of the arena is kept, and reused.
+     */
+    @API
+    public void reset() {
+        for (ByteBuffer chunk : chunks) chunk.clear();
+        frames.clear();
+        current = 0;
+        size = 0;
+        finished = false;
+        put(BDSv2.SIGNATURE, 0, BDSv2.SIGNATURE.length);
+        frames.push(Frame.bds(this));
+    }
+
+    // region ... Adders ...
+
+    /**
+     * Encodes the given byte, with the given name, into the current BDSv2.
+     *
+     * @param name  The name to give the byte.
+     * @param value The byte to store.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addByte(String name, byte value) {
+        header(BDSv2Type.BYTE, false, name);
+        ensure(1).put(value);
+        size += 1;
+        return this;
+    }
+
+    /**
+     * Encodes the given short, with the given name, into the current BDSv2.
+     *
+     * @param name  The name to give the short.
+     * @param value The short to store.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addShort(String name, short value) {
+        header(BDSv2Type.SHORT, false, name);
+        ensure(2).putShort(value);
+        size += 2;
+        return this;
+    }
+
+    /**
+     * Encodes the given char, with the given name, into the current BDSv2.
+     *
+     * @param name  The name to give the char.
+     * @param value The char to store.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addChar(String name, char value) {
+        header(BDSv2Type.CHAR, false, name);
+        ensure(2).putChar(value);
+        size += 2;
+        return this;
+    }
+
+    /**
+     * Encodes the given int, with the given name, into the current BDSv2.
+     *
+     * @param name  The name to give the int.
+     * @param value The int to store.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addInt(String name, int value) {
+        header(BDSv2Type.INT, false, name);
+        putInt(value);
+        return this;
+    }
+
+    /**
+     * Encodes the given long, with the given name, into the current BDSv2.
+     *
+     * @param name  The name to give the long.
+     * @param value The long to store.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addLong(String name, long value) {
+        header(BDSv2Type.LONG, false, name);
+        ensure(8).putLong(value);
+        size += 8;
+        return this;
+    }
+
+    /**
+     * Encodes the given float, with the given name, into the current BDSv2.
+     *
+     * @param name  The name to give the float.
+     * @param value The float to store.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addFloat(String name, float value) {
+        header(BDSv2Type.FLOAT, false, name);
+        ensure(4).putFloat(value);
+        size += 4;
+        return this;
+    }
+
+    /**
+     * Encodes the given double, with the given name, into the current BDSv2.
+     *
+     * @param name  The name to give the double.
+     * @param value The double to store.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addDouble(String name, double value) {
+        header(BDSv2Type.DOUBLE, false, name);
+        ensure(8).putDouble(value);
+        size += 8;
+        return this;
+    }
+
+    /**
+     * Encodes the given String, with the given name, into the current BDSv2.
+     *
+     * @param name  The name to give the String.
+     * @param value The String to store.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addString(String name, String value) {
+        header(BDSv2Type.STRING, false, name);
+        putString(value);
+        return this;
+    }
+
+    /**
+     * Encodes the given byte array, with the given name, into the current BDSv2.
+     *
+     * @param name   The name to give the byte array.
+     * @param values The byte array to store.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addBytes(String name, byte[] values) {
+        header(BDSv2Type.BYTE, true, name);
+        putInt(values.length);
+        put(values, 0, values.length);
+        return this;
+    }
+
+    /**
+     * Encodes the given short array, with the given name, into the current BDSv2.
+     *
+     * @param name   The name to give the short array.
+     * @param values The short array to store.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addShorts(String name, short[] values) {
+        header(BDSv2Type.SHORT, true, name);
+        putInt(values.length);
+        for (int i = 0; i < values.length; ) {
+            int n = Math.min(values.length - i, space(2) / 2);
+            chunks.get(current).asShortBuffer().put(values, i, n);
+            advance(n * 2);
+            i += n;
+        }
+        return this;
+    }
+
+    /**
+     * Encodes the given char array, with the given name, into the current BDSv2.
+     *
+     * @param name   The name to give the char array.
+     * @param values The char array to store.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addChars(String name, char[] values) {
+        header(BDSv2Type.CHAR, true, name);
+        putInt(values.length);
+        for (int i = 0; i < values.length; ) {
+            int n = Math.min(values.length - i, space(2) / 2);
+            chunks.get(current).asCharBuffer().put(values, i, n);
+            advance(n * 2);
+            i += n;
+        }
+        return this;
+    }
+
+    /**
+     * Encodes the given int array, with the given name, into the current BDSv2.
+     *
+     * @param name   The name to give the int array.
+     * @param values The int array to store.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addInts(String name, int[] values) {
+        header(BDSv2Type.INT, true, name);
+        putInt(values.length);
+        for (int i = 0; i < values.length; ) {
+            int n = Math.min(values.length - i, space(4) / 4);
+            chunks.get(current).asIntBuffer().put(values, i, n);
+            advance(n * 4);
+            i += n;
+        }
+        return this;
+    }
+
+    /**
+     * Encodes the given long array, with the given name, into the current BDSv2.
+     *
+     * @param name   The name to give the long array.
+     * @param values The long array to store.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addLongs(String name, long[] values) {
+        header(BDSv2Type.LONG, true, name);
+        putInt(values.length);
+        for (int i = 0; i < values.length; ) {
+            int n = Math.min(values.length - i, space(8) / 8);
+            chunks.get(current).asLongBuffer().put(values, i, n);
+            advance(n * 8);
+            i += n;
+        }
+        return this;
+    }
+
+    /**
+     * Encodes the given float array, with the given name, into the current BDSv2.
+     *
+     * @param name   The name to give the float array.
+     * @param values The float array to store.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addFloats(String name, float[] values) {
+        header(BDSv2Type.FLOAT, true, name);
+        putInt(values.length);
+        for (int i = 0; i < values.length; ) {
+            int n = Math.min(values.length - i, space(4) / 4);
+            chunks.get(current).asFloatBuffer().put(values, i, n);
+            advance(n * 4);
+            i += n;
+        }
+        return this;
+    }
+
+    /**
+     * Encodes the given double array, with the given name, into the current BDSv2.
+     *
+     * @param name   The name to give the double array.
+     * @param values The double array to store.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addDoubles(String name, double[] values) {
+        header(BDSv2Type.DOUBLE, true, name);
+        putInt(values.length);
+        for (int i = 0; i < values.length; ) {
+            int n = Math.min(values.length - i, space(8) / 8);
+            chunks.get(current).asDoubleBuffer().put(values, i, n);
+            advance(n * 8);
+            i += n;
+        }
+        return this;
+    }
+
+    /**
+     * Encodes the given String array, with the given name, into the current BDSv2.
+     *
+     * @param name   The name to give the String array.
+     * @param values The String array to store.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addStrings(String name, String[] values) {
+        header(BDSv2Type.STRING, true, name);
+        putInt(values.length);
+        for (String value : values) putString(value);
+        return this;
+    }
+
+    /**
+     * Writes an already built BDSv2 as an element of the document.
+     *
+     * @param name  The name of the element.
+     * @param value The BDSv2 to add.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder addBDS(String name, BDSv2 value) {
+        header(BDSv2Type.BDS, false, name);
+        byte[] data = value.write();
+        put(data, BDSv2.SIGNATURE.length, data.length - BDSv2.SIGNATURE.length);
+        return this;
+    }
+
+    // endregion
+
+    // region ... Nesting ...
+
+    /**
+     * Starts a nested BDSv2 with the given name. Every element added until the matching {@link BDSv2Builder#endBDS()}
+     * is added to the nested BDSv2.
+     *
+     * @param name The name of the nested BDSv2.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder beginBDS(String name) {
+        header(BDSv2Type.BDS, false, name);
+        frames.push(Frame.bds(this));
+        return this;
+    }
+
+    /**
+     * Starts the next element of the BDSv2 array started with {@link BDSv2Builder#beginBDSArray(String, int)}.
+     *
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder beginBDS() {
+        Frame array = frames.peek();
+        if (finished || array.remaining < 0)
+            throw new IllegalStateException("Unnamed BDSv2s can only be added to BDSv2 arrays");
+        if (array.remaining == 0) throw new IllegalStateException("BDSv2 array is already full");
+        array.remaining--;
+        frames.push(Frame.bds(this));
+        return this;
+    }
+
+    /**
+     * Ends the BDSv2 started with {@link BDSv2Builder#beginBDS(String)} or {@link BDSv2Builder#beginBDS()}.
+     *
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder endBDS() {
+        if (finished || frames.size() < 2 || frames.peek().remaining >= 0)
+            throw new IllegalStateException("There is no nested BDSv2 to end");
+        frames.pop().patchLength(this);
+        return this;
+    }
+
+    /**
+     * Starts an array of nested BDSv2s with the given name. Each of its {@code length} elements must be started with
+     * {@link BDSv2Builder#beginBDS()}, and ended with {@link BDSv2Builder#endBDS()}.
+     *
+     * @param name   The name of the array.
+     * @param length The number of elements of the array.
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder beginBDSArray(String name, int length) {
+        if (length < 0) throw new IllegalArgumentException("Length cannot be negative!");
+        header(BDSv2Type.BDS, true, name);
+        putInt(length);
+        frames.push(Frame.array(length));
+        return this;
+    }
+
+    /**
+     * Ends the array started with {@link BDSv2Builder#beginBDSArray(String, int)}.
+     *
+     * @return this builder, to chain calls.
+     */
+    @API
+    public BDSv2Builder endBDSArray() {
+        Frame array = frames.peek();
+        if (finished || array.remaining < 0) throw new IllegalStateException("There is no BDSv2 array to end");
+        if (array.remaining > 0) throw new IllegalStateException(array.remaining + " elements of the BDSv2 array are missing");
+        frames.pop();
+        return this;
+    }
+
+    // endregion
+
+    // region ... Output ...
+
+    /**
+     * @return the number of bytes written so far.
+     */
+    @API
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Finishes the document, and returns the ByteBuffers containing it. No elements can be added afterwards.
+     * The ByteBuffers are views of the arena, so they are only valid until the builder is {@link BDSv2Builder#reset() reset}.
+     *
+     * @return the serialized document, split in ByteBuffers.
+     */
+    @API
+    public ByteBuffer[] finish() {
+        if (!finished) {
+            if (frames.size() != 1) throw new IllegalStateException("There are " + (frames.size() - 1) + " unfinished nested BDSv2s or arrays");
+            frames.pop().patchLength(this);
+            finished = true;
+        }
+        ByteBuffer[] result = new ByteBuffer[current + 1];
+        for (int i = 0; i <= current; i++) {
+            ByteBuffer chunk = chunks.get(i).duplicate();
+            if (i == current) chunk.flip();
+            result[i] = chunk.asReadOnlyBuffer();
+        }
+        return result;
+    }
+
+    /**
+     * Finishes the document, and writes it to the given channel with gathering writes, without copying it.
+     *
+     * @param channel The channel to write to. Must be in blocking mode.
+     * @return the number of bytes written.
+     * @throws IOException If the channel throws an exception.
+     */
+    @API
+    public long writeTo(GatheringByteChannel channel) throws IOException {
+        ByteBuffer[] buffers = finish();
+        long written = 0;
+        while (written < size) written += channel.write(buffers);
+        return written;
+    }
+
+    // endregion
+
+    // region ... Internal writers ...
+
+    private void header(BDSv2Type type, boolean array, String name) {
+        Frame frame = frames.peek();
+        if (finished) throw new IllegalStateException("The document has already been finished");
+        if (frame.remaining >= 0) throw new IllegalStateException("Only unnamed BDSv2s can be added to BDSv2 arrays");
+        ensure(1).put(type.getSignature(array));
+        size += 1;
+        putString(name);
+    }
+
+    private void putString(String value) {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        putInt(data.length);
+        put(data, 0, data.length);
+    }
+
+    private void putInt(int value) {
+        ensure(4).putInt(value);
+        size += 4;
+    }
+
+    private void put(byte[] data, int offset, int length) {
+        while (length > 0) {
+            int n = Math.min(length, space(1));
+            chunks.get(current).put(data, offset, n);
+            offset += n;
+            length -= n;
+            size += n;
+        }
+    }
+
+    /**
+     * Returns the current chunk, after making sure it has room for {@code bytes} contiguous bytes.
+     */
+    private ByteBuffer ensure(int bytes) {
+        space(bytes);
+        return chunks.get(current);
+    }
+
+    /**
+     * Moves to the next chunk if the current one has no room for {@code bytes} bytes, and returns the room left in it.
+     */
+    private int space(int bytes) {
+        if (chunks.isEmpty()) chunks.add(ByteBuffer.allocateDirect(chunkSize));
+        ByteBuffer chunk = chunks.get(current);
+        if (chunk.remaining() >= bytes) return chunk.remaining();
+        chunk.flip();
+        current++;
+        if (current == chunks.size()) chunks.add(ByteBuffer.allocateDirect(chunkSize));
+        return chunks.get(current).remaining();
+    }
+
+    private void advance(int bytes) {
+        ByteBuffer chunk = chunks.get(current);
+        chunk.position(chunk.position() + bytes);
+        size += bytes;
+    }
+
+    // endregion
+
+    /**
+     * A BDSv2 whose length has yet to be written, or a BDSv2 array whose elements have yet to be added.
+     */
+    private static class Frame {
+        private int chunk, offset;
+        private long start;
+        private int remaining = -1;
+
+        private static Frame bds(BDSv2Builder builder) {
+            Frame frame = new Frame();
+            ByteBuffer buffer = builder.ensure(4);
+            frame.chunk = builder.current;
+            frame.offset = buffer.position();
+            buffer.position(frame.offset + 4);
+            builder.size += 4;
+            frame.start = builder.size;
+            return frame;
+        }
+
+        private static Frame array(int length) {
+            Frame frame = new Frame();
+            frame.remaining = length;
+            return frame;
+        }
+
+        private void patchLength(BDSv2Builder builder) {
+            long length = builder.size - start;
+            if (length > Integer.MAX_VALUE) throw new IllegalStateException("BDSv2 too big: " + length + " bytes");
+            builder.chunks.get(chunk).putInt(offset, (int) length);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package io.github.cubedtear.jcubit.bds;
+
+import io.github.cubedtear.jcubit.util.API;
+import io.github.cubedtear.jcubit.util.Consumer;
+import io.github.cubedtear.jcubit.util.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Sends and receives BDSv2 messages through NIO channels (e.g. a {@link SocketChannel}, or both ends of a
+ * {@link java.nio.channels.Pipe}). Each message is framed by the signature and size that start every written BDSv2,
+ * so no extra framing is added.
+ * <p>
+ * Works with both blocking and non-blocking channels. With non-blocking channels, it is meant to be used from a
+ * {@link java.nio.channels.Selector} loop:
+ * <pre>{@code
+ * if (key.isReadable() && channel.read(handler) == -1) key.cancel();
+ * if (key.isWritable() && channel.flush()) key.interestOps(SelectionKey.OP_READ);
+ * }</pre>
+ * Messages are decoded incrementally, from a single reusable buffer, as their bytes arrive.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Aritz Lopez
+ */
+public class BDSv2Channel implements Closeable {
+
+    /**
+     * Maximum size (in bytes) of the messages that are received, unless other is specified in the constructor.
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = BDSv2.SIGNATURE.length + 4;
+
+    @Nullable
+    private final ReadableByteChannel source;
+    @Nullable
+    private final GatheringByteChannel sink;
+    private final int maxMessageSize;
+    private final Deque<GrowableOutput> pending = new ArrayDeque<>();
+    private final Deque<ByteBuffer> pendingBuffers = new ArrayDeque<>();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+
+    /**
+     * Creates a BDSv2Channel which sends and receives messages through the given socket.
+     *
+     * @param channel The socket.
+     */
+    @API
+    public BDSv2Channel(SocketChannel channel) {
+        this(channel, channel);
+    }
+
+    /**
+     * Creates a BDSv2Channel which receives messages from {@code source}, and sends them to {@code sink}.
+     *
+     * @param source The channel to read from, or {@code null} if this BDSv2Channel will only send messages.
+     * @param sink   The channel to write to, or {@code null} if this BDSv2Channel will only receive messages.
+     */
+    @API
+    public BDSv2Channel(@Nullable ReadableByteChannel source, @Nullable GatheringByteChannel sink) {
+        this(source, sink, DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * Creates a BDSv2Channel which receives messages from {@code source}, and sends them to {@code sink}.
+     *
+     * @param source         The channel to read from, or {@code null} if this BDSv2Channel will only send messages.
+     * @param sink           The channel to write to, or {@code null} if this BDSv2Channel will only receive messages.
+     * @param maxMessageSize The maximum size of the received messages, in bytes.
+     *                       Bigger messages are rejected, instead of allocating a buffer for them.
+     */
+    @API
+    public BDSv2Channel(@Nullable ReadableByteChannel source, @Nullable GatheringByteChannel sink, int maxMessageSize) {
+        if (maxMessageSize < HEADER_SIZE) throw new IllegalArgumentException("Max message size must be at least " + HEADER_SIZE);
+        this.source = source;
+        this.sink = sink;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    // region ... Writing ...
+
+    /**
+     * Queues the given messages, and writes as many queued messages as possible with a single gathering write.
+     * In blocking mode, every queued message will have been written when this method returns.
+     *
+     * @param messages The messages to send.
+     * @return whether every queued message has been written. If not, {@link BDSv2Channel#flush()} must be called
+     * once the channel is writable again.
+     * @throws IOException If the channel throws an exception.
+     */
+    @API
+    public boolean write(BDSv2... messages) throws IOException {
+        for (BDSv2 message : messages) queue(message);
+        return flush();
+    }
+
+    /**
+     * Queues the given message, to be written by the next call to {@link BDSv2Channel#flush()}.
+     *
+     * @param message The message to send.
+     */
+    @API
+    public void queue(BDSv2 message) {
+        if (sink == null) throw new IllegalStateException("This channel cannot send messages");
+        GrowableOutput out = new GrowableOutput(BufferPool.SHARED);
+        try {
+            message.writeToStream(out);
+        } catch (IOException e) {
+            throw new AssertionError("GrowableOutput cannot throw IOException");
+        }
+        pending.add(out);
+        pendingBuffers.add(out.toByteBuffer());
+    }
+
+    /**
+     * Writes the queued messages, with gathering writes.
+     *
+     * @return whether every queued message has been written.
+     * @throws IOException If the channel throws an exception.
+     */
+    @API
+    public boolean flush() throws IOException {
+        while (!pending.isEmpty()) {
+            if (sink == null) throw new IllegalStateException("This channel cannot send messages");
+            ByteBuffer[] buffers = pendingBuffers.toArray(new ByteBuffer[pendingBuffers.size()]);
+            long written = sink.write(buffers);
+            while (!pending.isEmpty() && !pendingBuffers.peek().hasRemaining()) {
+                pendingBuffers.poll();
+                pending.poll().release();
+            }
+            if (written == 0 && !pending.isEmpty()) return false; // The channel is full, in non-blocking mode
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether there are messages waiting to be written.
+     *
+     * @return {@code true} if {@link BDSv2Channel#flush()} has to be called again.
+     */
+    @API
+    public boolean hasPendingWrites() {
+        return !pending.isEmpty();
+    }
+
+    // endregion
+
+    // region ... Reading ...
+
+    /**
+     * Reads the available bytes from the channel, and gives every message completed by them to the handler.
+     * Incomplete messages are kept until the rest of their bytes are read.
+     * <p>
+     * In non-blocking mode, this method reads only what is available. In blocking mode, it blocks until some bytes are read.
+     *
+     * @param handler The handler of the received messages.
+     * @return the number of messages received, or -1 if the end of the stream has been reached.
+     * @throws IOException            If the channel throws an exception, or the stream ends in the middle of a message.
+     * @throws SerializationException If a message is not a correct BDSv2, or is bigger than the maximum message size.
+     */
+    @API
+    public int read(Consumer<BDSv2> handler) throws IOException, SerializationException {
+        if (source == null) throw new IllegalStateException("This channel cannot receive messages");
+        int read = source.read(readBuffer);
+        int received = 0;
+        readBuffer.flip();
+        try {
+            while (true) {
+                int size = nextMessageSize();
+                if (size == -1 || readBuffer.remaining() < size) break;
+                handler.accept(BDSv2.parse(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position()));
+                readBuffer.position(readBuffer.position() + size);
+                received++;
+            }
+        } finally {
+            readBuffer.compact();
+        }
+        if (read == -1) {
+            if (readBuffer.position() != 0) throw new IOException("The stream ended in the middle of a message");
+            if (received == 0) return -1;
+        }
+        return received;
+    }
+
+    /**
+     * Returns the size of the next message in the (flipped) read buffer, or -1 if its header has not been read yet.
+     * The buffer is enlarged if the message does not fit in it.
+     */
+    private int nextMessageSize() throws SerializationException {
+        if (readBuffer.remaining() < HEADER_SIZE) return -1;
+        int position = readBuffer.position();
+        for (int i = 0; i < BDSv2.SIGNATURE.length; i++) {
+            if (readBuffer.get(position + i) != BDSv2.SIGNATURE[i])
+                throw new SerializationException("BDSv2 signature not present, or incorrect!");
+        }
+        long size = HEADER_SIZE + (readBuffer.getInt(position + BDSv2.SIGNATURE.length) & 0xFFFFFFFFL);
+        if (size > maxMessageSize)
+            throw new SerializationException("Message of " + size + " bytes is bigger than the maximum (" + maxMessageSize + ")");
+        if (size > readBuffer.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max((int) size, Math.min(maxMessageSize, readBuffer.capacity() * 2)));
+            bigger.put(readBuffer);
+            bigger.flip();
+            readBuffer = bigger;
+        }
+        return (int) size;
+    }
+
+    // endregion
+
+    /**
+     * Closes both channels. Messages which have not been written yet are discarded.
+     *
+     * @throws IOException If any of the channels throws an exception.
+     */
+    @Override
+    public void close() throws IOException {
+        for (GrowableOutput out : pending) out.release();
+        pending.clear();
+        pendingBuffers.clear();
+        try {
+            if (source != null) source.close();
+        } finally {
+            if (sink != null && sink != source) sink.close();
+        }
+    }
+}
@@ -0,0 +1,1012 @@
+package io.github.cubedtear.jcubit.bds;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import io.github.cubedtear.jcubit.bds.BDSv2.BDSv2Type;
+import io.github.cubedtear.jcubit.util.API;
+import io.github.cubedtear.jcubit.util.Nullable;
+import io.github.cubedtear.jcubit.util.ReflectionUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * Serializes objects directly into the BDSv2 binary format, and reads them back, without building
+ * an intermediate {@link BDS} or {@link BDSv2} tree.
+ * <p>
+ * The output is a valid BDSv2 (it can be read with {@link BDSv2#parse(byte[])}), and supports the same
+ * types as {@link BDSUtil}: primitives and their wrappers, Strings, Enums, Files, Dates, arrays, Collections,
+ * Maps, and any object with a public empty constructor. Types with a {@link Serializer} registered in
+ * {@link BDSUtil#registerSerializer(Class, Serializer)} are written with it.
+ * <p>
+ * Objects are numbered in the order they are written, so references to already written objects
+ * (including cycles) are stored as that number, and restored when reading.
+ *
+ * @author Aritz Lopez
+ * @see BDSUtil
+ */
+public class BDSv2Mapper {
+
+    private static final String CLASS_TAG = "0__class";
+    private static final String REF_TAG = "0__ref";
+    private static final String VALUE_TAG = "0__value";
+    private static final String TYPE_TAG = "0__type";
+    private static final String ITEMS_TAG = "0__items";
+    private static final String KEYS_TAG = "0__keys";
+    private static final String VALUES_TAG = "0__values";
+    private static final String KEY_TYPE_TAG = "0__keyType";
+    private static final String COMPARATOR_TAG = "0__comparator";
+    private static final String NAME_TAG = "0__name";
+
+    /**
+     * Number of elements written in each chunk by {@link BDSv2Mapper#writeAll(Iterable, OutputStream)}.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    /**
+     * Types which are always written by value, and therefore never referenced.
+     */
+    private static final Set<String> VALUE_TYPES = ImmutableSet.of("Boolean", "Byte", "Char", "Short", "Int", "Long", "Float", "Double", "String", "Enum");
+
+    private BDSv2Mapper() {
+    }
+
+    /**
+     * Serializes the given object into a byte array in the BDSv2 format.
+     *
+     * @param instance The object to serialize.
+     * @return The serialized object.
+     * @throws SerializationException If an exception occurs when serializing (e.g. a field cannot be accessed).
+     */
+    @API
+    public static byte[] write(@Nullable Object instance) throws SerializationException {
+        Output out = new Output();
+        try {
+            writeDocument(out, instance);
+            return out.toByteArray();
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Serializes the given object into the given OutputStream, in the BDSv2 format.
+     *
+     * @param instance The object to serialize.
+     * @param os       The stream to write to.
+     * @throws IOException            If the stream throws an exception.
+     * @throws SerializationException If an exception occurs when serializing (e.g. a field cannot be accessed).
+     */
+    @API
+    public static void write(@Nullable Object instance, OutputStream os) throws IOException, SerializationException {
+        Output out = new Output();
+        try {
+            writeDocument(out, instance);
+            out.writeTo(os);
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Deserializes an object written with {@link BDSv2Mapper#write(Object)}.
+     *
+     * @param data The serialized object.
+     * @return The deserialized object.
+     * @throws SerializationException If an exception occurs when deserializing (e.g. a class cannot be found).
+     */
+    @Nullable
+    @API
+    public static Object read(byte[] data) throws SerializationException {
+        return read(data, 0);
+    }
+
+    /**
+     * Deserializes an object written with {@link BDSv2Mapper#write(Object)}.
+     *
+     * @param data   The array containing the serialized object.
+     * @param offset The index of the array at which the serialized object starts.
+     * @return The deserialized object.
+     * @throws SerializationException If an exception occurs when deserializing (e.g. a class cannot be found).
+     */
+    @Nullable
+    @API
+    public static Object read(byte[] data, int offset) throws SerializationException {
+        for (byte b : BDSv2.SIGNATURE) {
+            if (data[offset++] != b) throw new SerializationException("BDSv2 signature not present, or incorrect!");
+        }
+        try {
+            return readValue(new Input(data, offset));
+        } catch (IOException e) {
+            throw new AssertionError("Parsing from an array never throws an IO Exception");
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new SerializationException("Error deserializing: Unexpected end of data", e);
+        }
+    }
+
+    /**
+     * Deserializes an object written with {@link BDSv2Mapper#write(Object, OutputStream)}.
+     * Only the bytes of the object are read from the stream.
+     *
+     * @param is The stream to read from.
+     * @return The deserialized object.
+     * @throws IOException            If the stream throws an exception, or ends before the object.
+     * @throws SerializationException If an exception occurs when deserializing (e.g. a class cannot be found).
+     */
+    @Nullable
+    @API
+    public static Object read(InputStream is) throws IOException, SerializationException {
+        byte[] header = new byte[BDSv2.SIGNATURE.length + 4];
+        BDSv2.readFully(is, header, 0, header.length);
+        int length = BDSv2.parseInt(header, new int[]{BDSv2.SIGNATURE.length});
+        byte[] data = Arrays.copyOf(header, header.length + length);
+        BDSv2.readFully(is, data, header.length, length);
+        return read(data, 0);
+    }
+
+    /**
+     * Writes every element of the given Iterable to the given stream, in chunks of {@link BDSv2Mapper#DEFAULT_CHUNK_SIZE} elements.
+     *
+     * @param elements The elements to write.
+     * @param os       The stream to write to.
+     * @return The number of elements written.
+     * @throws IOException            If the stream throws an exception.
+     * @throws SerializationException If an exception occurs when serializing an element.
+     * @see BDSv2Mapper#writeAll(Iterator, OutputStream, int)
+     */
+    @API
+    public static long writeAll(Iterable<?> elements, OutputStream os) throws IOException, SerializationException {
+        return writeAll(elements.iterator(), os, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Writes every element of the given Iterator to the given stream, without keeping more than one chunk in memory.
+     * <p>
+     * Each chunk is written as an independent BDSv2 containing an array of (at most) {@code chunkSize} elements,
+     * and the end of the sequence is marked with a BDSv2 containing {@code null}. Therefore, references between
+     * objects are only kept inside the same chunk.
+     *
+     * @param elements  The elements to write. They are consumed lazily, as the chunks are written.
+     * @param os        The stream to write to.
+     * @param chunkSize The maximum number of elements in each chunk.
+     * @return The number of elements written.
+     * @throws IOException            If the stream throws an exception.
+     * @throws SerializationException If an exception occurs when serializing an element.
+     * @see BDSv2Mapper#readAll(InputStream)
+     */
+    @API
+    public static long writeAll(Iterator<?> elements, OutputStream os, int chunkSize) throws IOException, SerializationException {
+        if (chunkSize <= 0) throw new IllegalArgumentException("Chunk size must be positive!");
+        Object[] chunk = new Object[chunkSize];
+        long count = 0;
+        while (elements.hasNext()) {
+            int size = 0;
+            while (size < chunkSize && elements.hasNext()) chunk[size++] = elements.next();
+            write(size == chunkSize ? chunk : Arrays.copyOf(chunk, size), os);
+            count += size;
+        }
+        write(null, os);
+        return count;
+    }
+
+    /**
+     * Lazily reads the elements written with {@link BDSv2Mapper#writeAll(Iterator, OutputStream, int)}.
+     * Only one chunk is kept in memory at a time, and the next one is read from the stream when needed.
+     * <p>
+     * As Iterators cannot throw checked exceptions, errors reading from the stream or deserializing are
+     * thrown as an {@link IllegalStateException} whose cause is the original exception.
+     *
+     * @param is The stream to read from.
+     * @return An Iterator over the elements.
+     */
+    @API
+    public static Iterator<Object> readAll(InputStream is) {
+        return new ChunkIterator(is);
+    }
+
+    // region ... Writers ...
+
+    private static void writeDocument(Output out, @Nullable Object instance) throws SerializationException {
+        try {
+            out.write(BDSv2.SIGNATURE);
+            writeValue(out, instance);
+        } catch (IOException e) {
+            throw new AssertionError("Output never throws an IO Exception");
+        }
+    }
+
+    private static void writeValue(Output out, @Nullable Object instance) throws IOException, SerializationException {
+        int lengthIndex = out.reserveLength();
+        if (instance != null) {
+            Integer id = out.ids.get(instance);
+            if (id != null) {
+                writeHeader(out, BDSv2Type.INT, false, REF_TAG);
+                BDSv2.writeInt(out, id);
+            } else {
+                writeObject(out, instance);
+            }
+        }
+        out.patchLength(lengthIndex);
+    }
+
+    private static void writeObject(Output out, Object instance) throws IOException, SerializationException {
+        Class<?> type = instance.getClass();
+        Serializer serializer = BDSUtil.getSerializer(type.getName());
+        if (serializer != null) {
+            writeClass(out, type.getName(), instance);
+            BDS bds = new BDS(VALUE_TAG);
+            serializer.serialize(instance, bds, BDSUtil.BackrefFixer.create());
+            writeHeader(out, BDSv2Type.BDS, false, VALUE_TAG);
+            writeBDS(out, bds, false);
+        } else if (type == Boolean.class) {
+            writeClass(out, "Boolean", instance);
+            writeHeader(out, BDSv2Type.BYTE, false, VALUE_TAG);
+            BDSv2.writeByte(out, (byte) ((Boolean) instance ? 1 : 0));
+        } else if (type == Byte.class) {
+            writeClass(out, "Byte", instance);
+            writeHeader(out, BDSv2Type.BYTE, false, VALUE_TAG);
+            BDSv2.writeByte(out, (Byte) instance);
+        } else if (type == Character.class) {
+            writeClass(out, "Char", instance);
+            writeHeader(out, BDSv2Type.CHAR, false, VALUE_TAG);
+            BDSv2.writeChar(out, (Character) instance);
+        } else if (type == Short.class) {
+            writeClass(out, "Short", instance);
+            writeHeader(out, BDSv2Type.SHORT, false, VALUE_TAG);
+            BDSv2.writeShort(out, (Short) instance);
+        } else if (type == Integer.class) {
+            writeClass(out, "Int", instance);
+            writeHeader(out, BDSv2Type.INT, false, VALUE_TAG);
+            BDSv2.writeInt(out, (Integer) instance);
+        } else if (type == Long.class) {
+            writeClass(out, "Long", instance);
+            writeHeader(out, BDSv2Type.LONG, false, VALUE_TAG);
+            BDSv2.writeLong(out, (Long) instance);
+        } else if (type == Float.class) {
+            writeClass(out, "Float", instance);
+            writeHeader(out, BDSv2Type.FLOAT, false, VALUE_TAG);
+            BDSv2.writeFloat(out, (Float) instance);
+        } else if (type == Double.class) {
+            writeClass(out, "Double", instance);
+            writeHeader(out, BDSv2Type.DOUBLE, false, VALUE_TAG);
+            BDSv2.writeDouble(out, (Double) instance);
+        } else if (type == String.class) {
+            writeClass(out, "String", instance);
+            writeHeader(out, BDSv2Type.STRING, false, VALUE_TAG);
+            BDSv2.writeString(out, (String) instance);
+        } else if (instance instanceof File) {
+            writeClass(out, "File", instance);
+            writeHeader(out, BDSv2Type.STRING, false, VALUE_TAG);
+            BDSv2.writeString(out, ((File) instance).getPath());
+        } else if (instance instanceof Date) {
+            writeClass(out, "Date", instance);
+            writeHeader(out, BDSv2Type.LONG, false, VALUE_TAG);
+            BDSv2.writeLong(out, ((Date) instance).getTime());
+        } else if (instance instanceof Enum) {
+            writeClass(out, "Enum", instance);
+            writeHeader(out, BDSv2Type.STRING, false, TYPE_TAG);
+            BDSv2.writeString(out, ((Enum<?>) instance).getDeclaringClass().getName());
+            writeHeader(out, BDSv2Type.STRING, false, VALUE_TAG);
+            BDSv2.writeString(out, ((Enum<?>) instance).name());
+        } else if (type.isArray()) {
+            writeClass(out, "Array", instance);
+            writeHeader(out, BDSv2Type.STRING, false, TYPE_TAG);
+            BDSv2.writeString(out, type.getComponentType().getName());
+            writeArray(out, instance);
+        } else if (instance instanceof Collection) {
+            writeClass(out, "Collection", instance);
+            writeHeader(out, BDSv2Type.STRING, false, TYPE_TAG);
+            BDSv2.writeString(out, type.getName());
+            writeItems(out, ITEMS_TAG, (Collection<?>) instance);
+        } else if (instance instanceof Map) {
+            writeClass(out, "Map", instance);
+            writeHeader(out, BDSv2Type.STRING, false, TYPE_TAG);
+            BDSv2.writeString(out, type.getName());
+            if (instance instanceof EnumMap) {
+                writeHeader(out, BDSv2Type.STRING, false, KEY_TYPE_TAG);
+                BDSv2.writeString(out, BDSUtil.getEnumKeyType((EnumMap<?, ?>) instance).getName());
+            } else if (instance instanceof SortedMap && ((SortedMap<?, ?>) instance).comparator() != null) {
+                writeHeader(out, BDSv2Type.BDS, false, COMPARATOR_TAG);
+                writeValue(out, ((SortedMap<?, ?>) instance).comparator());
+            }
+            Map<?, ?> map = (Map<?, ?>) instance;
+            List<Object> keys = Lists.newArrayListWithCapacity(map.size());
+            List<Object> values = Lists.newArrayListWithCapacity(map.size());
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                keys.add(e.getKey());
+                values.add(e.getValue());
+            }
+            writeItems(out, KEYS_TAG, keys);
+            writeItems(out, VALUES_TAG, values);
+        } else {
+            writeClass(out, type.getName(), instance);
+            for (Field f : ReflectionUtil.getAllFields(type)) {
+                if (f.isAnnotationPresent(Transient.class) || Modifier.isStatic(f.getModifiers())) continue;
+                makeAccessible(f, type);
+                try {
+                    Object value = f.get(instance);
+                    if (value == null) continue;
+                    if (f.getType().isPrimitive()) writePrimitive(out, f.getName(), f.getType(), value);
+                    else {
+                        writeHeader(out, BDSv2Type.BDS, false, f.getName());
+                        writeValue(out, value);
+                    }
+                } catch (IllegalAccessException e) {
+                    throw new SerializationException("Field " + f.getName() + " of class " + type.getName() + " could not be accessed!", e);
+                }
+            }
+        }
+    }
+
+    private static void writeClass(Output out, String className, Object instance) throws IOException {
+        if (!VALUE_TYPES.contains(className)) out.ids.put(instance, out.ids.size());
+        writeHeader(out, BDSv2Type.STRING, false, CLASS_TAG);
+        BDSv2.writeString(out, className);
+    }
+
+    private static void writeHeader(Output out, BDSv2Type type, boolean array, String name) throws IOException {
+        BDSv2.writeByte(out, type.getSignature(array));
+        BDSv2.writeString(out, name);
+    }
+
+    private static void writePrimitive(Output out, String name, Class<?> type, Object value) throws IOException {
+        if (type == boolean.class) {
+            writeHeader(out, BDSv2Type.BYTE, false, name);
+            BDSv2.writeByte(out, (byte) ((Boolean) value ? 1 : 0));
+        } else if (type == byte.class) {
+            writeHeader(out, BDSv2Type.BYTE, false, name);
+            BDSv2.writeByte(out, (Byte) value);
+        } else if (type == char.class) {
+            writeHeader(out, BDSv2Type.CHAR, false, name);
+            BDSv2.writeChar(out, (Character) value);
+        } else if (type == short.class) {
+            writeHeader(out, BDSv2Type.SHORT, false, name);
+            BDSv2.writeShort(out, (Short) value);
+        } else if (type == int.class) {
+            writeHeader(out, BDSv2Type.INT, false, name);
+            BDSv2.writeInt(out, (Integer) value);
+        } else if (type == long.class) {
+            writeHeader(out, BDSv2Type.LONG, false, name);
+            BDSv2.writeLong(out, (Long) value);
+        } else if (type == float.class) {
+            writeHeader(out, BDSv2Type.FLOAT, false, name);
+            BDSv2.writeFloat(out, (Float) value);
+        } else if (type == double.class) {
+            writeHeader(out, BDSv2Type.DOUBLE, false, name);
+            BDSv2.writeDouble(out, (Double) value);
+        }
+    }
+
+    private static void writeArray(Output out, Object array) throws IOException, SerializationException {
+        if (array instanceof boolean[]) {
+            boolean[] values = (boolean[]) array;
+            writeHeader(out, BDSv2Type.BYTE, true, VALUE_TAG);
+            BDSv2.writeInt(out, values.length);
+            for (boolean b : values) BDSv2.writeByte(out, (byte) (b ? 1 : 0));
+        } else if (array instanceof byte[]) {
+            byte[] values = (byte[]) array;
+            writeHeader(out, BDSv2Type.BYTE, true, VALUE_TAG);
+            BDSv2.writeInt(out, values.length);
+            out.write(values);
+        } else if (array instanceof char[]) {
+            char[] values = (char[]) array;
+            writeHeader(out, BDSv2Type.CHAR, true, VALUE_TAG);
+            BDSv2.writeInt(out, values.length);
+            for (char c : values) BDSv2.writeChar(out, c);
+        } else if (array instanceof short[]) {
+            short[] values = (short[]) array;
+            writeHeader(out, BDSv2Type.SHORT, true, VALUE_TAG);
+            BDSv2.writeInt(out, values.length);
+            for (short s : values) BDSv2.writeShort(out, s);
+        } else if (array instanceof int[]) {
+            int[] values = (int[]) array;
+            writeHeader(out, BDSv2Type.INT, true, VALUE_TAG);
+            BDSv2.writeInt(out, values.length);
+            for (int i : values) BDSv2.writeInt(out, i);
+        } else if (array instanceof long[]) {
+            long[] values = (long[]) array;
+            writeHeader(out, BDSv2Type.LONG, true, VALUE_TAG);
+            BDSv2.writeInt(out, values.length);
+            for (long l : values) BDSv2.writeLong(out, l);
+        } else if (array instanceof float[]) {
+            float[] values = (float[]) array;
+            writeHeader(out, BDSv2Type.FLOAT, true, VALUE_TAG);
+            BDSv2.writeInt(out, values.length);
+            for (float f : values) BDSv2.writeFloat(out, f);
+        } else if (array instanceof double[]) {
+            double[] values = (double[]) array;
+            writeHeader(out, BDSv2Type.DOUBLE, true, VALUE_TAG);
+            BDSv2.writeInt(out, values.length);
+            for (double d : values) BDSv2.writeDouble(out, d);
+        } else {
+            writeItems(out, ITEMS_TAG, Arrays.asList((Object[]) array));
+        }
+    }
+
+    private static void writeItems(Output out, String name, Collection<?> items) throws IOException, SerializationException {
+        writeHeader(out, BDSv2Type.BDS, true, name);
+        BDSv2.writeInt(out, items.size());
+        for (Object o : items) writeValue(out, o);
+    }
+
+    /**
+     * Writes the contents of a BDS produced by a {@link Serializer}.
+     */
+    private static void writeBDS(Output out, BDS bds, boolean named) throws IOException {
+        int lengthIndex = out.reserveLength();
+        if (named) {
+            writeHeader(out, BDSv2Type.STRING, false, NAME_TAG);
+            BDSv2.writeString(out, bds.getName());
+        }
+        for (String name : bds.getAllBytes()) {
+            writeHeader(out, BDSv2Type.BYTE, false, name);
+            BDSv2.writeByte(out, bds.getByte(name));
+        }
+        for (String name : bds.getAllChars()) {
+            writeHeader(out, BDSv2Type.CHAR, false, name);
+            BDSv2.writeChar(out, bds.getChar(name));
+        }
+        for (String name : bds.getAllShorts()) {
+            writeHeader(out, BDSv2Type.SHORT, false, name);
+            BDSv2.writeShort(out, bds.getShort(name));
+        }
+        for (String name : bds.getAllInts()) {
+            writeHeader(out, BDSv2Type.INT, false, name);
+            BDSv2.writeInt(out, bds.getInt(name));
+        }
+        for (String name : bds.getAllLongs()) {
+            writeHeader(out, BDSv2Type.LONG, false, name);
+            BDSv2.writeLong(out, bds.getLong(name));
+        }
+        for (String name : bds.getAllFloats()) {
+            writeHeader(out, BDSv2Type.FLOAT, false, name);
+            BDSv2.writeFloat(out, bds.getFloat(name));
+        }
+        for (String name : bds.getAllDoubles()) {
+            writeHeader(out, BDSv2Type.DOUBLE, false, name);
+            BDSv2.writeDouble(out, bds.getDouble(name));
+        }
+        for (String name : bds.getAllStrings()) {
+            writeHeader(out, BDSv2Type.STRING, false, name);
+            BDSv2.writeString(out, bds.getString(name));
+        }
+        for (String name : bds.getAllBDSs()) {
+            writeHeader(out, BDSv2Type.BDS, false, name);
+            writeBDS(out, bds.getBDS(name), false);
+        }
+        for (String name : bds.getAllByteArrays()) {
+            byte[] values = bds.getByteArray(name);
+            writeHeader(out, BDSv2Type.BYTE, true, name);
+            BDSv2.writeInt(out, values.length);
+            out.write(values);
+        }
+        for (String name : bds.getAllCharArrays()) {
+            char[] values = bds.getCharArray(name);
+            writeHeader(out, BDSv2Type.CHAR, true, name);
+            BDSv2.writeInt(out, values.length);
+            for (char c : values) BDSv2.writeChar(out, c);
+        }
+        for (String name : bds.getAllShortArrays()) {
+            short[] values = bds.getShortArray(name);
+            writeHeader(out, BDSv2Type.SHORT, true, name);
+            BDSv2.writeInt(out, values.length);
+            for (short s : values) BDSv2.writeShort(out, s);
+        }
+        for (String name : bds.getAllIntArrays()) {
+            int[] values = bds.getIntArray(name);
+            writeHeader(out, BDSv2Type.INT, true, name);
+            BDSv2.writeInt(out, values.length);
+            for (int i : values) BDSv2.writeInt(out, i);
+        }
+        for (String name : bds.getAllLongArrays()) {
+            long[] values = bds.getLongArray(name);
+            writeHeader(out, BDSv2Type.LONG, true, name);
+            BDSv2.writeInt(out, values.length);
+            for (long l : values) BDSv2.writeLong(out, l);
+        }
+        for (String name : bds.getAllFloatArrays()) {
+            float[] values = bds.getFloatArray(name);
+            writeHeader(out, BDSv2Type.FLOAT, true, name);
+            BDSv2.writeInt(out, values.length);
+            for (float f : values) BDSv2.writeFloat(out, f);
+        }
+        for (String name : bds.getAllDoubleArrays()) {
+            double[] values = bds.getDoubleArray(name);
+            writeHeader(out, BDSv2Type.DOUBLE, true, name);
+            BDSv2.writeInt(out, values.length);
+            for (double d : values) BDSv2.writeDouble(out, d);
+        }
+        for (String name : bds.getAllStringArrays()) {
+            String[] values = bds.getStringArray(name);
+            writeHeader(out, BDSv2Type.STRING, true, name);
+            BDSv2.writeInt(out, values.length);
+            for (String s : values) BDSv2.writeString(out, s);
+        }
+        for (String name : bds.getAllBDSArrays()) {
+            BDS[] values = bds.getBDSArray(name);
+            writeHeader(out, BDSv2Type.BDS, true, name);
+            BDSv2.writeInt(out, values.length);
+            // BDSv2 arrays do not have names for their elements, so they are kept inside each element
+            for (BDS b : values) writeBDS(out, b, true);
+        }
+        out.patchLength(lengthIndex);
+    }
+
+    // endregion
+
+    // region ... Readers ...
+
+    @Nullable
+    private static Object readValue(Input in) throws IOException, SerializationException {
+        int length = BDSv2.parseInt(in.data, in.offset);
+        int end = in.offset[0] + length;
+        if (length == 0) return null;
+
+        byte signature = BDSv2.parseByte(in.data, in.offset);
+        String name = BDSv2.parseString(in.data, in.offset);
+        Object result;
+        if (REF_TAG.equals(name) && signature == BDSv2Type.INT.getSignature(false)) {
+            int ref = BDSv2.parseInt(in.data, in.offset);
+            if (ref < 0 || ref >= in.objects.size())
+                throw new SerializationException("Error deserializing: Reference to unknown object " + ref);
+            result = in.objects.get(ref);
+        } else if (CLASS_TAG.equals(name) && signature == BDSv2Type.STRING.getSignature(false)) {
+            String type = BDSv2.parseString(in.data, in.offset);
+            int id = -1;
+            if (!VALUE_TYPES.contains(type)) {
+                id = in.objects.size();
+                in.objects.add(null);
+            }
+            result = readObject(in, type, id, end);
+            if (id != -1) in.objects.set(id, result);
+        } else {
+            throw new SerializationException("Error deserializing: BDSv2 was not in the correct format.");
+        }
+        in.offset[0] = end;
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object readObject(Input in, String type, int id, int end) throws IOException, SerializationException {
+        Serializer serializer = BDSUtil.getSerializer(type);
+        if (serializer != null) {
+            expect(in, BDSv2Type.BDS, false, VALUE_TAG);
+            return serializer.deserialize(readBDS(in, VALUE_TAG));
+        }
+        switch (type) {
+            case "Boolean":
+                expect(in, BDSv2Type.BYTE, false, VALUE_TAG);
+                return BDSv2.parseByte(in.data, in.offset) != 0;
+            case "Byte":
+                expect(in, BDSv2Type.BYTE, false, VALUE_TAG);
+                return BDSv2.parseByte(in.data, in.offset);
+            case "Char":
+                expect(in, BDSv2Type.CHAR, false, VALUE_TAG);
+                return BDSv2.parseChar(in.data, in.offset);
+            case "Short":
+                expect(in, BDSv2Type.SHORT, false, VALUE_TAG);
+                return BDSv2.parseShort(in.data, in.offset);
+            case "Int":
+                expect(in, BDSv2Type.INT, false, VALUE_TAG);
+                return BDSv2.parseInt(in.data, in.offset);
+            case "Long":
+                expect(in, BDSv2Type.LONG, false, VALUE_TAG);
+                return BDSv2.parseLong(in.data, in.offset);
+            case "Float":
+                expect(in, BDSv2Type.FLOAT, false, VALUE_TAG);
+                return BDSv2.parseFloat(in.data, in.offset);
+            case "Double":
+                expect(in, BDSv2Type.DOUBLE, false, VALUE_TAG);
+                return BDSv2.parseDouble(in.data, in.offset);
+            case "String":
+                expect(in, BDSv2Type.STRING, false, VALUE_TAG);
+                return BDSv2.parseString(in.data, in.offset);
+            case "File":
+                expect(in, BDSv2Type.STRING, false, VALUE_TAG);
+                return new File(BDSv2.parseString(in.data, in.offset));
+            case "Date":
+                expect(in, BDSv2Type.LONG, false, VALUE_TAG);
+                return new Date(BDSv2.parseLong(in.data, in.offset));
+            case "Enum": {
+                expect(in, BDSv2Type.STRING, false, TYPE_TAG);
+                String enumType = BDSv2.parseString(in.data, in.offset);
+                expect(in, BDSv2Type.STRING, false, VALUE_TAG);
+                String constant = BDSv2.parseString(in.data, in.offset);
+                try {
+                    return Enum.valueOf(Class.forName(enumType).asSubclass(Enum.class), constant);
+                } catch (ClassNotFoundException e) {
+                    throw new SerializationException("Error deserializing: Class " + enumType + " could not be found.", e);
+                } catch (ClassCastException | IllegalArgumentException e) {
+                    throw new SerializationException("Error deserializing: " + constant + " is not a constant of " + enumType, e);
+                }
+            }
+            case "Array":
+                expect(in, BDSv2Type.STRING, false, TYPE_TAG);
+                return readArray(in, BDSv2.parseString(in.data, in.offset), id);
+            case "Collection": {
+                expect(in, BDSv2Type.STRING, false, TYPE_TAG);
+                Collection collection = (Collection) newInstance(BDSv2.parseString(in.data, in.offset));
+                in.objects.set(id, collection);
+                expect(in, BDSv2Type.BDS, true, ITEMS_TAG);
+                int length = BDSv2.parseInt(in.data, in.offset);
+                for (int i = 0; i < length; i++) collection.add(readValue(in));
+                return collection;
+            }
+            case "Map":
+                return readMap(in, id);
+            default: {
+                Object result = newInstance(type);
+                in.objects.set(id, result);
+                Map<String, Field> fields = in.getFields(result.getClass());
+                while (in.offset[0] < end) {
+                    byte signature = BDSv2.parseByte(in.data, in.offset);
+                    String name = BDSv2.parseString(in.data, in.offset);
+                    Field f = fields.get(name);
+                    if (f == null || BDSv2Type.isArray(signature)) {
+                        // The field does not exist anymore
+                        BDSv2.skipValue(in.data, in.offset, signature, null, null);
+                        continue;
+                    }
+                    Object value = signature == BDSv2Type.BDS.getSignature(false) ? readValue(in) : readPrimitive(in, signature, f.getType());
+                    try {
+                        f.set(result, value);
+                    } catch (IllegalAccessException | IllegalArgumentException e) {
+                        throw new SerializationException("Error deserializing: Field " + name + " of class " + type + " could not be set.", e);
+                    }
+                }
+                return result;
+            }
+        }
+    }
+
+    private static Object readArray(Input in, String componentType, int id) throws IOException, SerializationException {
+        switch (componentType) {
+            case "boolean": {
+                expect(in, BDSv2Type.BYTE, true, VALUE_TAG);
+                boolean[] array = new boolean[BDSv2.parseInt(in.data, in.offset)];
+                for (int i = 0; i < array.length; i++) array[i] = BDSv2.parseByte(in.data, in.offset) != 0;
+                return array;
+            }
+            case "byte": {
+                expect(in, BDSv2Type.BYTE, true, VALUE_TAG);
+                int length = BDSv2.parseInt(in.data, in.offset);
+                byte[] array = Arrays.copyOfRange(in.data, in.offset[0], in.offset[0] + length);
+                in.offset[0] += length;
+                return array;
+            }
+            case "char": {
+                expect(in, BDSv2Type.CHAR, true, VALUE_TAG);
+                char[] array = new char[BDSv2.parseInt(in.data, in.offset)];
+                for (int i = 0; i < array.length; i++) array[i] = BDSv2.parseChar(in.data, in.offset);
+                return array;
+            }
+            case "short": {
+                expect(in, BDSv2Type.SHORT, true, VALUE_TAG);
+                short[] array = new short[BDSv2.parseInt(in.data, in.offset)];
+                for (int i = 0; i < array.length; i++) array[i] = BDSv2.parseShort(in.data, in.offset);
+                return array;
+            }
+            case "int": {
+                expect(in, BDSv2Type.INT, true, VALUE_TAG);
+                int[] array = new int[BDSv2.parseInt(in.data, in.offset)];
+                for (int i = 0; i < array.length; i++) array[i] = BDSv2.parseInt(in.data, in.offset);
+                return array;
+            }
+            case "long": {
+                expect(in, BDSv2Type.LONG, true, VALUE_TAG);
+                long[] array = new long[BDSv2.parseInt(in.data, in.offset)];
+                for (int i = 0; i < array.length; i++) array[i] = BDSv2.parseLong(in.data, in.offset);
+                return array;
+            }
+            case "float": {
+                expect(in, BDSv2Type.FLOAT, true, VALUE_TAG);
+                float[] array = new float[BDSv2.parseInt(in.data, in.offset)];
+                for (int i = 0; i < array.length; i++) array[i] = BDSv2.parseFloat(in.data, in.offset);
+                return array;
+            }
+            case "double": {
+                expect(in, BDSv2Type.DOUBLE, true, VALUE_TAG);
+                double[] array = new double[BDSv2.parseInt(in.data, in.offset)];
+                for (int i = 0; i < array.length; i++) array[i] = BDSv2.parseDouble(in.data, in.offset);
+                return array;
+            }
+            default: {
+                expect(in, BDSv2Type.BDS, true, ITEMS_TAG);
+                int length = BDSv2.parseInt(in.data, in.offset);
+                Object array;
+                try {
+                    array = Array.newInstance(Class.forName(componentType), length);
+                } catch (ClassNotFoundException e) {
+                    throw new SerializationException("Error deserializing: Class " + componentType + " could not be found.", e);
+                }
+                in.objects.set(id, array);
+                for (int i = 0; i < length; i++) Array.set(array, i, readValue(in));
+                return array;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map readMap(Input in, int id) throws IOException, SerializationException {
+        expect(in, BDSv2Type.STRING, false, TYPE_TAG);
+        String mapType = BDSv2.parseString(in.data, in.offset);
+        byte signature = BDSv2.parseByte(in.data, in.offset);
+        String name = BDSv2.parseString(in.data, in.offset);
+
+        Map map;
+        if (KEY_TYPE_TAG.equals(name)) {
+            String keyType = BDSv2.parseString(in.data, in.offset);
+            try {
+                map = new EnumMap(Class.forName(keyType).asSubclass(Enum.class));
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new SerializationException("Error deserializing: Class " + keyType + " is not an Enum.", e);
+            }
+            signature = BDSv2.parseByte(in.data, in.offset);
+            name = BDSv2.parseString(in.data, in.offset);
+        } else if (COMPARATOR_TAG.equals(name)) {
+            Object comparator = readValue(in);
+            try {
+                map = (Map) Class.forName(mapType).getConstructor(Comparator.class).newInstance(comparator);
+            } catch (ClassNotFoundException e) {
+                throw new SerializationException("Error deserializing: Class " + mapType + " could not be found.", e);
+            } catch (ReflectiveOperationException e) {
+                throw new SerializationException("Error deserializing: Class " + mapType + " needs a public constructor taking a Comparator.", e);
+            }
+            signature = BDSv2.parseByte(in.data, in.offset);
+            name = BDSv2.parseString(in.data, in.offset);
+        } else {
+            map = (Map) newInstance(mapType);
+        }
+        in.objects.set(id, map);
+
+        if (!KEYS_TAG.equals(name) || signature != BDSv2Type.BDS.getSignature(true))
+            throw new SerializationException("Error deserializing: Expected " + KEYS_TAG + " but found " + name);
+        Object[] keys = new Object[BDSv2.parseInt(in.data, in.offset)];
+        for (int i = 0; i < keys.length; i++) keys[i] = readValue(in);
+        expect(in, BDSv2Type.BDS, true, VALUES_TAG);
+        int length = BDSv2.parseInt(in.data, in.offset);
+        if (length != keys.length)
+            throw new SerializationException("Error deserializing: A map has " + keys.length + " keys but " + length + " values.");
+        for (Object key : keys) map.put(key, readValue(in));
+        return map;
+    }
+
+    @Nullable
+    private static Object readPrimitive(Input in, byte signature, Class<?> type) throws IOException, SerializationException {
+        BDSv2Type elementType = BDSv2Type.fromSignature(signature);
+        if (elementType == null)
+            throw new SerializationException("Unknown type signature: " + Integer.toHexString(signature & 0xFF));
+        switch (elementType) {
+            case BYTE:
+                byte b = BDSv2.parseByte(in.data, in.offset);
+                return type == boolean.class ? (Object) (b != 0) : (Object) b;
+            case CHAR:
+                return BDSv2.parseChar(in.data, in.offset);
+            case SHORT:
+                return BDSv2.parseShort(in.data, in.offset);
+            case INT:
+                return BDSv2.parseInt(in.data, in.offset);
+            case LONG:
+                return BDSv2.parseLong(in.data, in.offset);
+            case FLOAT:
+                return BDSv2.parseFloat(in.data, in.offset);
+            case DOUBLE:
+                return BDSv2.parseDouble(in.data, in.offset);
+            case STRING:
+                return BDSv2.parseString(in.data, in.offset);
+            default:
+                throw new SerializationException("Error deserializing: Unexpected nested BDSv2");
+        }
+    }
+
+    /**
+     * Reads the contents of a BDS written by {@link BDSv2Mapper#writeBDS(Output, BDS, boolean)}.
+     */
+    private static BDS readBDS(Input in, String name) throws IOException, SerializationException {
+        BDS bds = new BDS(name);
+        int length = BDSv2.parseInt(in.data, in.offset);
+        int end = in.offset[0] + length;
+        while (in.offset[0] < end) {
+            byte signature = BDSv2.parseByte(in.data, in.offset);
+            String elementName = BDSv2.parseString(in.data, in.offset);
+            BDSv2Type type = BDSv2Type.fromSignature(signature);
+            if (type == null)
+                throw new SerializationException("Unknown type signature: " + Integer.toHexString(signature & 0xFF));
+            if (!BDSv2Type.isArray(signature)) {
+                switch (type) {
+                    case BYTE:
+                        bds.addByte(elementName, BDSv2.parseByte(in.data, in.offset));
+                        break;
+                    case CHAR:
+                        bds.addChar(elementName, BDSv2.parseChar(in.data, in.offset));
+                        break;
+                    case SHORT:
+                        bds.addShort(elementName, BDSv2.parseShort(in.data, in.offset));
+                        break;
+                    case INT:
+                        bds.addInt(elementName, BDSv2.parseInt(in.data, in.offset));
+                        break;
+                    case LONG:
+                        bds.addLong(elementName, BDSv2.parseLong(in.data, in.offset));
+                        break;
+                    case FLOAT:
+                        bds.addFloat(elementName, BDSv2.parseFloat(in.data, in.offset));
+                        break;
+                    case DOUBLE:
+                        bds.addDouble(elementName, BDSv2.parseDouble(in.data, in.offset));
+                        break;
+                    case STRING:
+                        String value = BDSv2.parseString(in.data, in.offset);
+                        if (NAME_TAG.equals(elementName)) bds.setName(value);
+                        else bds.addString(elementName, value);
+                        break;
+                    case BDS:
+                        bds.addBDS(readBDS(in, elementName));
+                        break;
+                }
+                continue;
+            }
+            int arrayLength = BDSv2.parseInt(in.data, in.offset);
+            switch (type) {
+                case BYTE:
+                    bds.addBytes(elementName, Arrays.copyOfRange(in.data, in.offset[0], in.offset[0] + arrayLength));
+                    in.offset[0] += arrayLength;
+                    break;
+                case CHAR:
+                    char[] chars = new char[arrayLength];
+                    for (int i = 0; i < arrayLength; i++) chars[i] = BDSv2.parseChar(in.data, in.offset);
+                    bds.addChars(elementName, chars);
+                    break;
+                case SHORT:
+                    short[] shorts = new short[arrayLength];
+                    for (int i = 0; i < arrayLength; i++) shorts[i] = BDSv2.parseShort(in.data, in.offset);
+                    bds.addShorts(elementName, shorts);
+                    break;
+                case INT:
+                    int[] ints = new int[arrayLength];
+                    for (int i = 0; i < arrayLength; i++) ints[i] = BDSv2.parseInt(in.data, in.offset);
+                    bds.addInts(elementName, ints);
+                    break;
+                case LONG:
+                    long[] longs = new long[arrayLength];
+                    for (int i = 0; i < arrayLength; i++) longs[i] = BDSv2.parseLong(in.data, in.offset);
+                    bds.addLongs(elementName, longs);
+                    break;
+                case FLOAT:
+                    float[] floats = new float[arrayLength];
+                    for (int i = 0; i < arrayLength; i++) floats[i] = BDSv2.parseFloat(in.data, in.offset);
+                    bds.addFloats(elementName, floats);
+                    break;
+                case DOUBLE:
+                    double[] doubles = new double[arrayLength];
+                    for (int i = 0; i < arrayLength; i++) doubles[i] = BDSv2.parseDouble(in.data, in.offset);
+                    bds.addDoubles(elementName, doubles);
+                    break;
+                case STRING:
+                    String[] strings = new String[arrayLength];
+                    for (int i = 0; i < arrayLength; i++) strings[i] = BDSv2.parseString(in.data, in.offset);
+                    bds.addStrings(elementName, strings);
+                    break;
+                case BDS:
+                    BDS[] bdss = new BDS[arrayLength];
+                    for (int i = 0; i < arrayLength; i++) bdss[i] = readBDS(in, "");
+                    bds.addBDSs(elementName, bdss);
+                    break;
+            }
+        }
+        return bds;
+    }
+
+    private static void expect(Input in, BDSv2Type type, boolean array, String name) throws IOException, SerializationException {
+        byte signature = BDSv2.parseByte(in.data, in.offset);
+        String found = BDSv2.parseString(in.data, in.offset);
+        if (signature != type.getSignature(array) || !name.equals(found))
+            throw new SerializationException("Error deserializing: Expected " + name + " but found " + found);
+    }
+
+    private static Object newInstance(String type) throws SerializationException {
+        try {
+            return Class.forName(type).newInstance();
+        } catch (ClassNotFoundException e) {
+            throw new SerializationException("Error deserializing: Class " + type + " could not be found.", e);
+        } catch (InstantiationException e) {
+            throw new SerializationException("Error deserializing: Class " + type + " cannot be instantiated. Add a default constructor.", e);
+        } catch (IllegalAccessException e) {
+            throw new SerializationException("Error deserializing: Empty constructor for class " + type + " is not public.", e);
+        }
+    }
+
+    private static void makeAccessible(Field f, Class<?> type) throws SerializationException {
+        if (!f.isAccessible()) {
+            try {
+                f.setAccessible(true);
+            } catch (SecurityException e) {
+                throw new SerializationException("Field " + f.getName() + " of class " + type.getName() + " could not be made accessible!", e);
+            }
+        }
+    }
+
+    // endregion
+
+    private static class ChunkIterator implements Iterator<Object> {
+        private final InputStream is;
+        private Object[] chunk = new Object[0];
+        private int index = 0;
+        private boolean finished = false;
+
+        private ChunkIterator(InputStream is) {
+            this.is = is;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (index == chunk.length && !finished) {
+                try {
+                    Object next = read(is);
+                    if (next == null) finished = true;
+                    else if (next instanceof Object[]) {
+                        chunk = (Object[]) next;
+                        index = 0;
+                    } else throw new SerializationException("Error deserializing: Expected a chunk, but found " + next.getClass().getName());
+                } catch (IOException | SerializationException e) {
+                    throw new IllegalStateException("Could not read the next chunk", e);
+                }
+            }
+            return index < chunk.length;
+        }
+
+        @Override
+        public Object next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Object next = chunk[index];
+            chunk[index++] = null; // So that elements can be collected while the rest of the chunk is read
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Elements cannot be removed from a stream");
+        }
+    }
+
+    private static class Output extends GrowableOutput {
+        private final Map<Object, Integer> ids = new IdentityHashMap<>();
+
+        private Output() {
+            super(BufferPool.SHARED);
+        }
+    }
+
+    private static class Input {
+        private final byte[] data;
+        private final int[] offset;
+        private final List<Object> objects = Lists.newArrayList();
+        private final Map<Class<?>, Map<String, Field>> fields = Maps.newHashMap();
+
+        private Input(byte[] data, int offset) {
+            this.data = data;
+            this.offset = new int[]{offset};
+        }
+
+        private Map<String, Field> getFields(Class<?> type) throws SerializationException {
+            Map<String, Field> result = fields.get(type);
+            if (result == null) {
+                result = Maps.newHashMap();
+                for (Field f : ReflectionUtil.getAllFields(type)) {
+                    if (f.isAnnotationPresent(Transient.class) || Modifier.isStatic(f.getModifiers())) continue;
+                    makeAccessible(f, type);
+                    result.put(f.getName(), f);
+                }
+                fields.put(type, result);
+            }
+            return result;
+        }
+    }
+}
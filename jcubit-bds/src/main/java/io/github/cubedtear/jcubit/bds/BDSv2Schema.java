@@ -0,0 +1,121 @@
+package io.github.cubedtear.jcubit.bds;
+
+import com.google.common.collect.Maps;
+import io.github.cubedtear.jcubit.bds.BDSv2.BDSv2Type;
+import io.github.cubedtear.jcubit.util.API;
+import io.github.cubedtear.jcubit.util.Nullable;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Declares the fields used by a kind of BDSv2, each with a small numeric tag and a type.
+ * <p>
+ * When a BDSv2 is written with a schema ({@link BDSv2#write(BDSv2Schema, boolean)}), every element whose name and
+ * type match a declared field is identified by its tag (2 bytes) instead of by its name. Elements not declared in
+ * the schema are written by name, as usual. The schema applies to nested BDSv2s too.
+ * <p>
+ * When parsing ({@link BDSv2#parse(byte[], BDSv2Schema)}), tags are translated back to names with an array indexed by
+ * tag. Tags which are not declared in the schema, or whose type has changed, are skipped. Therefore, fields can be
+ * added to and removed from a schema without breaking the data written by (or read by) older versions of it,
+ * as long as tags are never reused.
+ *
+ * @author Aritz Lopez
+ */
+public class BDSv2Schema {
+
+    /**
+     * Maximum value of a tag. Tags are written as unsigned shorts.
+     */
+    public static final int MAX_TAG = 0xFFFF;
+
+    /**
+     * The types a field can have.
+     */
+    public enum FieldType {
+        BYTE(BDSv2Type.BYTE),
+        CHAR(BDSv2Type.CHAR),
+        SHORT(BDSv2Type.SHORT),
+        INT(BDSv2Type.INT),
+        LONG(BDSv2Type.LONG),
+        FLOAT(BDSv2Type.FLOAT),
+        DOUBLE(BDSv2Type.DOUBLE),
+        STRING(BDSv2Type.STRING),
+        BDS(BDSv2Type.BDS);
+
+        private final BDSv2Type type;
+
+        FieldType(BDSv2Type type) {
+            this.type = type;
+        }
+    }
+
+    private final Map<String, Integer> tags = Maps.newHashMap();
+    private String[] names = new String[0];
+    private byte[] signatures = new byte[0];
+
+    /**
+     * Creates an empty schema. Fields are declared with {@link BDSv2Schema#field(int, String, FieldType)}
+     * and {@link BDSv2Schema#arrayField(int, String, FieldType)}.
+     */
+    @API
+    public BDSv2Schema() {
+    }
+
+    /**
+     * Declares a field, holding a single value.
+     *
+     * @param tag  The tag of the field. Must be between 0 and {@link BDSv2Schema#MAX_TAG}, and not be used by another field.
+     * @param name The name of the field.
+     * @param type The type of the field.
+     * @return this schema, to chain calls.
+     */
+    @API
+    public BDSv2Schema field(int tag, String name, FieldType type) {
+        return declare(tag, name, type.type.getSignature(false));
+    }
+
+    /**
+     * Declares a field, holding an array of values.
+     *
+     * @param tag  The tag of the field. Must be between 0 and {@link BDSv2Schema#MAX_TAG}, and not be used by another field.
+     * @param name The name of the field.
+     * @param type The type of the elements of the field.
+     * @return this schema, to chain calls.
+     */
+    @API
+    public BDSv2Schema arrayField(int tag, String name, FieldType type) {
+        return declare(tag, name, type.type.getSignature(true));
+    }
+
+    private BDSv2Schema declare(int tag, String name, byte signature) {
+        if (tag < 0 || tag > MAX_TAG) throw new IllegalArgumentException("Tag " + tag + " is not between 0 and " + MAX_TAG);
+        if (tag < names.length && names[tag] != null)
+            throw new IllegalArgumentException("Tag " + tag + " is already used by \"" + names[tag] + "\"");
+        if (tags.containsKey(name)) throw new IllegalArgumentException("Name \"" + name + "\" is already declared!");
+        if (tag >= names.length) {
+            names = Arrays.copyOf(names, tag + 1);
+            signatures = Arrays.copyOf(signatures, tag + 1);
+        }
+        names[tag] = name;
+        signatures[tag] = signature;
+        tags.put(name, tag);
+        return this;
+    }
+
+    /**
+     * Returns the tag of the field with the given name and type signature, or -1 if there is none.
+     */
+    int getTag(String name, byte signature) {
+        Integer tag = tags.get(name);
+        return tag != null && signatures[tag] == signature ? tag : -1;
+    }
+
+    /**
+     * Returns the name of the field with the given tag and type signature, or {@code null} if there is none.
+     */
+    @Nullable
+    String getName(int tag, byte signature) {
+        return tag < names.length && signatures[tag] == signature ? names[tag] : null;
+    }
+}
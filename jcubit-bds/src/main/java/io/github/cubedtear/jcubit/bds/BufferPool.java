@@ -0,0 +1,95 @@
+package io.github.cubedtear.jcubit.bds;
+
+import io.github.cubedtear.jcubit.util.API;
+import io.github.cubedtear.jcubit.util.Nullable;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Pool of byte arrays, shared between threads, used to avoid allocating a new buffer for every written message.
+ * <p>
+ * Arrays are grouped in size classes (powers of two, from {@link BufferPool#MIN_SIZE} to {@link BufferPool#MAX_SIZE}).
+ * Bigger arrays are allocated on demand, and never kept. Arrays must be explicitly given back with
+ * {@link BufferPool#release(byte[])} once they are not used anymore, and must not be used after that.
+ *
+ * @author Aritz Lopez
+ */
+public class BufferPool {
+
+    /**
+     * Size of the smallest arrays given by a pool.
+     */
+    public static final int MIN_SIZE = 256;
+
+    /**
+     * Size of the biggest arrays kept by a pool.
+     */
+    public static final int MAX_SIZE = 1024 * 1024;
+
+    private static final int MIN_CLASS = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_CLASS + 1;
+
+    /**
+     * Pool shared by the whole application, which keeps up to 16 arrays of each size.
+     */
+    public static final BufferPool SHARED = new BufferPool(16);
+
+    private final int maxPerClass;
+    private final Queue<byte[]>[] free;
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(CLASSES);
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param maxPerClass The maximum number of arrays of each size kept by this pool. Extra released arrays are discarded.
+     */
+    @API
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxPerClass) {
+        if (maxPerClass < 0) throw new IllegalArgumentException("Max arrays per class cannot be negative!");
+        this.maxPerClass = maxPerClass;
+        this.free = new Queue[CLASSES];
+        for (int i = 0; i < CLASSES; i++) free[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Gives an array of, at least, the given size. Its contents are undefined.
+     *
+     * @param minSize The minimum size of the array.
+     * @return an array from this pool, or a new one if there is none available.
+     */
+    @API
+    public byte[] acquire(int minSize) {
+        if (minSize < 0) throw new IllegalArgumentException("Size cannot be negative!");
+        int sizeClass = sizeClass(minSize);
+        if (sizeClass >= CLASSES) return new byte[minSize];
+        byte[] array = free[sizeClass].poll();
+        if (array == null) return new byte[MIN_SIZE << sizeClass];
+        counts.decrementAndGet(sizeClass);
+        return array;
+    }
+
+    /**
+     * Gives an array back to this pool, to be reused. Arrays whose size is not one of the sizes of this pool are ignored.
+     *
+     * @param array The array, which must not be used after this call.
+     */
+    @API
+    public void release(@Nullable byte[] array) {
+        if (array == null || array.length < MIN_SIZE || Integer.bitCount(array.length) != 1) return;
+        int sizeClass = sizeClass(array.length);
+        if (sizeClass >= CLASSES) return;
+        if (counts.incrementAndGet(sizeClass) > maxPerClass) {
+            counts.decrementAndGet(sizeClass);
+            return;
+        }
+        free[sizeClass].offer(array);
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= MIN_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS;
+    }
+}
@@ -0,0 +1,206 @@
+package io.github.cubedtear.jcubit.bds;
+
+import io.github.cubedtear.jcubit.collections.Matrix;
+import io.github.cubedtear.jcubit.math.Rectangle;
+import io.github.cubedtear.jcubit.math.Vec2i;
+import io.github.cubedtear.jcubit.util.Consumer;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializers for the jcubit types, registered by default in {@link BDSUtil}. They store each type as a few
+ * primitive values or arrays, instead of one nested BDS per field.
+ *
+ * @author Aritz Lopez
+ */
+final class DefaultSerializers {
+
+    static final String SPRITE_TYPE = "io.github.cubedtear.jcubit.awt.render.Sprite";
+
+    private static final Serializer VEC2I = new Vec2iSerializer();
+    private static final Serializer RECTANGLE = new RectangleSerializer();
+    private static final Serializer MATRIX = new MatrixSerializer();
+    private static final Serializer SPRITE = new SpriteSerializer();
+
+    private DefaultSerializers() {
+    }
+
+    static void registerAll(Map<String, Serializer> serializers) {
+        serializers.put(Vec2i.class.getName(), VEC2I);
+        serializers.put(Rectangle.class.getName(), RECTANGLE);
+        serializers.put(Matrix.class.getName(), MATRIX);
+        serializers.put(SPRITE_TYPE, SPRITE);
+    }
+
+    static boolean isDefault(Serializer serializer) {
+        return serializer == VEC2I || serializer == RECTANGLE || serializer == MATRIX || serializer == SPRITE;
+    }
+
+    /**
+     * Returns whether the BDS was written by reflection, before the default serializer of its type was registered,
+     * so it must still be deserialized by reflection. Only Vec2i could be deserialized that way: Rectangle and Sprite
+     * have no empty constructor, and Matrix was written as a Collection.
+     */
+    static boolean isLegacy(Serializer serializer, BDS data) {
+        return serializer == VEC2I && data.getInt("x") == null;
+    }
+
+    private static class Vec2iSerializer implements Serializer {
+        @Override
+        public void serialize(Object obj, BDS bds, BDSUtil.BackrefFixer fixer) {
+            bds.addInt("x", ((Vec2i) obj).x);
+            bds.addInt("y", ((Vec2i) obj).y);
+        }
+
+        @Override
+        public Object deserialize(BDS data) {
+            return new Vec2i(data.getInt("x"), data.getInt("y"));
+        }
+    }
+
+    private static class RectangleSerializer implements Serializer {
+        @Override
+        public void serialize(Object obj, BDS bds, BDSUtil.BackrefFixer fixer) {
+            Rectangle r = (Rectangle) obj;
+            bds.addInts("xywh", new int[]{r.x, r.y, r.width, r.height});
+        }
+
+        @Override
+        public Object deserialize(BDS data) {
+            int[] xywh = data.getIntArray("xywh");
+            return new Rectangle(xywh[0], xywh[1], xywh[2], xywh[3]);
+        }
+    }
+
+    /**
+     * Stores a Matrix as its dimensions, plus its elements in a flat column-major list.
+     * The elements are written in the same document as the Matrix, so references between them and other objects
+     * (even the Matrix itself) are kept. The default element cannot be a reference to a parent object of the Matrix.
+     */
+    private static class MatrixSerializer implements BDSUtil.CompoundSerializer {
+        @Override
+        public void serialize(Object obj, BDS bds, BDSUtil.BackrefFixer fixer) throws SerializationException {
+            Matrix<?> matrix = (Matrix<?>) obj;
+            List<Integer> heights = new ArrayList<>();
+            boolean rectangular = true;
+            for (ArrayList<?> column : matrix) {
+                if (!heights.isEmpty() && heights.get(0) != column.size()) rectangular = false;
+                heights.add(column.size());
+            }
+            bds.addInt("width", heights.size());
+            if (rectangular) bds.addInt("height", heights.isEmpty() ? 0 : heights.get(0));
+            else {
+                int[] array = new int[heights.size()];
+                for (int i = 0; i < array.length; i++) array[i] = heights.get(i);
+                bds.addInts("heights", array);
+            }
+            if (matrix.getDefaultElement() != null)
+                bds.addBDS(rename(BDSUtil.serialize(matrix.getDefaultElement(), fixer), "default"));
+            bds.addBDS(rename(BDSUtil.serialize(matrix.toFlatArrayList(), fixer), "items"));
+        }
+
+        @Override
+        public Object deserialize(BDS data) throws SerializationException {
+            return BDSUtil.deserialize(this, data);
+        }
+
+        @Override
+        public Object deserialize(BDS data, BDSUtil.Deserialization deserialization) throws SerializationException {
+            int width = data.getInt("width");
+            int[] heights = data.getIntArray("heights");
+            if (heights == null) {
+                heights = new int[width];
+                Arrays.fill(heights, data.getInt("height"));
+            }
+            BDS defaultElement = data.getBDS("default");
+            final Matrix<Object> matrix = new Matrix<>(0, 0, defaultElement == null ? null : deserialization.deserialize(defaultElement));
+            final int[] columnHeights = heights;
+            // The items may reference objects which are not deserialized yet, so the columns are filled once they are
+            deserialization.deserializeLater(data.getBDS("items"), new Consumer<Object>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public void accept(Object items) {
+                    int start = 0;
+                    for (int height : columnHeights) {
+                        matrix.add(new ArrayList<>(((List<Object>) items).subList(start, start + height)));
+                        start += height;
+                    }
+                }
+            });
+            return matrix;
+        }
+
+        private static BDS rename(BDS bds, String name) {
+            bds.setName(name);
+            return bds;
+        }
+    }
+
+    /**
+     * Stores a Sprite as its width, height and raw ARGB pixels. As jcubit-bds does not depend on jcubit-gameEngine,
+     * the Sprite class is only looked up (once) when the first Sprite is (de)serialized.
+     */
+    private static class SpriteSerializer implements Serializer {
+        private volatile Method getWidth, getHeight, getPixels;
+        private volatile Constructor<?> constructor;
+
+        @Override
+        public void serialize(Object obj, BDS bds, BDSUtil.BackrefFixer fixer) {
+            try {
+                if (getPixels == null) {
+                    getWidth = obj.getClass().getMethod("getWidth");
+                    getHeight = obj.getClass().getMethod("getHeight");
+                    getPixels = obj.getClass().getMethod("getPixels");
+                }
+                bds.addInt("width", (Integer) getWidth.invoke(obj));
+                bds.addInt("height", (Integer) getHeight.invoke(obj));
+                bds.addInts("pixels", (int[]) getPixels.invoke(obj));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Sprite cannot be serialized", e);
+            }
+        }
+
+        @Override
+        public Object deserialize(BDS data) {
+            try {
+                if (constructor == null) constructor = Class.forName(SPRITE_TYPE).getConstructor(int.class, int.class, int[].class);
+                return constructor.newInstance(data.getInt("width"), data.getInt("height"), data.getIntArray("pixels"));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Sprite cannot be deserialized", e);
+            }
+        }
+    }
+
+    // region ... Packed columns ...
+
+    static int[][] packVec2is(Collection<?> elements) {
+        int[][] columns = new int[2][elements.size()];
+        int i = 0;
+        for (Object o : elements) {
+            columns[0][i] = ((Vec2i) o).x;
+            columns[1][i++] = ((Vec2i) o).y;
+        }
+        return columns;
+    }
+
+    static int[][] packRectangles(Collection<?> elements) {
+        int[][] columns = new int[4][elements.size()];
+        int i = 0;
+        for (Object o : elements) {
+            Rectangle r = (Rectangle) o;
+            columns[0][i] = r.x;
+            columns[1][i] = r.y;
+            columns[2][i] = r.width;
+            columns[3][i++] = r.height;
+        }
+        return columns;
+    }
+
+    // endregion
+}
@@ -0,0 +1,175 @@
+package io.github.cubedtear.jcubit.bds;
+
+import io.github.cubedtear.jcubit.util.API;
+import io.github.cubedtear.jcubit.util.NotNull;
+import io.github.cubedtear.jcubit.util.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable in-memory OutputStream, which allows the length of a BDSv2 to be written once its contents are known.
+ * <p>
+ * If created with a {@link BufferPool}, its buffers are taken from it, and given back when the output grows or is
+ * {@link GrowableOutput#release() released}. Reusing the same output (or pool) for every written message avoids
+ * allocating a new array for each of them:
+ * <pre>{@code
+ * GrowableOutput out = new GrowableOutput(BufferPool.SHARED);
+ * bds.writeToStream(out);
+ * channel.write(out.toByteBuffer());
+ * out.release();
+ * }</pre>
+ *
+ * @author Aritz Lopez
+ */
+public class GrowableOutput extends OutputStream {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    @Nullable
+    private final BufferPool pool;
+    private byte[] data;
+    private int size = 0;
+
+    /**
+     * Creates an output whose buffers are allocated on demand.
+     */
+    @API
+    public GrowableOutput() {
+        this.pool = null;
+        this.data = new byte[256];
+    }
+
+    /**
+     * Creates an output whose buffers are taken from the given pool.
+     * {@link GrowableOutput#release()} must be called once the output is not needed anymore.
+     *
+     * @param pool The pool to take the buffers from.
+     */
+    @API
+    public GrowableOutput(BufferPool pool) {
+        this.pool = pool;
+        this.data = EMPTY;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(size + 1);
+        data[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) {
+        ensureCapacity(size + len);
+        System.arraycopy(b, off, data, size, len);
+        size += len;
+    }
+
+    /**
+     * Skips the 4 bytes of a length, to be written later with {@link GrowableOutput#patchLength(int)}.
+     *
+     * @return the index of the length.
+     */
+    int reserveLength() {
+        ensureCapacity(size + 4);
+        size += 4;
+        return size - 4;
+    }
+
+    /**
+     * Writes, at the given index, the number of bytes written after it (excluding the length itself).
+     */
+    void patchLength(int index) {
+        int length = size - index - 4;
+        data[index] = (byte) (length >> 24);
+        data[index + 1] = (byte) (length >> 16);
+        data[index + 2] = (byte) (length >> 8);
+        data[index + 3] = (byte) length;
+    }
+
+    /**
+     * Discards every byte written from the given index.
+     */
+    void truncate(int size) {
+        if (size < 0 || size > this.size) throw new IllegalArgumentException("Size " + size + " is out of bounds [0, " + this.size + "]");
+        this.size = size;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the number of bytes written.
+     */
+    @API
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Discards every byte written, keeping the current buffer.
+     */
+    @API
+    public void reset() {
+        size = 0;
+    }
+
+    /**
+     * @return a copy of the bytes written.
+     */
+    @API
+    public byte[] toByteArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    /**
+     * Returns a ByteBuffer containing the bytes written, without copying them.
+     * It is only valid until this output is written to again, or released.
+     *
+     * @return the bytes written, as a ByteBuffer.
+     */
+    @API
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(data, 0, size);
+    }
+
+    /**
+     * Writes the bytes written to the given stream.
+     *
+     * @param os The stream to write to.
+     * @throws IOException If the stream throws an exception.
+     */
+    @API
+    public void writeTo(OutputStream os) throws IOException {
+        os.write(data, 0, size);
+    }
+
+    /**
+     * Discards every byte written, and gives the buffer back to the pool (if any).
+     * This output can still be used afterwards, taking a new buffer when needed.
+     */
+    @API
+    public void release() {
+        if (pool != null) {
+            pool.release(data);
+            data = EMPTY;
+        }
+        size = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= data.length) return;
+        int newCapacity = Math.max(capacity, data.length * 2);
+        if (pool == null) {
+            data = Arrays.copyOf(data, newCapacity);
+        } else {
+            byte[] bigger = pool.acquire(newCapacity);
+            System.arraycopy(data, 0, bigger, 0, size);
+            pool.release(data);
+            data = bigger;
+        }
+    }
+}
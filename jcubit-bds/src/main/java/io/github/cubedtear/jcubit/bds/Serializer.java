@@ -14,13 +14,15 @@ public interface Serializer {
      * @param obj The object to serialize.
      * @param bds The BDS to which the object must be written.
      * @param fixer Used internally to fix circular references.
+     * @throws SerializationException If another object cannot be serialized.
      */
-    void serialize(Object obj, BDS bds, BDSUtil.BackrefFixer fixer);
+    void serialize(Object obj, BDS bds, BDSUtil.BackrefFixer fixer) throws SerializationException;
 
     /**
      * Deserializes the given BDS as an Object.
      * @param data The BDS from which the object has to be deserialized.
      * @return The deserialized object.
+     * @throws SerializationException If another object cannot be deserialized.
      */
-    Object deserialize(BDS data);
+    Object deserialize(BDS data) throws SerializationException;
 }
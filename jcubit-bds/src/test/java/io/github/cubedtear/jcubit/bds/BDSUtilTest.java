@@ -1,11 +1,16 @@
 package io.github.cubedtear.jcubit.bds;
 
+import io.github.cubedtear.jcubit.collections.Matrix;
+import io.github.cubedtear.jcubit.math.Rectangle;
+import io.github.cubedtear.jcubit.math.Vec2i;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @author Aritz Lopez
@@ -31,6 +36,230 @@ public class BDSUtilTest {
         Assert.assertTrue(afterTyped.lst.contains(afterTyped));
     }
 
+    @Test
+    public void testPackedElements() throws Exception {
+        List<Integer> ints = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) ints.add(i * 31);
+        BDS serialized = BDSUtil.serialize(ints);
+        Assert.assertTrue(serialized.getAllBDSs().isEmpty());
+        Assert.assertEquals(ints, BDSUtil.deserialize(serialized));
+
+        List<Object> strings = new ArrayList<Object>(Arrays.asList("a", "b", "c"));
+        Assert.assertEquals(strings, BDSUtil.deserialize(BDSUtil.serialize(strings)));
+
+        List<Object> mixed = new ArrayList<Object>(Arrays.asList(1, 2L, "3", null));
+        Assert.assertEquals(mixed, BDSUtil.deserialize(BDSUtil.serialize(mixed)));
+
+        Double[] doubles = {0.5, -1.0, Double.MAX_VALUE};
+        Assert.assertArrayEquals(doubles, (Double[]) BDSUtil.deserialize(BDSUtil.serialize(doubles)));
+
+        boolean[] bits = new boolean[13];
+        for (int i = 0; i < bits.length; i += 3) bits[i] = true;
+        BDS bitsBDS = BDSUtil.serialize(bits);
+        Assert.assertEquals(2, bitsBDS.getByteArray("0__primVal").length);
+        Assert.assertTrue(Arrays.equals(bits, (boolean[]) BDSUtil.deserialize(bitsBDS)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMaps() throws Exception {
+        Map<String, Integer> linked = new LinkedHashMap<>();
+        for (int i = 100; i > 0; i--) linked.put("Key" + i, i);
+        BDS serialized = BDSUtil.serialize(linked);
+        Assert.assertNull(serialized.getBDS("table"));
+        Object after = BDSUtil.deserialize(serialized);
+        Assert.assertTrue(after instanceof LinkedHashMap);
+        Assert.assertEquals(new ArrayList<>(linked.keySet()), new ArrayList<>(((Map<String, Integer>) after).keySet()));
+
+        Map<String, Object> tree = new TreeMap<>(new ReverseComparator());
+        tree.put("a", 1);
+        tree.put("b", null);
+        tree.put("c", TestEnum.SECOND);
+        Map<String, Object> treeAfter = (Map<String, Object>) BDSUtil.deserialize(BDSUtil.serialize(tree));
+        Assert.assertEquals(Arrays.asList("c", "b", "a"), new ArrayList<>(treeAfter.keySet()));
+        Assert.assertEquals(tree, treeAfter);
+
+        EnumMap<TestEnum, String> enumMap = new EnumMap<>(TestEnum.class);
+        enumMap.put(TestEnum.SECOND, "second");
+        Assert.assertEquals(enumMap, BDSUtil.deserialize(BDSUtil.serialize(enumMap)));
+
+        Map<String, Object> cyclic = new HashMap<>();
+        TestClass holder = new TestClass(new ArrayList<Object>());
+        holder.lst.add(cyclic);
+        cyclic.put("holder", holder);
+        Map<String, Object> cyclicAfter = (Map<String, Object>) BDSUtil.deserialize(BDSUtil.serialize(cyclic));
+        Assert.assertSame(cyclicAfter, ((TestClass) cyclicAfter.get("holder")).lst.get(0));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCompact() throws Exception {
+        List<Object> items = new ArrayList<>();
+        CompactItem shared = new CompactItem(-1, "shared", true, null);
+        for (int i = 0; i < 50; i++) items.add(new CompactItem(i, i % 2 == 0 ? "Item" + i : null, i % 3 == 0, shared));
+        items.add(null);
+
+        BDS compact = BDSUtil.serializeCompact(items);
+        Assert.assertTrue(compact.write().length < BDSUtil.serialize(items).write().length / 2);
+
+        List<Object> after = (List<Object>) BDSUtil.deserialize(BDS.load(compact.write()));
+        Assert.assertEquals(items.size(), after.size());
+        Assert.assertNull(after.get(50));
+        for (int i = 0; i < 50; i++) {
+            CompactItem before = (CompactItem) items.get(i), item = (CompactItem) after.get(i);
+            Assert.assertEquals(before.number, item.number);
+            Assert.assertEquals(before.label, item.label);
+            Assert.assertEquals(before.flag, item.flag);
+            Assert.assertSame(((CompactItem) after.get(0)).other, item.other);
+        }
+        Assert.assertEquals("shared", ((CompactItem) ((CompactItem) after.get(0)).other).label);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testDefaultSerializers() throws Exception {
+        List<Vec2i> vectors = new ArrayList<>();
+        Rectangle[] rectangles = new Rectangle[100];
+        for (int i = 0; i < rectangles.length; i++) {
+            vectors.add(new Vec2i(i, -i));
+            rectangles[i] = new Rectangle(i, i * 2, i * 3, i * 4);
+        }
+        BDS serializedVectors = BDSUtil.serialize(vectors);
+        Assert.assertEquals(100, serializedVectors.getIntArray("0__y").length);
+        Assert.assertEquals(vectors, BDSUtil.deserialize(serializedVectors));
+
+        Rectangle[] rectanglesAfter = (Rectangle[]) BDSUtil.deserialize(BDSUtil.serialize(rectangles));
+        Assert.assertEquals(rectangles.length, rectanglesAfter.length);
+        Assert.assertEquals(rectangles[99].toString(), rectanglesAfter[99].toString());
+        Assert.assertEquals(Rectangle.EMPTY.toString(), ((Rectangle) BDSUtil.deserialize(BDSUtil.serialize(Rectangle.EMPTY))).toString());
+
+        Matrix<Integer> matrix = new Matrix<>(3, 2, -1);
+        matrix.set(5, 2, 1);
+        Matrix<Integer> matrixAfter = (Matrix<Integer>) BDSUtil.deserialize(BDSUtil.serialize(matrix));
+        Assert.assertEquals(matrix.toFlatArrayList(), matrixAfter.toFlatArrayList());
+        Assert.assertEquals(5, (int) matrixAfter.get(2, 1));
+        Assert.assertEquals(-1, (int) matrixAfter.getDefaultElement());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMatrixReferences() throws Exception {
+        Matrix<Object> matrix = new Matrix<>(2, 2, null);
+        CompactItem shared = new CompactItem(1, "shared", false, matrix);
+        matrix.set(shared, 0, 0);
+        matrix.set(shared, 1, 1);
+        List<Object> root = new ArrayList<>();
+        root.add(matrix);
+        root.add(shared);
+
+        for (BDS serialized : new BDS[]{BDSUtil.serialize(root), BDSUtil.serializeCompact(root)}) {
+            List<Object> after = (List<Object>) BDSUtil.deserialize(BDS.load(serialized.write()));
+            Matrix<Object> matrixAfter = (Matrix<Object>) after.get(0);
+            CompactItem sharedAfter = (CompactItem) matrixAfter.get(0, 0);
+            Assert.assertEquals("shared", sharedAfter.label);
+            Assert.assertSame(sharedAfter, matrixAfter.get(1, 1));
+            Assert.assertNull(matrixAfter.get(1, 0));
+            Assert.assertSame(matrixAfter, sharedAfter.other);
+            Assert.assertSame(sharedAfter, after.get(1));
+        }
+    }
+
+    @Test
+    public void testLegacyVec2i() throws Exception {
+        // new Vec2i(3, -7), written by reflection before Vec2i had a default serializer
+        byte[] legacy = {
+                46, 66, 68, 83, 13, 10, 9, 0, 0, 0, 7, 48, 95, 95, 114, 111, 111, 116, 3, 0, 0, 0, 5, 48,
+                95, 95, 73, 68, 0, 0, 0, 0, 7, 0, 0, 0, 12, 48, 95, 95, 99, 108, 97, 115, 115, 78, 97, 109,
+                101, 0, 0, 0, 37, 105, 111, 46, 103, 105, 116, 104, 117, 98, 46, 99, 117, 98, 101, 100, 116, 101, 97, 114,
+                46, 106, 99, 117, 98, 105, 116, 46, 109, 97, 116, 104, 46, 86, 101, 99, 50, 105, 9, 0, 0, 0, 1, 120,
+                3, 0, 0, 0, 8, 48, 95, 95, 118, 97, 108, 117, 101, 0, 0, 0, 3, 3, 0, 0, 0, 5, 48, 95,
+                95, 73, 68, 0, 0, 0, 1, 7, 0, 0, 0, 12, 48, 95, 95, 99, 108, 97, 115, 115, 78, 97, 109, 101,
+                0, 0, 0, 3, 73, 110, 116, 10, 9, 0, 0, 0, 1, 121, 3, 0, 0, 0, 8, 48, 95, 95, 118, 97,
+                108, 117, 101, -1, -1, -1, -7, 3, 0, 0, 0, 5, 48, 95, 95, 73, 68, 0, 0, 0, 2, 7, 0, 0,
+                0, 12, 48, 95, 95, 99, 108, 97, 115, 115, 78, 97, 109, 101, 0, 0, 0, 3, 73, 110, 116, 10, 10, 13,
+                10
+        };
+        Vec2i vector = (Vec2i) BDSUtil.deserialize(BDS.load(legacy));
+        Assert.assertEquals(new Vec2i(3, -7), vector);
+    }
+
+    @Test
+    public void testSerializeAll() throws Exception {
+        List<Object> roots = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            List<Object> list = new ArrayList<>();
+            TestClass root = new TestClass(list);
+            list.add(root);
+            list.add("Root" + i);
+            roots.add(root);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<BDS> serialized = BDSUtil.serializeAll(roots, executor);
+            Assert.assertEquals(roots.size(), serialized.size());
+            for (int i = 0; i < roots.size(); i++) {
+                TestClass after = (TestClass) BDSUtil.deserialize(serialized.get(i));
+                Assert.assertSame(after, after.lst.get(0));
+                Assert.assertEquals("Root" + i, after.lst.get(1));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSerializeParallel() throws Exception {
+        TestClass shared = new TestClass(new ArrayList<Object>());
+        Object[] elements = new Object[3 * BDSUtil.PARALLEL_THRESHOLD];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = i % 10 == 0 ? shared : new TestClass(new ArrayList<Object>(Collections.singletonList(shared)));
+        }
+        shared.lst.add(elements);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Object[] after = (Object[]) BDSUtil.deserialize(BDSUtil.serializeParallel(elements, pool));
+            Assert.assertEquals(elements.length, after.length);
+            TestClass sharedAfter = (TestClass) after[0];
+            Assert.assertSame(after, sharedAfter.lst.get(0));
+            for (int i = 0; i < after.length; i++) {
+                if (i % 10 == 0) Assert.assertSame(sharedAfter, after[i]);
+                else Assert.assertSame(sharedAfter, ((TestClass) after[i]).lst.get(0));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private enum TestEnum {
+        FIRST, SECOND
+    }
+
+    private static class ReverseComparator implements Comparator<String> {
+        public ReverseComparator() {}
+
+        @Override
+        public int compare(String o1, String o2) {
+            return o2.compareTo(o1);
+        }
+    }
+
+    private static class CompactItem {
+        int number;
+        String label;
+        boolean flag;
+        Object other;
+
+        public CompactItem() {}
+
+        public CompactItem(int number, String label, boolean flag, Object other) {
+            this.number = number;
+            this.label = label;
+            this.flag = flag;
+            this.other = other;
+        }
+    }
+
     private static class TestClass {
         List<Object> lst;
 
@@ -0,0 +1,150 @@
+package io.github.cubedtear.jcubit.bds;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Aritz Lopez
+ */
+@SuppressWarnings("JavaDoc")
+@Category(BDSv2.class)
+public class BDSv2MapperTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMapper() throws Exception {
+        BDSUtil.registerSerializer(Point.class, new PointSerializer());
+
+        Node root = new Node();
+        root.number = -42;
+        root.flag = true;
+        root.letter = '\u00fc';
+        root.ratio = 0.25;
+        root.name = "root";
+        root.values = new int[]{Integer.MIN_VALUE, 0, Integer.MAX_VALUE};
+        root.point = new Point(3, 4);
+        root.children = new ArrayList<>();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("first", 1L);
+        map.put("second", new ArrayList<>(Arrays.asList("a", null, "c")));
+        map.put("self", root);
+        root.data = map;
+
+        Node child = new Node();
+        child.name = "child";
+        child.children = root.children;
+        root.children.add(child);
+        root.children.add(root);
+
+        byte[] written = BDSv2Mapper.write(root);
+        assertNotNull(BDSv2.parse(written).getString("0__class"));
+
+        Node after = (Node) BDSv2Mapper.read(written);
+        assertEquals(-42, after.number);
+        assertTrue(after.flag);
+        assertEquals('\u00fc', after.letter);
+        assertEquals(0.25, after.ratio, 0);
+        assertEquals("root", after.name);
+        assertArrayEquals(root.values, after.values);
+        assertEquals(3, after.point.x);
+        assertEquals(4, after.point.y);
+        assertSame(after, after.children.get(1));
+        assertSame(after.children, ((Node) after.children.get(0)).children);
+        assertNull(((Node) after.children.get(0)).data);
+
+        Map<String, Object> mapAfter = (Map<String, Object>) after.data;
+        assertEquals(Arrays.asList("first", "second", "self"), new ArrayList<>(mapAfter.keySet()));
+        assertEquals(1L, mapAfter.get("first"));
+        assertEquals(Arrays.asList("a", null, "c"), mapAfter.get("second"));
+        assertSame(after, mapAfter.get("self"));
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        BDSv2Mapper.write(new Object[]{"x", 5, null}, stream);
+        BDSv2Mapper.write(null, stream);
+        BAIS in = new BAIS(stream.toByteArray());
+        assertArrayEquals(new Object[]{"x", 5, null}, (Object[]) BDSv2Mapper.read(in));
+        assertNull(BDSv2Mapper.read(in));
+        assertEquals(0, in.getLeft());
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        Iterator<Object> generated = new Iterator<Object>() {
+            int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < 2500;
+            }
+
+            @Override
+            public Object next() {
+                int i = next++;
+                return i % 7 == 0 ? null : "Record" + i;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        long written = BDSv2Mapper.writeAll(generated, stream, 1000);
+        BDSv2Mapper.write("after", stream);
+
+        BAIS in = new BAIS(stream.toByteArray());
+        Iterator<Object> read = BDSv2Mapper.readAll(in);
+        long count = 0;
+        while (read.hasNext()) {
+            assertEquals(count % 7 == 0 ? null : "Record" + count, read.next());
+            count++;
+        }
+        assertEquals(2500, written);
+        assertEquals(written, count);
+        assertEquals("after", BDSv2Mapper.read(in));
+
+        assertEquals(0, BDSv2Mapper.writeAll(Collections.emptyList(), stream));
+        assertFalse(BDSv2Mapper.readAll(new BAIS(stream.toByteArray(), in.getIndex())).hasNext());
+    }
+
+    private static class Node {
+        int number;
+        boolean flag;
+        char letter;
+        double ratio;
+        String name;
+        int[] values;
+        Point point;
+        List<Object> children;
+        Object data;
+
+        public Node() {}
+    }
+
+    private static class Point {
+        final int x, y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private static class PointSerializer implements Serializer {
+        @Override
+        public void serialize(Object obj, BDS bds, BDSUtil.BackrefFixer fixer) {
+            bds.addInts("xy", new int[]{((Point) obj).x, ((Point) obj).y});
+        }
+
+        @Override
+        public Object deserialize(BDS data) {
+            int[] xy = data.getIntArray("xy");
+            return new Point(xy[0], xy[1]);
+        }
+    }
+}
@@ -1,13 +1,36 @@
 package io.github.cubedtear.jcubit.bds;
 
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.github.cubedtear.jcubit.util.Consumer;
+import org.junit.Rule;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author Aritz Lopez
@@ -15,6 +38,9 @@ import static org.junit.Assert.assertEquals;
 @Category(BDSv2.class)
 public class BDSv2Test {
 
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private final byte BYTE_VALUE = (byte) 26;
     private final short SHORT_VALUE = (short) 84;
     private final char CHAR_VALUE = '\u00fc';
@@ -121,4 +147,310 @@ public class BDSv2Test {
         assertEquals(WORKS_BYTE_VALUE, (byte) parsed1Stream.getByte("works"));
 
     }
+
+    @Test
+    public void testDeduplicated() throws Exception {
+        BDSv2 top = new BDSv2();
+        BDSv2[] tiles = new BDSv2[100];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = new BDSv2();
+            tiles[i].addInt("type", i % 3);
+            BDSv2 component = new BDSv2();
+            component.addString("name", "default");
+            component.addDoubles("values", DOUBLE_ARRAY);
+            tiles[i].addBDS("component", component);
+        }
+        top.addBDSs("tiles", tiles);
+        BDSv2 component = new BDSv2();
+        component.addString("name", "default");
+        component.addDoubles("values", DOUBLE_ARRAY);
+        top.addBDS("component", component);
+        top.addInt("nice", NICE_INT_VALUE);
+
+        byte[] deduplicated = top.writeDeduplicated();
+        assertTrue(deduplicated.length < top.write().length / 10);
+
+        BDSv2 parsed = BDSv2.parse(deduplicated);
+        assertEquals(NICE_INT_VALUE, (int) parsed.getInt("nice"));
+        BDSv2[] parsedTiles = parsed.getBDSs("tiles");
+        assertEquals(tiles.length, parsedTiles.length);
+        for (int i = 0; i < parsedTiles.length; i++) {
+            assertEquals(i % 3, (int) parsedTiles[i].getInt("type"));
+            assertSame(parsedTiles[i % 3], parsedTiles[i]);
+            assertSame(parsed.getBDS("component"), parsedTiles[i].getBDS("component"));
+        }
+        assertArrayEquals(DOUBLE_ARRAY, parsed.getBDS("component").getDoubles("values"), 0);
+        assertNotSame(parsedTiles[0], parsedTiles[1]);
+    }
+
+    @Test
+    public void testDeduplicatedNested() throws Exception {
+        BDSv2 top = new BDSv2();
+        for (String name : new String[]{"first", "second"}) {
+            BDSv2 subtree = new BDSv2();
+            subtree.addInt("nice", NICE_INT_VALUE);
+            BDSv2 child = new BDSv2();
+            child.addString("name", STRING_VALUE);
+            subtree.addBDS("child", child);
+            top.addBDS(name, subtree);
+        }
+
+        byte[] deduplicated = top.writeDeduplicated();
+        BDSv2 parsed = BDSv2.parse(deduplicated);
+        assertSame(parsed.getBDS("first"), parsed.getBDS("second"));
+        assertEquals(STRING_VALUE, parsed.getBDS("second").getBDS("child").getString("name"));
+
+        BDSv2 single = new BDSv2();
+        single.addBDS("first", top.getBDS("first"));
+        single.addBDS("second", new BDSv2());
+        assertEquals(single.writeDeduplicated().length, deduplicated.length); // An empty BDSv2 takes 4 bytes, as a reference
+    }
+
+    @Test
+    public void testSchema() throws Exception {
+        BDSv2Schema schema = new BDSv2Schema()
+                .field(0, "x", BDSv2Schema.FieldType.INT)
+                .field(1, "y", BDSv2Schema.FieldType.INT)
+                .field(2, "name", BDSv2Schema.FieldType.STRING)
+                .arrayField(3, "points", BDSv2Schema.FieldType.BDS);
+
+        BDSv2 top = new BDSv2();
+        top.addString("name", STRING_VALUE);
+        top.addLong("notDeclared", LONG_VALUE);
+        BDSv2[] points = new BDSv2[10];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new BDSv2();
+            points[i].addInt("x", i);
+            points[i].addInt("y", -i);
+        }
+        top.addBDSs("points", points);
+
+        byte[] tagged = top.write(schema, false);
+        assertTrue(tagged.length < top.write().length);
+
+        BDSv2 parsed = BDSv2.parse(tagged, schema);
+        assertEquals(STRING_VALUE, parsed.getString("name"));
+        assertEquals(LONG_VALUE, (long) parsed.getLong("notDeclared"));
+        for (int i = 0; i < points.length; i++) {
+            assertEquals(i, (int) parsed.getBDSs("points")[i].getInt("x"));
+            assertEquals(-i, (int) parsed.getBDSs("points")[i].getInt("y"));
+        }
+
+        // Newer version: "y" was removed, "name" became an array, and "z" was added
+        BDSv2Schema newer = new BDSv2Schema()
+                .field(0, "x", BDSv2Schema.FieldType.INT)
+                .arrayField(4, "name", BDSv2Schema.FieldType.STRING)
+                .arrayField(3, "points", BDSv2Schema.FieldType.BDS)
+                .field(5, "z", BDSv2Schema.FieldType.INT);
+        BDSv2 parsedNewer = BDSv2.parse(tagged, newer);
+        assertEquals(0, (int) parsedNewer.getBDSs("points")[0].getInt("x"));
+        assertNull(parsedNewer.getBDSs("points")[0].getInt("y"));
+        assertNull(parsedNewer.getBDSs("points")[0].getInt("z"));
+
+        BDSv2 parsedWithoutSchema = BDSv2.parseStream(new BAIS(tagged));
+        assertEquals(LONG_VALUE, (long) parsedWithoutSchema.getLong("notDeclared"));
+        assertNull(parsedWithoutSchema.getBDSs("points"));
+
+        BDSv2 parsedBoth = BDSv2.parse(top.write(schema, true), schema);
+        assertEquals(9, (int) parsedBoth.getBDSs("points")[9].getInt("x"));
+    }
+
+    @Test
+    public void testChannel() throws Exception {
+        Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        pipe.sink().configureBlocking(false);
+        final List<BDSv2> received = new ArrayList<>();
+        Consumer<BDSv2> handler = new Consumer<BDSv2>() {
+            @Override
+            public void accept(BDSv2 bds) {
+                received.add(bds);
+            }
+        };
+
+        try (BDSv2Channel channel = new BDSv2Channel(pipe.source(), pipe.sink());
+             Selector selector = Selector.open()) {
+            BDSv2[] messages = new BDSv2[50];
+            for (int i = 0; i < messages.length; i++) {
+                messages[i] = new BDSv2();
+                messages[i].addInt("index", i);
+                messages[i].addString("text", Strings.repeat("X", i * i * 20)); // Larger than the pipe and read buffer
+            }
+            channel.write(messages);
+
+            pipe.source().register(selector, SelectionKey.OP_READ);
+            if (channel.hasPendingWrites()) pipe.sink().register(selector, SelectionKey.OP_WRITE);
+            while (received.size() < messages.length) {
+                selector.select(1000);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.isReadable()) assertTrue(channel.read(handler) >= 0);
+                    if (key.isWritable() && channel.flush()) key.cancel();
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+
+        for (int i = 0; i < received.size(); i++) {
+            assertEquals(i, (int) received.get(i).getInt("index"));
+            assertEquals(i * i * 20, received.get(i).getString("text").length());
+        }
+    }
+
+    @Test
+    public void testBuffers() throws Exception {
+        BufferPool pool = new BufferPool(1);
+        byte[] small = pool.acquire(1);
+        assertEquals(BufferPool.MIN_SIZE, small.length);
+        pool.release(small);
+        assertSame(small, pool.acquire(BufferPool.MIN_SIZE));
+        assertEquals(1024, pool.acquire(1000).length);
+
+        BDSv2 bds = new BDSv2();
+        bds.addString("text", Strings.repeat("X", 5000));
+        GrowableOutput out = new GrowableOutput(pool);
+        bds.writeToStream(out);
+        assertArrayEquals(bds.write(), out.toByteArray());
+        ByteBuffer buffer = out.toByteBuffer();
+        assertEquals(out.size(), buffer.remaining());
+        assertEquals(5000, BDSv2.parse(buffer.array()).getString("text").length());
+        out.release();
+        assertEquals(0, out.size());
+
+        byte[] data = bds.write();
+        BAIS in = new BAIS(data, 0, 10);
+        assertEquals(10, in.read(new byte[20], 0, 20));
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read(new byte[1], 0, 1));
+        try {
+            BDSv2.parseStream(new BAIS(data, 0, data.length - 1));
+            fail("Truncated BDSv2 parsed");
+        } catch (EOFException ignored) {
+        }
+
+        BAOS baos = new BAOS(new byte[8], 4);
+        baos.write(new byte[]{1, 2, 3, 4}, 0, 4);
+        assertEquals(8, baos.getIndex());
+        try {
+            baos.write(5);
+            fail("Wrote past the end of a BAOS");
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Test
+    public void testBuilder() throws Exception {
+        BDSv2 nested = new BDSv2();
+        nested.addString("string", STRING_VALUE);
+        BDSv2 expected = new BDSv2();
+        expected.addByte("byte", BYTE_VALUE);
+        expected.addInt("int", INT_VALUE);
+        expected.addDouble("double", DOUBLE_VALUE);
+        expected.addBDS("nested", nested);
+        expected.addShorts("shorts", SHORT_ARRAY);
+        expected.addChars("chars", CHAR_ARRAY);
+        expected.addLongs("longs", LONG_ARRAY);
+        expected.addDoubles("doubles", DOUBLE_ARRAY);
+        expected.addStrings("strings", STRING_ARRAY);
+        expected.addBDSs("bdss", new BDSv2[]{nested, new BDSv2()});
+
+        BDSv2Builder builder = new BDSv2Builder(16); // Tiny chunks, to split elements between them
+        for (int round = 0; round < 2; round++) {
+            builder.reset();
+            builder.addByte("byte", BYTE_VALUE)
+                    .addInt("int", INT_VALUE)
+                    .addDouble("double", DOUBLE_VALUE)
+                    .beginBDS("nested").addString("string", STRING_VALUE).endBDS()
+                    .addShorts("shorts", SHORT_ARRAY)
+                    .addChars("chars", CHAR_ARRAY)
+                    .addLongs("longs", LONG_ARRAY)
+                    .addDoubles("doubles", DOUBLE_ARRAY)
+                    .addStrings("strings", STRING_ARRAY)
+                    .beginBDSArray("bdss", 2)
+                    .beginBDS().addString("string", STRING_VALUE).endBDS()
+                    .beginBDS().endBDS()
+                    .endBDSArray();
+
+            ByteBuffer[] buffers = builder.finish();
+            assertTrue(buffers.length > 1);
+            ByteBuffer all = ByteBuffer.allocate((int) builder.size());
+            for (ByteBuffer buffer : buffers) all.put(buffer);
+            assertArrayEquals(expected.write(), all.array());
+        }
+
+        builder.reset();
+        builder.beginBDSArray("bdss", 1);
+        try {
+            builder.addInt("int", 0);
+            fail("Named element added to a BDSv2 array");
+        } catch (IllegalStateException ignored) {
+        }
+        try {
+            builder.finish();
+            fail("Unfinished BDSv2 array written");
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    @Test
+    public void testConverter() throws Exception {
+        BDS nested = new BDS("nested");
+        nested.addString("string", STRING_VALUE);
+        nested.addChar("char", CHAR_VALUE);
+        BDS v1 = new BDS("root");
+        v1.addByte("byte", BYTE_VALUE);
+        v1.addShort("short", SHORT_VALUE);
+        v1.addInt("int", INT_VALUE);
+        v1.addLong("long", LONG_VALUE);
+        v1.addFloat("float", FLOAT_VALUE);
+        v1.addDouble("double", DOUBLE_VALUE);
+        v1.addBDS(nested);
+        v1.addInts("ints", INT_ARRAY);
+        v1.addDoubles("doubles", DOUBLE_ARRAY);
+        v1.addStrings("strings", STRING_ARRAY);
+        v1.addBDSs("bdss", new BDS[]{nested, new BDS("empty")});
+        byte[] data = v1.write();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BAIS in = new BAIS(data);
+        long written = BDSConverter.v1ToV2(in, out);
+        assertEquals(0, in.getLeft());
+        assertEquals(written, out.size());
+
+        BDSv2 v2 = BDSv2.parse(out.toByteArray());
+        assertEquals(BYTE_VALUE, (byte) v2.getByte("byte"));
+        assertEquals(SHORT_VALUE, (short) v2.getShort("short"));
+        assertEquals(INT_VALUE, (int) v2.getInt("int"));
+        assertEquals(LONG_VALUE, (long) v2.getLong("long"));
+        assertEquals(FLOAT_VALUE, v2.getFloat("float"), 0);
+        assertEquals(DOUBLE_VALUE, v2.getDouble("double"), 0);
+        assertEquals(STRING_VALUE, v2.getBDS("nested").getString("string"));
+        assertEquals(CHAR_VALUE, (char) v2.getBDS("nested").getChar("char"));
+        assertArrayEquals(INT_ARRAY, v2.getInts("ints"));
+        assertArrayEquals(DOUBLE_ARRAY, v2.getDoubles("doubles"), 0);
+        assertArrayEquals(STRING_ARRAY, v2.getStrings("strings"));
+        assertEquals(2, v2.getBDSs("bdss").length);
+        assertEquals(STRING_VALUE, v2.getBDSs("bdss")[0].getString("string"));
+
+        Path source = temporaryFolder.newFolder("bds").toPath();
+        Path target = temporaryFolder.newFolder("bdsv2").toPath();
+        Files.createDirectories(source.resolve("sub"));
+        Files.write(source.resolve("a.BDS"), data);
+        Files.write(source.resolve("sub").resolve("b.BDS"), data);
+        Files.write(source.resolve("ignored.txt"), data);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            assertEquals(2, BDSConverter.v1ToV2(source, target, executor));
+        } finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(out.toByteArray(), Files.readAllBytes(target.resolve("sub").resolve("b" + BDSConverter.V2_EXTENSION)));
+        assertTrue(Files.exists(target.resolve("a" + BDSConverter.V2_EXTENSION)));
+
+        Files.write(source.resolve("broken.BDS"), Arrays.copyOf(data, data.length / 2));
+        try {
+            BDSConverter.v1ToV2(source, target, MoreExecutors.directExecutor());
+            fail("Truncated BDS converted");
+        } catch (EOFException ignored) {
+        }
+    }
 }
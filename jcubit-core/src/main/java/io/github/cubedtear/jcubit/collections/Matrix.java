@@ -137,6 +137,16 @@ public class Matrix<E> implements Collection<ArrayList<E>> {
         return columnList.get(y);
     }
 
+    /**
+     * Returns the element new positions of the matrix are set to
+     *
+     * @return the default element, or {@code null} if there is none
+     */
+    @Nullable
+    public E getDefaultElement() {
+        return this.defaultElement;
+    }
+
     @Override
     public int size() {
         try {
@@ -299,7 +309,7 @@ public class Matrix<E> implements Collection<ArrayList<E>> {
 
         @Override
         public boolean hasNext() {
-            return current >= this.matrix.columns.size();
+            return current < this.matrix.columns.size();
         }
 
         @Override
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 Aritz Lopez
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.github.cubedtear.jcubit.eventBus.processor;
+
+import io.github.cubedtear.jcubit.eventBus.Subscribe;
+import io.github.cubedtear.jcubit.eventBus.SubscriberIndex;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Annotation processor that generates a {@link SubscriberIndex} for each class with {@link Subscribe} methods, so that
+ * the {@link io.github.cubedtear.jcubit.eventBus.EventBus} registers its instances, and calls those methods, without reflection.
+ * <p>
+ * It is found automatically by javac when jcubit-eventBus-processor is in the compile classpath.
+ * Only public methods are indexed, as only those are event-handlers. Classes which are not accessible from their own
+ * package (private, or nested in a private class), anonymous and local classes are not indexed, and are still
+ * registered with reflection.
+ *
+ * @author Aritz Lopez
+ */
+@SupportedAnnotationTypes("io.github.cubedtear.jcubit.eventBus.Subscribe")
+public class SubscriberIndexProcessor extends AbstractProcessor {
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		Map<TypeElement, List<ExecutableElement>> methodsByClass = new LinkedHashMap<>();
+		for (Element element : roundEnv.getElementsAnnotatedWith(Subscribe.class)) {
+			if (element.getKind() != ElementKind.METHOD) continue;
+			ExecutableElement method = (ExecutableElement) element;
+			if (method.getParameters().size() != 1) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Event-handling methods must require just one argument", method);
+				continue;
+			}
+			if (!method.getModifiers().contains(Modifier.PUBLIC)) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Method is not public, so it will not handle events", method);
+				continue;
+			}
+			TypeElement type = (TypeElement) method.getEnclosingElement();
+			if (!isIndexable(type)) continue;
+			List<ExecutableElement> methods = methodsByClass.get(type);
+			if (methods == null) methodsByClass.put(type, methods = new ArrayList<>());
+			methods.add(method);
+		}
+		for (Map.Entry<TypeElement, List<ExecutableElement>> e : methodsByClass.entrySet()) {
+			try {
+				writeIndex(e.getKey(), e.getValue());
+			} catch (IOException ex) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write subscriber index: " + ex, e.getKey());
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether the type can be referenced from a class in its package.
+	 */
+	private static boolean isIndexable(TypeElement type) {
+		for (Element e = type; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+			if (!(e instanceof TypeElement)) return false;
+			NestingKind nesting = ((TypeElement) e).getNestingKind();
+			if (nesting != NestingKind.TOP_LEVEL && nesting != NestingKind.MEMBER) return false;
+			if (e.getModifiers().contains(Modifier.PRIVATE)) return false;
+		}
+		return true;
+	}
+
+	private void writeIndex(TypeElement type, List<ExecutableElement> methods) throws IOException {
+		PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+		String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+		String simpleName = (pkg.isUnnamed() ? binaryName : binaryName.substring(pkg.getQualifiedName().length() + 1)) + SubscriberIndex.SUFFIX;
+		String listenerType = processingEnv.getTypeUtils().erasure(type.asType()).toString();
+
+		JavaFileObject file = processingEnv.getFiler().createSourceFile(binaryName + SubscriberIndex.SUFFIX, type);
+		try (PrintWriter out = new PrintWriter(file.openWriter())) {
+			if (!pkg.isUnnamed()) {
+				out.println("package " + pkg.getQualifiedName() + ";");
+				out.println();
+			}
+			out.println("/**");
+			out.println(" * Subscriber index of {@link " + listenerType + "}, generated by " + getClass().getName() + ".");
+			out.println(" */");
+			out.println("@SuppressWarnings(\"unchecked\")");
+			out.println("public final class " + simpleName + " extends " + SubscriberIndex.class.getName() + " {");
+			out.println();
+			out.println("\tpublic " + simpleName + "() {");
+			out.println("\t\tsuper(" + listenerType + ".class,");
+			StringBuilder names = new StringBuilder();
+			StringBuilder types = new StringBuilder();
+			for (ExecutableElement method : methods) {
+				if (names.length() > 0) {
+					names.append(", ");
+					types.append(", ");
+				}
+				names.append('"').append(method.getSimpleName()).append('"');
+				types.append(parameterType(method)).append(".class");
+			}
+			out.println("\t\t\t\tnew String[]{" + names + "},");
+			out.println("\t\t\t\tnew Class<?>[]{" + types + "});");
+			out.println("\t}");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tpublic void invoke(int method, Object listener, Object event) throws Throwable {");
+			out.println("\t\tswitch (method) {");
+			for (int i = 0; i < methods.size(); i++) {
+				ExecutableElement method = methods.get(i);
+				String target = method.getModifiers().contains(Modifier.STATIC) ? listenerType : "((" + listenerType + ") listener)";
+				out.println("\t\t\tcase " + i + ":");
+				out.println("\t\t\t\t" + target + "." + method.getSimpleName() + "((" + parameterType(method) + ") event);");
+				out.println("\t\t\t\treturn;");
+			}
+			out.println("\t\t\tdefault:");
+			out.println("\t\t\t\tthrow new IllegalArgumentException(\"No such subscriber method: \" + method);");
+			out.println("\t\t}");
+			out.println("\t}");
+			out.println("}");
+		}
+	}
+
+	private String parameterType(ExecutableElement method) {
+		VariableElement param = method.getParameters().get(0);
+		TypeMirror erasure = processingEnv.getTypeUtils().erasure(param.asType());
+		return erasure.toString();
+	}
+}
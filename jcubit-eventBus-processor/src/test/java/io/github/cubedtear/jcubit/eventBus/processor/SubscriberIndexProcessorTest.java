@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Aritz Lopez
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.github.cubedtear.jcubit.eventBus.processor;
+
+import io.github.cubedtear.jcubit.eventBus.EventBus;
+import io.github.cubedtear.jcubit.eventBus.EventException;
+import io.github.cubedtear.jcubit.eventBus.Subscribe;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Aritz Lopez
+ */
+public class SubscriberIndexProcessorTest {
+
+	private static final String SOURCE = "package sample;\n" +
+			"\n" +
+			"import io.github.cubedtear.jcubit.eventBus.Subscribe;\n" +
+			"import java.util.ArrayList;\n" +
+			"import java.util.List;\n" +
+			"\n" +
+			"public class Listener {\n" +
+			"	public static List<String> callers;\n" +
+			"	public int count;\n" +
+			"\n" +
+			"	@Subscribe\n" +
+			"	public void handleInteger(Integer event) {\n" +
+			"		count += event;\n" +
+			"		recordCallers();\n" +
+			"	}\n" +
+			"\n" +
+			"	@Subscribe\n" +
+			"	public void handleString(String event) {\n" +
+			"		throw new IllegalStateException(event);\n" +
+			"	}\n" +
+			"\n" +
+			"	static void recordCallers() {\n" +
+			"		callers = new ArrayList<>();\n" +
+			"		for (StackTraceElement e : Thread.currentThread().getStackTrace()) callers.add(e.getClassName());\n" +
+			"	}\n" +
+			"\n" +
+			"	public static class Nested {\n" +
+			"		public String last;\n" +
+			"\n" +
+			"		@Subscribe\n" +
+			"		public void handle(String event) {\n" +
+			"			last = event;\n" +
+			"			recordCallers();\n" +
+			"		}\n" +
+			"	}\n" +
+			"}\n";
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private EventException exception;
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testGeneratedIndex() throws Exception {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		Assume.assumeNotNull(compiler); // Running on a JRE
+		File source = new File(temporaryFolder.newFolder("src"), "Listener.java");
+		File classes = temporaryFolder.newFolder("classes");
+		Files.write(source.toPath(), SOURCE.getBytes(StandardCharsets.UTF_8));
+
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8)) {
+			JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+					Arrays.asList("-classpath", System.getProperty("java.class.path"), "-d", classes.getPath()),
+					null, fileManager.getJavaFileObjects(source));
+			task.setProcessors(Collections.singletonList(new SubscriberIndexProcessor()));
+			Assert.assertTrue(diagnostics.getDiagnostics().toString(), task.call());
+		}
+		Assert.assertTrue(new File(classes, "sample/Listener_SubscriberIndex.class").isFile());
+		Assert.assertTrue(new File(classes, "sample/Listener$Nested_SubscriberIndex.class").isFile());
+
+		try (URLClassLoader loader = new URLClassLoader(new URL[]{classes.toURI().toURL()}, getClass().getClassLoader())) {
+			Class<?> listenerClass = loader.loadClass("sample.Listener");
+			Object listener = listenerClass.newInstance();
+			Object nested = loader.loadClass("sample.Listener$Nested").newInstance();
+			EventBus bus = new EventBus();
+			bus.register(listener);
+			bus.register(nested);
+			bus.register(this);
+
+			bus.post(2);
+			Assert.assertEquals(2, listenerClass.getField("count").get(listener));
+			List<String> callers = (List<String>) listenerClass.getField("callers").get(null);
+			Assert.assertTrue("Handler not called through the index: " + callers, callers.contains("sample.Listener_SubscriberIndex"));
+
+			bus.post("event");
+			Assert.assertEquals("event", nested.getClass().getField("last").get(nested));
+			callers = (List<String>) listenerClass.getField("callers").get(null);
+			Assert.assertTrue("Handler not called through the index: " + callers, callers.contains("sample.Listener$Nested_SubscriberIndex"));
+			Assert.assertNotNull("Exception was not posted", exception);
+			Assert.assertTrue(exception.getCause() instanceof InvocationTargetException);
+			Assert.assertTrue(exception.getCause().getCause() instanceof IllegalStateException);
+		}
+	}
+
+	@Subscribe
+	public void handleException(EventException e) {
+		this.exception = e;
+	}
+}
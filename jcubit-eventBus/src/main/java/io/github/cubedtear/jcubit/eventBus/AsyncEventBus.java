@@ -0,0 +1,302 @@
+/*
+ * Copyright 2014 Aritz Lopez
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.github.cubedtear.jcubit.eventBus;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import io.github.cubedtear.jcubit.util.API;
+import io.github.cubedtear.jcubit.util.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link EventBus} that delivers the events in an {@link Executor}, instead of in the thread that posts them.
+ * <p>
+ * Each listener has its own bounded queue, which is drained by at most one task at a time, so every listener
+ * receives the events in the order they were posted, and never handles two of them at the same time.
+ * Different listeners may handle events concurrently, depending on the executor.
+ * When a queue is full, the {@link OverflowPolicy} of the bus decides what happens to the new event.
+ * <p>
+ * {@link Coalescable} events replace the undelivered event of the same class and coalescing key in each queue,
+ * instead of taking more space in it.
+ *
+ * @author Aritz Lopez
+ */
+public class AsyncEventBus extends EventBus {
+
+	/**
+	 * Default capacity of the queue of each listener.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * What to do when an event is posted to a listener whose queue is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Wait in the posting thread until there is space in the queue.
+		 * If the posting thread is interrupted while waiting, the event is dropped, and the thread's interrupt
+		 * status is set again.
+		 * <b>Note: a handler posting an event to its own, full, queue will wait forever.</b>
+		 */
+		BLOCK,
+		/**
+		 * Drop the oldest event in the queue, which was not delivered yet, to make space for the new one.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Drop the new event.
+		 */
+		DROP_NEWEST,
+		/**
+		 * Deliver the new event in the posting thread. This is the only case in which a listener may receive the
+		 * events out of order, or handle two events at the same time.
+		 */
+		CALLER_RUNS
+	}
+
+	private final Executor executor;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final ConcurrentMap<Object, SubscriberQueue> queues = new MapMaker().weakKeys().makeMap();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Creates an AsyncEventBus with name "Main", which delivers the events in the given executor, with queues of
+	 * {@link AsyncEventBus#DEFAULT_CAPACITY} events, and the {@link OverflowPolicy#BLOCK} policy.
+	 *
+	 * @param executor The executor in which the events are delivered.
+	 */
+	public AsyncEventBus(@NotNull Executor executor) {
+		this("Main", executor, DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+	}
+
+	/**
+	 * Creates an AsyncEventBus.
+	 *
+	 * @param name     The name of the EventBus.
+	 * @param executor The executor in which the events are delivered.
+	 * @param capacity The maximum number of events waiting to be delivered to each listener.
+	 * @param policy   What to do when an event is posted to a listener which already has {@code capacity} events waiting.
+	 */
+	public AsyncEventBus(String name, @NotNull Executor executor, int capacity, @NotNull OverflowPolicy policy) {
+		super(name);
+		Preconditions.checkArgument(capacity > 0, "Capacity must be positive: %s", capacity);
+		this.executor = Preconditions.checkNotNull(executor);
+		this.capacity = capacity;
+		this.policy = Preconditions.checkNotNull(policy);
+	}
+
+	/**
+	 * Returns the number of events that were not delivered to some listener because its queue was full.
+	 * Each event is counted once per listener that did not receive it, and each batch of events posted with
+	 * {@link EventBus#postAll(java.util.Collection)} is counted once per batch handler that did not receive it.
+	 *
+	 * @return the number of dropped events.
+	 */
+	@API
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of {@link Coalescable} events that replaced an undelivered one.
+	 * Each event is counted once per listener in which it replaced another one.
+	 *
+	 * @return the number of coalesced events.
+	 */
+	@API
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Queues the event to each of its handlers. As the handlers are called later, the event is only resent as a
+	 * {@link DeadEvent} if there are no handlers for it.
+	 */
+	@Override
+	void dispatch(Object event, EventHandler[] handlers) {
+		for (EventHandler h : handlers) {
+			Object listener = h.getListener();
+			if (listener == null) continue; // Garbage collected
+			if (!queueFor(listener).offer(h, event, false)) this.handle(h, event);
+		}
+	}
+
+	/**
+	 * Queues the events to each of their handlers, as a single delivery for {@link Subscribe#batch() batch} handlers.
+	 */
+	@Override
+	void dispatchAll(List<Object> events, EventHandler[] handlers) {
+		for (EventHandler h : handlers) {
+			Object listener = h.getListener();
+			if (listener == null) continue; // Garbage collected
+			SubscriberQueue queue = queueFor(listener);
+			if (h.batch) {
+				if (!queue.offer(h, events, true)) this.handleAll(h, events);
+			} else {
+				for (Object event : events) {
+					if (!queue.offer(h, event, false)) this.handle(h, event);
+				}
+			}
+		}
+	}
+
+	private SubscriberQueue queueFor(Object listener) {
+		SubscriberQueue queue = queues.get(listener);
+		if (queue == null) {
+			SubscriberQueue created = new SubscriberQueue();
+			queue = queues.putIfAbsent(listener, created);
+			if (queue == null) queue = created;
+		}
+		return queue;
+	}
+
+	/**
+	 * The events waiting to be delivered to a single listener, and the task that delivers them.
+	 */
+	private final class SubscriberQueue implements Runnable {
+		private final ArrayDeque<Delivery> deliveries = new ArrayDeque<>();
+		/**
+		 * The undelivered deliveries of {@link Coalescable} events, by their handler, class and coalescing key.
+		 */
+		private final Map<List<Object>, Delivery> coalescing = Maps.newHashMap();
+		private boolean scheduled;
+
+		/**
+		 * Queues the delivery, and schedules this queue if it wasn't.
+		 *
+		 * @return {@code false} if the caller must deliver the event itself.
+		 */
+		boolean offer(EventHandler handler, Object event, boolean batch) {
+			List<Object> key = null;
+			if (!batch && event instanceof Coalescable) {
+				Object coalescingKey = ((Coalescable) event).getCoalescingKey();
+				if (coalescingKey != null) key = Arrays.asList(handler, event.getClass(), coalescingKey);
+			}
+			Delivery delivery;
+			synchronized (this) {
+				if (key != null) {
+					Delivery pending = coalescing.get(key);
+					if (pending != null) {
+						pending.event = event;
+						coalesced.incrementAndGet();
+						return true;
+					}
+				}
+				while (deliveries.size() >= capacity) {
+					switch (policy) {
+						case BLOCK:
+							try {
+								this.wait();
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+								dropped.incrementAndGet();
+								return true;
+							}
+							break;
+						case DROP_OLDEST:
+							Delivery oldest = deliveries.poll();
+							if (oldest.coalescingKey != null) coalescing.remove(oldest.coalescingKey);
+							dropped.incrementAndGet();
+							break;
+						case DROP_NEWEST:
+							dropped.incrementAndGet();
+							return true;
+						case CALLER_RUNS:
+							return false;
+					}
+				}
+				delivery = new Delivery(handler, event, batch, key);
+				deliveries.add(delivery);
+				if (key != null) coalescing.put(key, delivery);
+				if (scheduled) return true;
+				scheduled = true;
+			}
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				synchronized (this) {
+					// Nothing will drain the queue, so don't keep the event, or posters would eventually block forever
+					scheduled = false;
+					deliveries.removeLastOccurrence(delivery);
+					if (key != null) coalescing.remove(key);
+					if (policy == OverflowPolicy.BLOCK) this.notifyAll();
+				}
+				throw e;
+			}
+			return true;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void run() {
+			boolean pending = true;
+			try {
+				while (true) {
+					Delivery delivery;
+					synchronized (this) {
+						delivery = deliveries.poll();
+						if (delivery == null) {
+							scheduled = false;
+							pending = false;
+							return;
+						}
+						if (delivery.coalescingKey != null) coalescing.remove(delivery.coalescingKey);
+						if (policy == OverflowPolicy.BLOCK) this.notifyAll();
+					}
+					if (delivery.batch) handleAll(delivery.handler, (List<Object>) delivery.event);
+					else handle(delivery.handler, delivery.event);
+				}
+			} finally {
+				if (pending) { // A handler threw an Error, keep delivering the rest in a new task
+					try {
+						executor.execute(this);
+					} catch (RejectedExecutionException e) {
+						// Let the Error propagate. The rest are delivered when the next event schedules this queue
+						synchronized (this) {
+							scheduled = false;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static final class Delivery {
+		final EventHandler handler;
+		final boolean batch;
+		final List<Object> coalescingKey;
+		Object event; // Replaced by newer events with the same coalescing key, while queued
+
+		Delivery(EventHandler handler, Object event, boolean batch, List<Object> coalescingKey) {
+			this.handler = handler;
+			this.event = event;
+			this.batch = batch;
+			this.coalescingKey = coalescingKey;
+		}
+	}
+}
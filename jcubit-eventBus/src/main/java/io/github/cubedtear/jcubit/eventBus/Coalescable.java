@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014 Aritz Lopez
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.github.cubedtear.jcubit.eventBus;
+
+import io.github.cubedtear.jcubit.util.Nullable;
+
+/**
+ * Interface for events of which only the newest one matters, like mouse movements or state changes.
+ * <p>
+ * When such an event is posted in an {@link AsyncEventBus}, and a listener still has an undelivered event of the same
+ * class and with an equal coalescing key, the pending event is replaced by the new one, keeping its place in the queue.
+ * Events are never coalesced in a plain {@link EventBus}, as they are delivered immediately.
+ * They are not coalesced in a {@link RingEventBus} either: its slots are preallocated and shared by all listeners,
+ * and finding the superseded ones would need a lookup per event, so every published event is delivered.
+ *
+ * @author Aritz Lopez
+ */
+public interface Coalescable {
+
+	/**
+	 * Returns the key that identifies which events replace each other, e.g. the id of the entity whose state changed.
+	 * It must be consistent with {@link Object#equals(Object)} and {@link Object#hashCode()}.
+	 *
+	 * @return the coalescing key, or {@code null} if this event must not be coalesced.
+	 */
+	@Nullable
+	Object getCoalescingKey();
+}
@@ -16,33 +16,97 @@
 
 package io.github.cubedtear.jcubit.eventBus;
 
+import com.google.common.base.Throwables;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import io.github.cubedtear.jcubit.util.API;
 import io.github.cubedtear.jcubit.util.NotNull;
+import io.github.cubedtear.jcubit.util.Nullable;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 
 /**
  * An EventBus implementation. Where some objects can be registered as event-handlers, and when events are post, they will handle them.
+ * <p>
+ * It is safe to post, register and unregister from several threads at the same time. Registering and unregistering
+ * replace an immutable snapshot of the handlers, so posting never blocks, and each post sees the handlers that were
+ * registered when it started.
  *
  * @author Aritz Lopez
  */
 public class EventBus {
 
-	private final Multimap<Class, EventHandler> handlersByEventType = ArrayListMultimap.create();
+	private static final EventHandler[] NO_HANDLERS = new EventHandler[0];
+
+	/**
+	 * The methods with the {@link Subscribe} annotation of each listener class, including the inherited ones.
+	 * Shared by all buses, as they only depend on the class.
+	 * The {@link SubscriberIndex} of each class in the hierarchy is used if present, and reflection otherwise.
+	 */
+	private static final LoadingCache<Class, List<Subscriber>> subscriberMethods = CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<Class, List<Subscriber>>() {
+		@Override
+		public List<Subscriber> load(@NotNull Class listenerClass) throws Exception {
+			Map<List<Object>, Subscriber> ret = Maps.newLinkedHashMap(); // By signature, so that overridden methods are only found once
+			for (Class clazz = listenerClass; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+				SubscriberIndex index = SubscriberIndex.find(clazz);
+				if (index != null) {
+					for (int i = 0; i < index.size(); i++) {
+						Method m = index.getMethod(i);
+						EventHandler.getEventType(m); // Check batch handlers
+						List<Object> signature = Lists.<Object>newArrayList(m.getName(), m.getParameterTypes()[0]);
+						if (!ret.containsKey(signature)) ret.put(signature, new Subscriber(m, index, i));
+					}
+					continue;
+				}
+				for (Method m : clazz.getMethods()) {
+					if (!m.isAnnotationPresent(Subscribe.class)) continue;
+					Class[] params = m.getParameterTypes();
+
+					if (params.length != 1)
+						throw new IllegalArgumentException("Method " + m + " has @Subscribe annotation" +
+								"and requires " + params.length +
+								" arguments, but event-handling methods must require just one argument");
+					EventHandler.getEventType(m); // Check batch handlers
+					List<Object> signature = Lists.<Object>newArrayList(m.getName(), params[0]);
+					if (!ret.containsKey(signature)) ret.put(signature, new Subscriber(m, null, -1));
+				}
+			}
+			return ImmutableList.copyOf(ret.values());
+		}
+	});
+
+	private final Object registryLock = new Object();
+	/**
+	 * Where the references to weakly registered listeners are enqueued once they are garbage collected, so that their
+	 * handlers are removed on the next post.
+	 */
+	private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+	private volatile Registry registry = new Registry(ImmutableListMultimap.<Class, EventHandler>of());
 	private final String name; // For now useless, will add use for this "shortly"
 	private final LoadingCache<Class, Set<Class>> flattenHierarchy = CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<Class, Set<Class>>() {
 		@Override
 		public Set<Class> load(@NotNull Class concreteClass) throws Exception {
-			Set<Class> ret = Sets.newHashSet();
+			Set<Class> ret = Sets.newLinkedHashSet();
 			for (Class c = concreteClass; c != null; c = c.getSuperclass()) {
 				ret.add(c);
 				Collections.addAll(ret, c.getInterfaces());
@@ -68,34 +132,89 @@ public class EventBus {
 
 	/**
 	 * Registers the object as an event-handler for all methods of its class or superclasses that have the {@link Subscribe} annotation.
+	 * The bus keeps a strong reference to the object until it is {@link EventBus#unregister(Object) unregistered}.
 	 * @param listener The object to register as an event-handler.
 	 */
 	public void register(final Object listener) {
-		for (Class clazz = listener.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
-			Method[] methods = clazz.getMethods();
-			for (Method m : methods) {
-				if (!m.isAnnotationPresent(Subscribe.class)) continue;
-				Class[] params = m.getParameterTypes();
-
-				if (params.length != 1)
-					throw new IllegalArgumentException("Method " + m + " has @Subscribe annotation" +
-							"and requires " + params.length +
-							" arguments, but event-handling methods must require just one argument");
-				Class event = params[0];
-				EventHandler handler = new EventHandler(listener, m);
-				this.handlersByEventType.put(event, handler);
+		this.register(listener, null, false);
+	}
+
+	/**
+	 * Registers the object as an event-handler for all methods of its class or superclasses that have the {@link Subscribe} annotation,
+	 * which will only receive the {@link Routable} events with the given routing key.
+	 * Events which are not Routable are received as with {@link EventBus#register(Object)}.
+	 * @param listener   The object to register as an event-handler.
+	 * @param routingKey The routing key of the events to receive, or {@code null} to receive all of them.
+	 */
+	@API
+	public void register(final Object listener, @Nullable final Object routingKey) {
+		this.register(listener, routingKey, false);
+	}
+
+	/**
+	 * Registers the object as an event-handler, like {@link EventBus#register(Object)}, but only keeps a weak reference
+	 * to it, so that it is unregistered automatically once it is garbage collected.
+	 * <b>Note: the object must be strongly referenced somewhere else, or it will stop receiving events at any time.</b>
+	 * @param listener The object to register as an event-handler.
+	 */
+	@API
+	public void registerWeakly(final Object listener) {
+		this.register(listener, null, true);
+	}
+
+	/**
+	 * Registers the object as an event-handler, like {@link EventBus#register(Object, Object)}, but only keeps a weak
+	 * reference to it, so that it is unregistered automatically once it is garbage collected.
+	 * <b>Note: the object must be strongly referenced somewhere else, or it will stop receiving events at any time.</b>
+	 * @param listener   The object to register as an event-handler.
+	 * @param routingKey The routing key of the events to receive, or {@code null} to receive all of them.
+	 */
+	@API
+	public void registerWeakly(final Object listener, @Nullable final Object routingKey) {
+		this.register(listener, routingKey, true);
+	}
+
+	private void register(Object listener, Object routingKey, boolean weak) {
+		List<Subscriber> subscribers = getSubscribers(listener.getClass());
+		if (subscribers.isEmpty()) return;
+		WeakReference<Object> reference = weak ? new WeakReference<>(listener, collected) : null;
+		synchronized (registryLock) {
+			ImmutableListMultimap.Builder<Class, EventHandler> handlers = ImmutableListMultimap.builder();
+			handlers.putAll(this.registry.handlersByEventType);
+			for (Subscriber subscriber : subscribers) {
+				EventHandler handler = subscriber.newHandler(weak ? null : listener, reference, routingKey);
+				handlers.put(handler.eventType, handler);
 			}
+			this.registry = new Registry(handlers.build());
 		}
 	}
 
 	/**
-	 * Unregisters the object from the event-handlers.
+	 * Unregisters the object from the event-handlers, removing all the handlers registered for it.
 	 * @param listener The object to unregister.
 	 */
 	@API
 	public void unregister(final Object listener) {
-		for (Class clazz = listener.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
-			this.handlersByEventType.removeAll(clazz);
+		this.removeHandlers(listener);
+	}
+
+	/**
+	 * Removes the handlers of the given listener, and the ones of weakly registered listeners which have been
+	 * garbage collected.
+	 */
+	private void removeHandlers(@Nullable Object listener) {
+		synchronized (registryLock) {
+			while (collected.poll() != null) {
+				// Just empty the queue, the handlers of all collected listeners are removed below
+			}
+			ImmutableListMultimap.Builder<Class, EventHandler> handlers = ImmutableListMultimap.builder();
+			boolean removed = false;
+			for (Map.Entry<Class, EventHandler> e : this.registry.handlersByEventType.entries()) {
+				EventHandler handler = e.getValue();
+				if (handler.isCollected() || (listener != null && handler.getListener() == listener)) removed = true;
+				else handlers.put(e);
+			}
+			if (removed) this.registry = new Registry(handlers.build());
 		}
 	}
 
@@ -107,24 +226,153 @@ public class EventBus {
 	 * @param event The event to post
 	 */
 	public void post(@NotNull final Object event) {
-		Set<Class> eventTypes = flattenHierarchy(event.getClass());
-		boolean handled = false;
-		for (Class c : eventTypes) {
-			for (EventHandler h : this.handlersByEventType.get(c)) {
-				try {
-					h.handle(event);
-					handled = true;
-				} catch (EventException e) {
-					if (event instanceof EventException) continue;
-					this.post(e); // If an exception is thrown, post the exception as an event, so that exception-handlers can deal with it
+		if (collected.poll() != null) this.removeHandlers(null);
+		EventHandler[] handlers = getHandlers(event);
+		if (handlers.length == 0) {
+			if (!(event instanceof DeadEvent)) this.post(new DeadEvent(event));
+			return;
+		}
+		this.dispatch(event, handlers);
+	}
+
+	/**
+	 * Posts several events, delivering them grouped by their class (and {@link Routable routing key}): the handlers of each group are looked up once,
+	 * and {@link Subscribe#batch() batch} handlers receive all the events of the group in a single call.
+	 * Events of the same group are delivered in the order of {@code events}, but the order between events of
+	 * different groups is not kept.
+	 * Otherwise, each event is handled as if posted with {@link EventBus#post(Object)}.
+	 *
+	 * @param events The events to post.
+	 */
+	@API
+	public void postAll(@NotNull Collection<?> events) {
+		if (collected.poll() != null) this.removeHandlers(null);
+		Map<Object, List<Object>> groups = Maps.newLinkedHashMap();
+		for (Object event : events) {
+			Object routingKey = event instanceof Routable ? ((Routable) event).getRoutingKey() : null;
+			Object groupKey = routingKey == null ? event.getClass() : Arrays.asList(event.getClass(), routingKey);
+			List<Object> group = groups.get(groupKey);
+			if (group == null) groups.put(groupKey, group = Lists.newArrayList());
+			group.add(event);
+		}
+		for (Map.Entry<Object, List<Object>> group : groups.entrySet()) {
+			EventHandler[] handlers = getHandlers(group.getValue().get(0));
+			if (handlers.length == 0) {
+				for (Object event : group.getValue()) {
+					if (!(event instanceof DeadEvent)) this.post(new DeadEvent(event));
 				}
+				continue;
 			}
+			this.dispatchAll(Collections.unmodifiableList(group.getValue()), handlers);
+		}
+	}
+
+	/**
+	 * Delivers the event to each of its handlers. The event is resent as a {@link DeadEvent} if all of them threw
+	 * an exception.
+	 *
+	 * @param event    The event to deliver.
+	 * @param handlers The handlers of the event, at least one.
+	 */
+	void dispatch(Object event, EventHandler[] handlers) {
+		boolean handled = false;
+		for (EventHandler h : handlers) {
+			handled |= this.handle(h, event);
 		}
 		if (!handled && !(event instanceof DeadEvent)) {
 			this.post(new DeadEvent(event));
 		}
 	}
 
+	/**
+	 * Delivers the events, all of the same class, to each of their handlers. Each event is resent as a
+	 * {@link DeadEvent} if all the handlers that received it threw an exception.
+	 *
+	 * @param events   The events to deliver.
+	 * @param handlers The handlers of the events, at least one.
+	 */
+	void dispatchAll(List<Object> events, EventHandler[] handlers) {
+		boolean[] handled = new boolean[events.size()];
+		boolean batchHandled = false;
+		for (EventHandler h : handlers) {
+			if (h.batch) {
+				batchHandled |= this.handleAll(h, events);
+			} else {
+				for (int i = 0; i < handled.length; i++) handled[i] |= this.handle(h, events.get(i));
+			}
+		}
+		if (batchHandled) return;
+		for (int i = 0; i < handled.length; i++) {
+			if (!handled[i] && !(events.get(i) instanceof DeadEvent)) this.post(new DeadEvent(events.get(i)));
+		}
+	}
+
+	/**
+	 * Delivers the event to a single handler.
+	 * If the handler throws an exception, it is post as an {@link EventException}, unless the event already was one.
+	 *
+	 * @return {@code true} if the handler did not throw an exception.
+	 */
+	boolean handle(EventHandler handler, Object event) {
+		try {
+			handler.handle(handler.batch ? Collections.singletonList(event) : event);
+			return true;
+		} catch (EventException e) {
+			if (!(event instanceof EventException)) this.post(e); // Post the exception as an event, so that exception-handlers can deal with it
+			return false;
+		}
+	}
+
+	/**
+	 * Delivers the events, all of the same class, to a single {@link Subscribe#batch() batch} handler.
+	 * If the handler throws an exception, it is post as an {@link EventException}, unless the events already were ones.
+	 *
+	 * @return {@code true} if the handler did not throw an exception.
+	 */
+	boolean handleAll(EventHandler handler, List<Object> events) {
+		try {
+			handler.handle(events);
+			return true;
+		} catch (EventException e) {
+			if (!(events.get(0) instanceof EventException)) this.post(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the methods with the {@link Subscribe} annotation of the given listener class, including the inherited ones.
+	 *
+	 * @throws IllegalArgumentException If any of them does not take exactly one argument, or is a batch handler
+	 *                                  that does not take a List of events.
+	 */
+	static List<Subscriber> getSubscribers(Class listenerClass) {
+		try {
+			return subscriberMethods.getUnchecked(listenerClass);
+		} catch (UncheckedExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause());
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the handlers of the given event, including the ones registered for the superclasses and interfaces of
+	 * its class, from the current snapshot.
+	 */
+	private EventHandler[] getHandlers(final Object event) {
+		Registry registry = this.registry;
+		Class eventClass = event.getClass();
+		Dispatch dispatch = registry.dispatchTable.get(eventClass);
+		if (dispatch == null) {
+			dispatch = new Dispatch(eventClass, registry.handlersByEventType);
+			Dispatch previous = registry.dispatchTable.putIfAbsent(eventClass, dispatch);
+			if (previous != null) dispatch = previous;
+		}
+		if (dispatch.routed.isEmpty()) return dispatch.handlers;
+		Object routingKey = ((Routable) event).getRoutingKey();
+		EventHandler[] routed = routingKey == null ? null : dispatch.routed.get(routingKey);
+		return routed == null ? dispatch.handlers : routed;
+	}
+
 	private Set<Class> flattenHierarchy(final Class c) {
 		try {
 			return flattenHierarchy.get(c);
@@ -135,7 +383,7 @@ public class EventBus {
 
 	@Override
 	public int hashCode() {
-		int result = handlersByEventType.hashCode();
+		int result = registry.handlersByEventType.hashCode();
 		result = 31 * result + name.hashCode();
 		return result;
 	}
@@ -147,11 +395,71 @@ public class EventBus {
 
 		EventBus eventBus = (EventBus) o;
 
-		return handlersByEventType.equals(eventBus.handlersByEventType) && name.equals(eventBus.name);
+		return registry.handlersByEventType.equals(eventBus.registry.handlersByEventType) && name.equals(eventBus.name);
 	}
 
 	@Override
 	public String toString() {
 		return "[EventBus " + this.name + "]";
 	}
+
+	/**
+	 * A method with the {@link Subscribe} annotation, and the {@link SubscriberIndex} which calls it, if any.
+	 */
+	static final class Subscriber {
+		final Method method;
+		final SubscriberIndex index;
+		final int position;
+
+		Subscriber(Method method, @Nullable SubscriberIndex index, int position) {
+			this.method = method;
+			this.index = index;
+			this.position = position;
+		}
+
+		EventHandler newHandler(@Nullable Object listener, @Nullable WeakReference<Object> reference, @Nullable Object routingKey) {
+			return new EventHandler(listener, reference, method, routingKey, index, position);
+		}
+	}
+
+	/**
+	 * An immutable snapshot of the registered handlers. The dispatch table of each concrete event class is computed
+	 * when it is first posted, and discarded with the snapshot.
+	 */
+	private static final class Registry {
+		final ImmutableListMultimap<Class, EventHandler> handlersByEventType;
+		final ConcurrentMap<Class, Dispatch> dispatchTable = new MapMaker().weakKeys().makeMap();
+
+		Registry(ImmutableListMultimap<Class, EventHandler> handlersByEventType) {
+			this.handlersByEventType = handlersByEventType;
+		}
+	}
+
+	/**
+	 * The handlers of a concrete event class. For {@link Routable} classes, the handlers registered with a routing key
+	 * are indexed by it, each key with its own array, which also contains the handlers registered without one.
+	 */
+	private final class Dispatch {
+		final EventHandler[] handlers;
+		final Map<Object, EventHandler[]> routed;
+
+		Dispatch(Class eventClass, ImmutableListMultimap<Class, EventHandler> handlersByEventType) {
+			boolean routable = Routable.class.isAssignableFrom(eventClass);
+			List<EventHandler> all = Lists.newArrayList();
+			ListMultimap<Object, EventHandler> byKey = ArrayListMultimap.create();
+			for (Class c : flattenHierarchy(eventClass)) {
+				for (EventHandler h : handlersByEventType.get(c)) {
+					if (routable && h.routingKey != null) byKey.put(h.routingKey, h);
+					else all.add(h);
+				}
+			}
+			this.handlers = all.isEmpty() ? NO_HANDLERS : all.toArray(new EventHandler[all.size()]);
+			this.routed = Maps.newHashMapWithExpectedSize(byKey.keySet().size());
+			for (Object key : byKey.keySet()) {
+				List<EventHandler> handlers = Lists.newArrayList(all);
+				handlers.addAll(byKey.get(key));
+				this.routed.put(key, handlers.toArray(new EventHandler[handlers.size()]));
+			}
+		}
+	}
 }
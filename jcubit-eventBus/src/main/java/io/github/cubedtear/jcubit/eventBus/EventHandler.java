@@ -16,18 +16,65 @@
 
 package io.github.cubedtear.jcubit.eventBus;
 
+import com.google.common.primitives.Primitives;
+import io.github.cubedtear.jcubit.util.API;
+import io.github.cubedtear.jcubit.util.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.List;
 
 /**
  * Wrapper for an object an a method of that object, used to ease the handling of events.
+ * <p>
+ * The method is called through a {@link MethodHandle} bound to the object, created once, which avoids the argument
+ * array, access checks and exception wrapping of {@link Method#invoke(Object, Object...)} on every event.
+ * Reflection is only used if the method handle cannot be created. If the listener class has a {@link SubscriberIndex},
+ * generated at compile time, the method is called directly through it instead.
+ * <p>
+ * The object may be referenced weakly, in which case the handler does nothing once the object has been garbage collected.
  *
  * @author Aritz Lopez
  */
 public class EventHandler {
+	/**
+	 * The object that handles the events, or {@code null} if it is referenced weakly. See {@link EventHandler#getListener()}.
+	 */
 	public final Object listener;
 	public final Method handler;
 
+	private static final MethodType INVOKER_TYPE = MethodType.methodType(void.class, Object.class);
+	private static final MethodType WEAK_INVOKER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+	private final WeakReference<Object> reference;
+	/**
+	 * Of type {@link EventHandler#INVOKER_TYPE}, or {@link EventHandler#WEAK_INVOKER_TYPE} (taking the listener first)
+	 * if the listener is referenced weakly.
+	 */
+	private final MethodHandle invoker;
+	private final SubscriberIndex index;
+	private final int position;
+	private final Class<?> argumentType;
+	/**
+	 * The type of the events this handler handles. For batch handlers, the type of the elements of the List.
+	 */
+	final Class<?> eventType;
+	/**
+	 * Whether the method receives a List of events, instead of a single one.
+	 */
+	final boolean batch;
+	/**
+	 * The key of the {@link Routable} events this handler receives, or {@code null} if it receives all of them.
+	 */
+	final Object routingKey;
+
 	/**
 	 * Creates an EventHandler.
 	 *
@@ -35,18 +82,133 @@ public class EventHandler {
 	 * @param handler  The method of the object {@code listener} which will be called to handle the method.
 	 */
 	protected EventHandler(Object listener, Method handler) {
+		this(listener, null, handler, null, null, -1);
+	}
+
+	/**
+	 * Creates an EventHandler.
+	 *
+	 * @param listener   The object that will handle the events, and which contains the method {@code handler},
+	 *                   or {@code null} if it is referenced weakly.
+	 * @param reference  A weak reference to the object, if {@code listener} is {@code null}.
+	 * @param handler    The method of the object {@code listener} which will be called to handle the method.
+	 * @param routingKey The routing key of the events to receive, or {@code null} to receive all of them.
+	 * @param index      The generated index which calls {@code handler} directly, or {@code null} if there is none.
+	 * @param position   The position of {@code handler} in {@code index}.
+	 */
+	EventHandler(Object listener, WeakReference<Object> reference, Method handler, Object routingKey, SubscriberIndex index, int position) {
 		this.listener = listener;
+		this.reference = reference;
+		this.routingKey = routingKey;
 		this.handler = handler;
+		this.argumentType = Primitives.wrap(handler.getParameterTypes()[0]);
+		this.eventType = getEventType(handler);
+		Subscribe subscribe = handler.getAnnotation(Subscribe.class);
+		this.batch = subscribe != null && subscribe.batch();
+		this.index = index;
+		this.position = position;
+		this.invoker = index == null ? createInvoker(listener, handler) : null;
+	}
+
+	/**
+	 * Returns the object that handles the events.
+	 *
+	 * @return the listener, or {@code null} if it was referenced weakly, and has been garbage collected.
+	 */
+	@API
+	@Nullable
+	public Object getListener() {
+		return reference == null ? listener : reference.get();
+	}
+
+	/**
+	 * Returns whether the listener was referenced weakly, and has been garbage collected.
+	 */
+	boolean isCollected() {
+		return reference != null && reference.get() == null;
+	}
+
+	/**
+	 * Returns the type of the events handled by the given method: its parameter type, or, for
+	 * {@link Subscribe#batch() batch} handlers, the type argument of its List parameter.
+	 *
+	 * @throws IllegalArgumentException If the method is a batch handler whose parameter is not a List of a known class.
+	 */
+	static Class<?> getEventType(Method method) {
+		Class<?> param = method.getParameterTypes()[0];
+		Subscribe subscribe = method.getAnnotation(Subscribe.class);
+		if (subscribe == null || !subscribe.batch()) return param;
+
+		if (param.isAssignableFrom(List.class)) {
+			Type type = method.getGenericParameterTypes()[0];
+			if (type instanceof ParameterizedType) {
+				Type arg = ((ParameterizedType) type).getActualTypeArguments()[0];
+				if (arg instanceof WildcardType) arg = ((WildcardType) arg).getUpperBounds()[0];
+				if (arg instanceof ParameterizedType) arg = ((ParameterizedType) arg).getRawType();
+				if (arg instanceof Class) return (Class<?>) arg;
+			}
+		}
+		throw new IllegalArgumentException("Method " + method + " is a batch event-handler, but its argument is not a List of events of a known class");
+	}
+
+	/**
+	 * Returns a method handle of type {@code (Object)void} calling {@code handler} on {@code listener},
+	 * or of type {@code (Object, Object)void} taking the listener first if {@code listener} is {@code null},
+	 * or {@code null} if it cannot be created.
+	 */
+	private static MethodHandle createInvoker(Object listener, Method handler) {
+		try {
+			MethodHandle mh;
+			try {
+				mh = MethodHandles.publicLookup().unreflect(handler);
+			} catch (IllegalAccessException e) { // Public method of a non-public class
+				handler.setAccessible(true);
+				mh = MethodHandles.lookup().unreflect(handler);
+			}
+			if (Modifier.isStatic(handler.getModifiers())) {
+				mh = mh.asType(INVOKER_TYPE);
+				return listener == null ? MethodHandles.dropArguments(mh, 0, Object.class) : mh;
+			}
+			return listener == null ? mh.asType(WEAK_INVOKER_TYPE) : mh.bindTo(listener).asType(INVOKER_TYPE);
+		} catch (IllegalAccessException | SecurityException | IllegalArgumentException | ClassCastException e) {
+			return null;
+		}
 	}
 
 	/**
 	 * Handles the event, calling the handler method in the listener object.
+	 * For {@link Subscribe#batch() batch} handlers, the event must be a List of events.
+	 * If the listener is referenced weakly, and has been garbage collected, this does nothing.
 	 *
 	 * @param event The event to handle.
 	 * @throws EventException Thrown if the handling threw a Throwable, other than an {@link Error}.
+	 *                        Its cause is an {@link InvocationTargetException} wrapping that Throwable.
 	 * @throws Error          If the method is no longer accessible, or if the arguments don't match, or if the handling method threw it.
 	 */
 	public void handle(Object event) throws EventException {
+		Object listener = this.listener;
+		if (reference != null) {
+			listener = reference.get();
+			if (listener == null) return; // Garbage collected
+		}
+		if (invoker == null && index == null) {
+			handleReflectively(listener, event);
+			return;
+		}
+		if (!argumentType.isInstance(event)) throw new Error("Method " + handler + " rejected event " + event);
+		try {
+			if (index != null) index.invoke(position, listener, event);
+			else if (reference != null) invoker.invokeExact(listener, event);
+			else invoker.invokeExact(event);
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable t) {
+			// Wrapped as Method.invoke does, so the cause is the same whichever way the method was called
+			throw new EventException(this, event, new InvocationTargetException(t));
+		}
+	}
+
+	private void handleReflectively(Object listener, Object event) throws EventException {
 		try {
 			this.handler.invoke(listener, event);
 		} catch (IllegalAccessException e) {
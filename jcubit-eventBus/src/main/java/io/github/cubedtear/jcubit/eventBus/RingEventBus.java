@@ -0,0 +1,398 @@
+/*
+ * Copyright 2014 Aritz Lopez
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.github.cubedtear.jcubit.eventBus;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Primitives;
+import io.github.cubedtear.jcubit.util.API;
+import io.github.cubedtear.jcubit.util.NotNull;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An event bus for a single, high-rate, event type, which delivers the events without allocating any object.
+ * <p>
+ * The events are stored in a ring of preallocated, mutable, slots. To post an event, a producer claims the next slot
+ * with {@link RingEventBus#next()}, fills it, and publishes it with {@link RingEventBus#publish(long)}
+ * (or does all of it with {@link RingEventBus#publish(EventTranslator)}). Any number of threads may post at the same time.
+ * <p>
+ * Each listener, registered before the bus is {@link RingEventBus#start() started}, gets its own thread, which calls its
+ * {@link Subscribe} methods for every published event, in order, processing all the available events in a batch.
+ * {@link Subscribe#batch() Batch} handlers are not supported, as the slots are reused, and {@link Coalescable} events
+ * are not coalesced: every published event is delivered.
+ * Producers wait when the ring is full, until the slowest listener has handled the oldest event.
+ * <p>
+ * <b>Note: the slots are reused, and all listeners read them at the same time. Handlers must not modify the events,
+ * or keep references to them after returning.</b>
+ * If a handler throws an exception, or an {@link Error}, it is posted as an {@link EventException} in the
+ * {@link RingEventBus#getExceptionBus() exception bus}.
+ *
+ * @param <E> The type of the events.
+ * @author Aritz Lopez
+ */
+public class RingEventBus<E> {
+
+	/**
+	 * How the listener threads wait for new events.
+	 */
+	public enum WaitStrategy {
+		/**
+		 * Spin in a loop. Lowest latency, but uses a whole core per listener, even when there are no events.
+		 */
+		BUSY_SPIN {
+			@Override
+			int idle(int counter) {
+				return counter + 1;
+			}
+		},
+		/**
+		 * Spin for a while, then yield the thread between checks.
+		 */
+		YIELD {
+			@Override
+			int idle(int counter) {
+				if (counter >= SPIN_TRIES) Thread.yield();
+				return counter + 1;
+			}
+		},
+		/**
+		 * Spin and yield for a while, then park the thread for short periods between checks. Highest latency, but
+		 * uses almost no CPU when there are no events.
+		 */
+		PARK {
+			@Override
+			int idle(int counter) {
+				if (counter >= 2 * SPIN_TRIES) LockSupport.parkNanos(PARK_NANOS);
+				else if (counter >= SPIN_TRIES) Thread.yield();
+				return counter + 1;
+			}
+		};
+
+		private static final int SPIN_TRIES = 100;
+		private static final long PARK_NANOS = 100_000;
+
+		/**
+		 * Waits a bit, after {@code counter} checks without new events.
+		 *
+		 * @return the new counter.
+		 */
+		abstract int idle(int counter);
+	}
+
+	/**
+	 * Fills a slot with the data of an event.
+	 *
+	 * @param <E> The type of the events.
+	 */
+	public interface EventTranslator<E> {
+		/**
+		 * Fills the slot with the data of the event to publish.
+		 *
+		 * @param slot     The slot, which contains a previous event.
+		 * @param sequence The sequence number of the event.
+		 */
+		void translateTo(E slot, long sequence);
+	}
+
+	private final Class<E> eventType;
+	private final Object[] entries;
+	private final int mask;
+	private final int indexShift;
+	/**
+	 * The lap (sequence / size) in which each slot was last published.
+	 */
+	private final AtomicIntegerArray published;
+	private final WaitStrategy waitStrategy;
+	private final ThreadFactory threadFactory;
+	private final EventBus exceptionBus;
+
+	/**
+	 * Added to the cursor by {@link RingEventBus#shutdown()}, so that no more slots can be claimed.
+	 * Far above any sequence number that can be reached.
+	 */
+	private static final long CLOSED = 1L << 62;
+
+	/**
+	 * The highest claimed sequence number, plus {@link RingEventBus#CLOSED} once the bus is shut down.
+	 */
+	private final Sequence cursor = new Sequence(-1);
+	private final Sequence gatingCache = new Sequence(-1);
+	private final List<Processor> processors = Lists.newArrayList();
+	private volatile Sequence[] gatingSequences;
+	private volatile boolean running;
+
+	/**
+	 * Creates a RingEventBus, whose listeners wait for events with the {@link WaitStrategy#PARK} strategy.
+	 *
+	 * @param eventType The type of the events.
+	 * @param factory   Creates the objects stored in each slot.
+	 * @param size      The number of slots. Must be a power of two.
+	 */
+	public RingEventBus(@NotNull Class<E> eventType, @NotNull Supplier<? extends E> factory, int size) {
+		this(eventType, factory, size, WaitStrategy.PARK, Executors.defaultThreadFactory());
+	}
+
+	/**
+	 * Creates a RingEventBus.
+	 *
+	 * @param eventType     The type of the events.
+	 * @param factory       Creates the objects stored in each slot.
+	 * @param size          The number of slots. Must be a power of two.
+	 * @param waitStrategy  How the listener threads wait for new events.
+	 * @param threadFactory Creates the thread of each listener.
+	 */
+	public RingEventBus(@NotNull Class<E> eventType, @NotNull Supplier<? extends E> factory, int size,
+						@NotNull WaitStrategy waitStrategy, @NotNull ThreadFactory threadFactory) {
+		Preconditions.checkArgument(size > 0 && Integer.bitCount(size) == 1, "Size must be a power of two: %s", size);
+		this.eventType = Preconditions.checkNotNull(eventType);
+		this.waitStrategy = Preconditions.checkNotNull(waitStrategy);
+		this.threadFactory = Preconditions.checkNotNull(threadFactory);
+		this.entries = new Object[size];
+		for (int i = 0; i < size; i++) this.entries[i] = Preconditions.checkNotNull(factory.get(), "Null event slot");
+		this.mask = size - 1;
+		this.indexShift = Integer.numberOfTrailingZeros(size);
+		this.published = new AtomicIntegerArray(size);
+		for (int i = 0; i < size; i++) this.published.set(i, -1);
+		this.exceptionBus = new EventBus(eventType.getSimpleName() + " exceptions");
+	}
+
+	/**
+	 * Registers the object as a listener of this bus, for all methods of its class or superclasses that have the
+	 * {@link Subscribe} annotation and accept the type of the events.
+	 *
+	 * @param listener The object to register as a listener.
+	 * @throws IllegalStateException    If the bus was already started.
+	 * @throws IllegalArgumentException If the object has no method to handle the events.
+	 */
+	public synchronized void register(@NotNull Object listener) {
+		Preconditions.checkState(gatingSequences == null, "Listeners must be registered before starting the bus");
+		List<EventHandler> handlers = Lists.newArrayList();
+		for (EventBus.Subscriber subscriber : EventBus.getSubscribers(listener.getClass())) {
+			Method m = subscriber.method;
+			if (m.getAnnotation(Subscribe.class).batch()) continue;
+			if (Primitives.wrap(m.getParameterTypes()[0]).isAssignableFrom(eventType)) handlers.add(subscriber.newHandler(listener, null, null));
+		}
+		Preconditions.checkArgument(!handlers.isEmpty(), "%s has no method to handle %s", listener, eventType);
+		processors.add(new Processor(handlers.toArray(new EventHandler[handlers.size()])));
+	}
+
+	/**
+	 * Starts the thread of each listener. Events can only be posted after the bus has started.
+	 *
+	 * @throws IllegalStateException If the bus was already started.
+	 */
+	public synchronized void start() {
+		Preconditions.checkState(gatingSequences == null, "The bus was already started");
+		Sequence[] sequences = new Sequence[processors.size()];
+		for (int i = 0; i < sequences.length; i++) {
+			sequences[i] = processors.get(i).sequence;
+			processors.get(i).thread = threadFactory.newThread(processors.get(i));
+		}
+		running = true;
+		gatingSequences = sequences; // Publishes the threads to the producers
+		for (Processor processor : processors) processor.thread.start();
+	}
+
+	/**
+	 * Stops accepting events, waits until every claimed slot has been published and handled by all listeners,
+	 * and then stops their threads.
+	 *
+	 * @throws InterruptedException If the current thread is interrupted while waiting.
+	 */
+	@API
+	public synchronized void shutdown() throws InterruptedException {
+		Sequence[] sequences = gatingSequences;
+		if (sequences == null || !running) return;
+		long last;
+		do {
+			last = cursor.get();
+		} while (!cursor.compareAndSet(last, last + CLOSED)); // Claims from now on fail, so last is final
+		for (Processor processor : processors) {
+			while (processor.sequence.get() < last && processor.thread.isAlive()) Thread.sleep(1);
+		}
+		running = false;
+		for (Processor processor : processors) processor.thread.join();
+	}
+
+	/**
+	 * Returns the bus where the exceptions thrown by the handlers are posted, as {@link EventException EventExceptions}.
+	 *
+	 * @return the exception bus.
+	 */
+	@API
+	public EventBus getExceptionBus() {
+		return exceptionBus;
+	}
+
+	/**
+	 * Claims the next slot, waiting while the ring is full.
+	 * It must be {@link RingEventBus#publish(long) published} afterwards, even if filling it fails, as the listeners
+	 * wait for each slot in order.
+	 *
+	 * @return the sequence number of the claimed slot.
+	 * @throws IllegalStateException If the bus has not been started, or has been shut down, or if the ring is full
+	 *                               and the thread of a listener has died.
+	 */
+	public long next() {
+		Sequence[] sequences = gatingSequences;
+		Preconditions.checkState(sequences != null, "The bus has not been started");
+		while (true) {
+			long current = cursor.get();
+			Preconditions.checkState(current < CLOSED / 2, "The bus has been shut down");
+			long next = current + 1;
+			long wrapPoint = next - entries.length;
+			if (wrapPoint > gatingCache.get()) {
+				long gating = minimumSequence(sequences, current);
+				if (wrapPoint > gating) {
+					checkProcessors();
+					LockSupport.parkNanos(1); // The ring is full, wait for the slowest listener
+					continue;
+				}
+				gatingCache.set(gating);
+			}
+			if (cursor.compareAndSet(current, next)) return next;
+		}
+	}
+
+	/**
+	 * Returns the event in the slot of the given sequence number.
+	 *
+	 * @param sequence A sequence number returned by {@link RingEventBus#next()}.
+	 * @return the event in the slot.
+	 */
+	@SuppressWarnings("unchecked")
+	public E get(long sequence) {
+		return (E) entries[(int) sequence & mask];
+	}
+
+	/**
+	 * Makes the event in the slot of the given sequence number available to the listeners.
+	 *
+	 * @param sequence A sequence number returned by {@link RingEventBus#next()}.
+	 */
+	public void publish(long sequence) {
+		published.lazySet((int) sequence & mask, (int) (sequence >>> indexShift));
+	}
+
+	/**
+	 * Claims the next slot, fills it with the translator, and publishes it.
+	 *
+	 * @param translator Fills the slot with the data of the event.
+	 * @return the sequence number of the event.
+	 */
+	public long publish(@NotNull EventTranslator<? super E> translator) {
+		long sequence = next();
+		try {
+			translator.translateTo(get(sequence), sequence);
+		} finally {
+			publish(sequence);
+		}
+		return sequence;
+	}
+
+	/**
+	 * Checks that the listeners will keep handling events, so that a producer waiting for space does not wait forever.
+	 *
+	 * @throws IllegalStateException If the thread of a listener has died.
+	 */
+	private void checkProcessors() {
+		for (Processor processor : processors) {
+			Preconditions.checkState(processor.thread.getState() != Thread.State.TERMINATED, "The thread of a listener has died: %s", processor.thread);
+		}
+	}
+
+	private boolean isPublished(long sequence) {
+		return published.get((int) sequence & mask) == (int) (sequence >>> indexShift);
+	}
+
+	/**
+	 * Returns the highest sequence number, between {@code low - 1} and {@code high}, up to which all slots are published.
+	 */
+	private long highestPublished(long low, long high) {
+		for (long sequence = low; sequence <= high; sequence++) {
+			if (!isPublished(sequence)) return sequence - 1;
+		}
+		return high;
+	}
+
+	private static long minimumSequence(Sequence[] sequences, long minimum) {
+		for (Sequence sequence : sequences) minimum = Math.min(minimum, sequence.get());
+		return minimum;
+	}
+
+	/**
+	 * Delivers the events to the handlers of a single listener, in its own thread.
+	 */
+	private final class Processor implements Runnable {
+		final EventHandler[] handlers;
+		final Sequence sequence = new Sequence(-1);
+		Thread thread;
+
+		Processor(EventHandler[] handlers) {
+			this.handlers = handlers;
+		}
+
+		@Override
+		public void run() {
+			long next = sequence.get() + 1;
+			int idle = 0;
+			while (running) {
+				long claimed = cursor.get();
+				long available = highestPublished(next, claimed < CLOSED / 2 ? claimed : claimed - CLOSED);
+				if (available < next) {
+					idle = waitStrategy.idle(idle);
+					continue;
+				}
+				idle = 0;
+				for (; next <= available; next++) {
+					Object event = entries[(int) next & mask];
+					for (EventHandler handler : handlers) {
+						try {
+							handler.handle(event);
+						} catch (EventException e) {
+							exceptionBus.post(e);
+						} catch (Throwable t) { // Don't let this thread die, as producers would wait for it forever
+							exceptionBus.post(new EventException(handler, event, new InvocationTargetException(t)));
+						}
+					}
+				}
+				sequence.lazySet(available);
+			}
+		}
+	}
+
+	/**
+	 * A sequence number, padded to avoid sharing a cache line with other frequently written fields.
+	 */
+	@SuppressWarnings("unused")
+	private static final class Sequence extends AtomicLong {
+		long p1, p2, p3, p4, p5, p6, p7;
+
+		Sequence(long initialValue) {
+			super(initialValue);
+		}
+	}
+}
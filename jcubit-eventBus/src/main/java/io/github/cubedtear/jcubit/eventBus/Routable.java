@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014 Aritz Lopez
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.github.cubedtear.jcubit.eventBus;
+
+import io.github.cubedtear.jcubit.util.Nullable;
+
+/**
+ * Interface for events that are only relevant to some listeners, like changes of a single entity.
+ * <p>
+ * Listeners registered with {@link EventBus#register(Object, Object)} only receive the Routable events whose routing
+ * key is equal to theirs. The bus finds them by hash, so posting such an event does not depend on the number of
+ * listeners registered with other keys.
+ *
+ * @author Aritz Lopez
+ */
+public interface Routable {
+
+	/**
+	 * Returns the key that identifies which listeners should receive this event, e.g. the id of the entity that changed.
+	 * It must be consistent with {@link Object#equals(Object)} and {@link Object#hashCode()}.
+	 *
+	 * @return the routing key, or {@code null} if this event must only be delivered to the listeners registered without one.
+	 */
+	@Nullable
+	Object getRoutingKey();
+}
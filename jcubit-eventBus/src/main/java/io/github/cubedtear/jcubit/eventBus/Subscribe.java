@@ -24,10 +24,21 @@ import java.lang.annotation.Target;
 /**
  * Annotation all event-handling methods must have in order to be treated as such.
  * If a method does not have this annotation, it will be ignored by the {@link EventBus}.
+ * <p>
+ * A batch handler takes a {@code List} of events instead, e.g. {@code @Subscribe(batch = true) void on(List<MyEvent> events)},
+ * and receives all the events of that type posted together with {@link EventBus#postAll(java.util.Collection)} in a single call.
+ * Events posted one by one are received as a List of one event.
  * @author Aritz Lopez
  * @see EventBus
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.METHOD)
 public @interface Subscribe {
+
+	/**
+	 * Whether the method handles a {@code List} of events, instead of a single one.
+	 *
+	 * @return {@code true} if the method is a batch handler.
+	 */
+	boolean batch() default false;
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Aritz Lopez
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.github.cubedtear.jcubit.eventBus;
+
+import io.github.cubedtear.jcubit.util.Nullable;
+
+import java.lang.reflect.Method;
+
+/**
+ * Index of the public {@link Subscribe} methods declared in a listener class, generated at compile time by the
+ * annotation processor in jcubit-eventBus-processor, which also calls them directly, without reflection.
+ * <p>
+ * The index of a class is named as the binary name of the class, followed by {@link SubscriberIndex#SUFFIX}.
+ * When registering a listener, the {@link EventBus} uses the index of each class in its hierarchy, if there is one,
+ * and looks for the {@link Subscribe} methods with reflection otherwise.
+ *
+ * @author Aritz Lopez
+ */
+public abstract class SubscriberIndex {
+
+	/**
+	 * Suffix appended to the binary name of a listener class to get the name of its index.
+	 */
+	public static final String SUFFIX = "_SubscriberIndex";
+
+	private final Class<?> listenerClass;
+	private final String[] names;
+	private final Class<?>[] parameterTypes;
+
+	/**
+	 * Creates the index of a listener class.
+	 *
+	 * @param listenerClass  The listener class.
+	 * @param names          The name of each subscriber method.
+	 * @param parameterTypes The parameter type of each subscriber method.
+	 */
+	protected SubscriberIndex(Class<?> listenerClass, String[] names, Class<?>[] parameterTypes) {
+		if (names.length != parameterTypes.length) throw new IllegalArgumentException("Each method must have a name and a parameter type");
+		this.listenerClass = listenerClass;
+		this.names = names;
+		this.parameterTypes = parameterTypes;
+	}
+
+	/**
+	 * Calls a subscriber method.
+	 *
+	 * @param method   The position of the method in this index.
+	 * @param listener The listener, an instance of the listener class.
+	 * @param event    The event to handle, an instance of the parameter type of the method.
+	 * @throws Throwable Anything thrown by the method.
+	 */
+	public abstract void invoke(int method, Object listener, Object event) throws Throwable;
+
+	/**
+	 * Returns the number of subscriber methods in this index.
+	 */
+	int size() {
+		return names.length;
+	}
+
+	/**
+	 * Returns the subscriber method in the given position.
+	 *
+	 * @throws IllegalStateException If the method no longer exists, because the index is outdated.
+	 */
+	Method getMethod(int method) {
+		try {
+			return listenerClass.getMethod(names[method], parameterTypes[method]);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException("The subscriber index of " + listenerClass + " is outdated", e);
+		}
+	}
+
+	/**
+	 * Returns the index of the given class, or {@code null} if it has none.
+	 */
+	@Nullable
+	static SubscriberIndex find(Class<?> listenerClass) {
+		try {
+			Class<?> indexClass = Class.forName(listenerClass.getName() + SUFFIX, true, listenerClass.getClassLoader());
+			if (!SubscriberIndex.class.isAssignableFrom(indexClass)) return null;
+			SubscriberIndex index = (SubscriberIndex) indexClass.newInstance();
+			return index.listenerClass == listenerClass ? index : null;
+		} catch (ReflectiveOperationException | LinkageError | SecurityException e) {
+			return null;
+		}
+	}
+}
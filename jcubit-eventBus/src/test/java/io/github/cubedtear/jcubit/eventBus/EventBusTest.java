@@ -16,10 +16,29 @@
 
 package io.github.cubedtear.jcubit.eventBus;
 
+import com.google.common.base.Supplier;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Aritz Lopez
@@ -42,6 +61,537 @@ public class EventBusTest {
 		Assert.assertEquals("Messages are not equal", message, returnMessage);
 	}
 
+	@Test
+	public void testHandlerExceptions() throws Exception {
+		EventBus bus = new EventBus();
+		HiddenListener listener = new HiddenListener();
+		bus.register(listener);
+
+		bus.post(1);
+		Assert.assertEquals(1, listener.count);
+
+		bus.post("fail");
+		Assert.assertNotNull("Exception was not posted", listener.exception);
+		Assert.assertTrue(listener.exception.getCause() instanceof InvocationTargetException);
+		Assert.assertTrue(listener.exception.getCause().getCause() instanceof IllegalStateException);
+		Assert.assertEquals("fail", listener.exception.getEvent());
+
+		bus.post(2.0);
+		Assert.assertEquals(2.0, listener.dead.getEvent());
+	}
+
+	@Test
+	public void testDispatchTable() throws Exception {
+		EventBus bus = new EventBus();
+		HiddenListener listener = new SubListener();
+		bus.register(listener);
+
+		bus.post(3);
+		Assert.assertEquals("Inherited handler called more than once", 3, listener.count);
+		Assert.assertNull(listener.dead);
+
+		bus.post(new BaseEvent("first"));
+		Assert.assertEquals("first", ((BaseEvent) listener.dead.getEvent()).message);
+
+		bus.register(this);
+		bus.post(new BaseEvent("second"));
+		Assert.assertEquals("Dispatch table not updated on register", "second", returnMessage);
+
+		try {
+			bus.register(new Object() {
+				@Subscribe
+				public void handle(Object a, Object b) {
+				}
+			});
+			Assert.fail("Two argument handler registered");
+		} catch (IllegalArgumentException ignored) {
+		}
+	}
+
+	@Test
+	public void testConcurrentRegistration() throws Exception {
+		final EventBus bus = new EventBus();
+		final AtomicInteger handled = new AtomicInteger();
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		final CountDownLatch done = new CountDownLatch(1);
+		Object counter = new Object() {
+			@Subscribe
+			public void handle(Long event) {
+				handled.incrementAndGet();
+			}
+		};
+		bus.register(counter);
+
+		Thread[] posters = new Thread[4];
+		for (int i = 0; i < posters.length; i++) {
+			posters[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (done.getCount() > 0) bus.post(1L);
+					} catch (Throwable t) {
+						error.set(t);
+					}
+				}
+			});
+			posters[i].start();
+		}
+		for (int i = 0; i < 2000; i++) {
+			bus.register(new HiddenListener());
+			if (i % 2 == 0) bus.post(i);
+		}
+		done.countDown();
+		for (Thread poster : posters) poster.join();
+
+		Assert.assertNull("Posting failed while registering", error.get());
+		Assert.assertTrue(handled.get() > 0);
+		int before = handled.get();
+		bus.post(1L);
+		Assert.assertEquals(before + 1, handled.get());
+	}
+
+	@Test
+	public void testAsyncEventBus() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			AsyncEventBus bus = new AsyncEventBus(executor);
+			OrderListener[] listeners = new OrderListener[8];
+			for (int i = 0; i < listeners.length; i++) {
+				listeners[i] = new OrderListener(5000);
+				bus.register(listeners[i]);
+			}
+			for (int i = 0; i < 5000; i++) bus.post(i);
+			for (OrderListener listener : listeners) {
+				Assert.assertTrue("Events not delivered", listener.done.await(10, TimeUnit.SECONDS));
+				Assert.assertEquals(0, listener.outOfOrder);
+				Assert.assertFalse("Listener called concurrently", listener.concurrent);
+			}
+			Assert.assertEquals(0, bus.getDroppedCount());
+
+			final CountDownLatch release = new CountDownLatch(1);
+			final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+			final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+			Object blocked = new Object() {
+				@Subscribe
+				public void handle(Integer event) throws InterruptedException {
+					threads.add(Thread.currentThread());
+					received.add(event);
+					release.await();
+				}
+			};
+			AsyncEventBus dropping = new AsyncEventBus("Dropping", executor, 2, AsyncEventBus.OverflowPolicy.DROP_OLDEST);
+			dropping.register(blocked);
+			dropping.post(0);
+			while (received.isEmpty()) Thread.sleep(1);
+			for (int i = 1; i <= 5; i++) dropping.post(i);
+			Assert.assertEquals(3, dropping.getDroppedCount());
+			release.countDown();
+			long end = System.currentTimeMillis() + 10000;
+			while (received.size() < 3 && System.currentTimeMillis() < end) Thread.sleep(1);
+			Assert.assertEquals(Arrays.asList(0, 4, 5), received);
+
+			final CountDownLatch hold = new CountDownLatch(1);
+			received.clear();
+			threads.clear();
+			AsyncEventBus callerRuns = new AsyncEventBus("CallerRuns", executor, 1, AsyncEventBus.OverflowPolicy.CALLER_RUNS);
+			callerRuns.register(new Object() {
+				@Subscribe
+				public void handle(Integer event) throws InterruptedException {
+					received.add(event);
+					if (event == 0) hold.await();
+					else threads.add(Thread.currentThread());
+				}
+			});
+			callerRuns.post(0);
+			while (received.isEmpty()) Thread.sleep(1);
+			callerRuns.post(1);
+			callerRuns.post(2);
+			Assert.assertTrue("Overflow not delivered in the caller thread", threads.contains(Thread.currentThread()));
+			hold.countDown();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testAsyncEventBusRejection() throws Exception {
+		final List<Runnable> tasks = new ArrayList<>();
+		final AtomicBoolean rejecting = new AtomicBoolean();
+		AsyncEventBus bus = new AsyncEventBus("Rejecting", new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				if (rejecting.get()) throw new RejectedExecutionException();
+				tasks.add(command);
+			}
+		}, AsyncEventBus.DEFAULT_CAPACITY, AsyncEventBus.OverflowPolicy.BLOCK);
+		final Error error = new Error("Handler failure");
+		final List<Integer> received = new ArrayList<>();
+		bus.register(new Object() {
+			@Subscribe
+			public void handle(Integer event) {
+				if (event < 0) throw error;
+				received.add(event);
+			}
+		});
+
+		bus.post(-1);
+		bus.post(1);
+		Assert.assertEquals(1, tasks.size());
+		rejecting.set(true);
+		try {
+			tasks.remove(0).run();
+			Assert.fail("Error not propagated");
+		} catch (Error e) {
+			Assert.assertSame(error, e);
+		}
+
+		rejecting.set(false);
+		bus.post(2);
+		Assert.assertEquals("Queue not scheduled again", 1, tasks.size());
+		tasks.remove(0).run();
+		Assert.assertEquals(Arrays.asList(1, 2), received);
+
+		AsyncEventBus small = new AsyncEventBus("Small", new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException();
+			}
+		}, 4, AsyncEventBus.OverflowPolicy.BLOCK);
+		small.register(new HiddenListener());
+		for (int i = 0; i <= 4; i++) {
+			try {
+				small.post(i);
+				Assert.fail("Rejection not thrown");
+			} catch (RejectedExecutionException ignored) {
+			}
+		}
+	}
+
+	@Test
+	public void testRingEventBus() throws Exception {
+		final RingEventBus<Sample> bus = new RingEventBus<>(Sample.class, new Supplier<Sample>() {
+			@Override
+			public Sample get() {
+				return new Sample();
+			}
+		}, 64, RingEventBus.WaitStrategy.YIELD, Executors.defaultThreadFactory());
+		SampleListener first = new SampleListener(), second = new SampleListener();
+		bus.register(first);
+		bus.register(second);
+		try {
+			bus.register(new Object());
+			Assert.fail("Listener without handlers registered");
+		} catch (IllegalArgumentException ignored) {
+		}
+		bus.start();
+
+		final int producers = 3, events = 20000;
+		Thread[] threads = new Thread[producers];
+		for (int i = 0; i < producers; i++) {
+			final int producer = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < events; j++) {
+						long sequence = bus.next();
+						Sample sample = bus.get(sequence);
+						sample.producer = producer;
+						sample.value = j;
+						bus.publish(sequence);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) thread.join();
+		bus.shutdown();
+
+		for (SampleListener listener : new SampleListener[]{first, second}) {
+			Assert.assertEquals(producers * events, listener.count);
+			Assert.assertEquals(0, listener.outOfOrder);
+			Assert.assertEquals(producers * ((long) events * (events - 1) / 2), listener.sum);
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testRingEventBusShutdownRace() throws Exception {
+		for (int round = 0; round < 20; round++) {
+			final RingEventBus<Sample> bus = new RingEventBus<>(Sample.class, new Supplier<Sample>() {
+				@Override
+				public Sample get() {
+					return new Sample();
+				}
+			}, 16, RingEventBus.WaitStrategy.YIELD, Executors.defaultThreadFactory());
+			SampleListener listener = new SampleListener();
+			bus.register(listener);
+			bus.start();
+
+			final AtomicInteger published = new AtomicInteger();
+			Thread[] threads = new Thread[3];
+			for (int i = 0; i < threads.length; i++) {
+				final int producer = i;
+				threads[i] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						for (int j = 0; ; j++) {
+							long sequence;
+							try {
+								sequence = bus.next();
+							} catch (IllegalStateException e) {
+								return; // Shut down
+							}
+							bus.get(sequence).producer = producer;
+							bus.get(sequence).value = j;
+							bus.publish(sequence);
+							published.incrementAndGet();
+						}
+					}
+				});
+				threads[i].start();
+			}
+			Thread.sleep(round % 5);
+			bus.shutdown();
+			for (Thread thread : threads) thread.join();
+			Assert.assertEquals("Published events not handled", published.get(), listener.count);
+			Assert.assertEquals(0, listener.outOfOrder);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testRingEventBusFailures() throws Exception {
+		Supplier<Sample> factory = new Supplier<Sample>() {
+			@Override
+			public Sample get() {
+				return new Sample();
+			}
+		};
+		final Error error = new Error("Handler failure");
+		final List<EventException> exceptions = Collections.synchronizedList(new ArrayList<EventException>());
+		RingEventBus<Sample> bus = new RingEventBus<>(Sample.class, factory, 4);
+		SampleListener listener = new SampleListener() {
+			@Override
+			public void handle(Sample sample) {
+				super.handle(sample);
+				if (sample.value % 2 == 0) throw error;
+			}
+		};
+		bus.register(listener);
+		bus.getExceptionBus().register(new Object() {
+			@Subscribe
+			public void handle(EventException e) {
+				exceptions.add(e);
+			}
+		});
+		bus.start();
+		for (int i = 0; i < 16; i++) {
+			long sequence = bus.next();
+			bus.get(sequence).value = i;
+			bus.publish(sequence);
+		}
+		bus.shutdown();
+		Assert.assertEquals(16, listener.count);
+		Assert.assertEquals(8, exceptions.size());
+		Assert.assertTrue(exceptions.get(0).getCause() instanceof InvocationTargetException);
+		Assert.assertSame(error, exceptions.get(0).getCause().getCause());
+		try {
+			bus.next();
+			Assert.fail("Slot claimed after shutdown");
+		} catch (IllegalStateException ignored) {
+		}
+
+		RingEventBus<Sample> dying = new RingEventBus<>(Sample.class, factory, 4, RingEventBus.WaitStrategy.YIELD, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r);
+				thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+					@Override
+					public void uncaughtException(Thread t, Throwable e) {
+					}
+				});
+				return thread;
+			}
+		});
+		dying.register(new SampleListener());
+		dying.getExceptionBus().register(new Object() {
+			@Subscribe
+			public void handle(EventException e) {
+				throw error; // Kills the listener thread
+			}
+		});
+		dying.register(new Object() {
+			@Subscribe
+			public void handle(Sample sample) {
+				throw new IllegalStateException();
+			}
+		});
+		dying.start();
+		try {
+			for (int i = 0; i < 16; i++) dying.publish(dying.next());
+			Assert.fail("Producer did not notice the dead listener");
+		} catch (IllegalStateException ignored) {
+		}
+	}
+
+	@Test
+	public void testPostAll() throws Exception {
+		EventBus bus = new EventBus();
+		HiddenListener single = new HiddenListener();
+		BatchListener batch = new BatchListener();
+		bus.register(single);
+		bus.register(batch);
+
+		bus.postAll(Arrays.asList(1, 2, "fail", 3, 4.0));
+		Assert.assertEquals(6, single.count);
+		Assert.assertEquals(1, batch.batches.size());
+		Assert.assertEquals(Arrays.asList(1, 2, 3), batch.batches.get(0));
+		Assert.assertEquals("fail", single.exception.getEvent());
+		Assert.assertEquals(4.0, single.dead.getEvent());
+
+		bus.post(5);
+		Assert.assertEquals(Collections.singletonList(5), batch.batches.get(1));
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			AsyncEventBus async = new AsyncEventBus(executor);
+			BatchListener asyncBatch = new BatchListener();
+			async.register(asyncBatch);
+			async.postAll(Arrays.asList(1, 2, 3));
+			executor.shutdown();
+			Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+			Assert.assertEquals(Collections.singletonList(Arrays.asList(1, 2, 3)), asyncBatch.batches);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		try {
+			bus.register(new Object() {
+				@Subscribe(batch = true)
+				public void handle(Integer event) {
+				}
+			});
+			Assert.fail("Batch handler without a List registered");
+		} catch (IllegalArgumentException ignored) {
+		}
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			AsyncEventBus bus = new AsyncEventBus(executor);
+			final CountDownLatch release = new CountDownLatch(1);
+			final List<Move> received = Collections.synchronizedList(new ArrayList<Move>());
+			bus.register(new Object() {
+				@Subscribe
+				public void handle(Move move) throws InterruptedException {
+					received.add(move);
+					release.await();
+				}
+			});
+			bus.post(new Move("a", 0));
+			while (received.isEmpty()) Thread.sleep(1);
+			for (int i = 1; i <= 100; i++) {
+				bus.post(new Move("a", i));
+				bus.post(new Move("b", i));
+			}
+			bus.post(new Move(null, -1));
+			release.countDown();
+			executor.shutdown();
+			Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+			Assert.assertEquals(198, bus.getCoalescedCount());
+			Assert.assertEquals(4, received.size());
+			Assert.assertEquals(100, received.get(1).position);
+			Assert.assertEquals("a", received.get(1).id);
+			Assert.assertEquals(100, received.get(2).position);
+			Assert.assertEquals("b", received.get(2).id);
+			Assert.assertEquals(-1, received.get(3).position);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testRouting() throws Exception {
+		EventBus bus = new EventBus();
+		EntityListener[] listeners = new EntityListener[1000];
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i] = new EntityListener();
+			bus.register(listeners[i], i);
+		}
+		EntityListener all = new EntityListener();
+		bus.register(all);
+
+		bus.post(new EntityChanged(5));
+		bus.post(new EntityChanged(5));
+		bus.post(new EntityChanged(7));
+		bus.post(new EntityChanged(null));
+		bus.postAll(Arrays.asList(new EntityChanged(7), new EntityChanged(9), new EntityChanged(7)));
+		for (int i = 0; i < listeners.length; i++) {
+			int expected = i == 5 ? 2 : i == 7 ? 3 : i == 9 ? 1 : 0;
+			Assert.assertEquals("Listener " + i, expected, listeners[i].changes);
+		}
+		Assert.assertEquals(7, all.changes);
+
+		bus.post(1);
+		Assert.assertEquals("Events which are not Routable are not routed", 1, listeners[0].others);
+		Assert.assertEquals(1, listeners[999].others);
+	}
+
+	@Test
+	public void testSubscriberIndex() throws Exception {
+		EventBus bus = new EventBus();
+		IndexedListener listener = new IndexedListener();
+		bus.register(listener);
+		IndexedListener_SubscriberIndex.calls = 0;
+
+		bus.post(2);
+		bus.post("fail");
+		Assert.assertEquals(2, listener.count);
+		Assert.assertEquals("fail", listener.exception.getEvent());
+		Assert.assertEquals("Handler not called through the index", 1, IndexedListener_SubscriberIndex.calls);
+	}
+
+	@Test
+	public void testUnregisterAndWeakListeners() throws Exception {
+		EventBus bus = new EventBus();
+		HiddenListener first = new HiddenListener(), second = new HiddenListener();
+		bus.register(first);
+		bus.register(second);
+		bus.unregister(first);
+		bus.post(1);
+		Assert.assertEquals("Unregistered listener called", 0, first.count);
+		Assert.assertEquals(1, second.count);
+
+		HiddenListener weak = new HiddenListener();
+		bus.registerWeakly(weak);
+		bus.post(2);
+		Assert.assertEquals(2, weak.count);
+
+		final AtomicInteger collectedCalls = new AtomicInteger();
+		Object anonymous = new Object() {
+			@Subscribe
+			public void handle(Integer event) {
+				collectedCalls.incrementAndGet();
+			}
+		};
+		bus.registerWeakly(anonymous);
+		WeakReference<Object> reference = new WeakReference<>(anonymous);
+		anonymous = null;
+		for (int i = 0; i < 100 && reference.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		Assert.assertNull("Weakly registered listener was not collected", reference.get());
+		bus.post(3);
+		Assert.assertEquals(0, collectedCalls.get());
+		Assert.assertEquals(5, weak.count);
+
+		bus.unregister(weak);
+		bus.unregister(second);
+		Assert.assertEquals("Handlers left after unregistering every listener", new EventBus(), bus);
+	}
+
 	@Subscribe
 	public void handleEvent(BaseEvent event) {
 		this.returnMessage = event.message;
@@ -54,4 +604,153 @@ public class EventBusTest {
 			this.message = message;
 		}
 	}
+
+	private static class HiddenListener {
+		int count;
+		EventException exception;
+		DeadEvent dead;
+
+		@Subscribe
+		public void handleInteger(Integer event) {
+			count += event;
+		}
+
+		@Subscribe
+		public void handleString(String event) {
+			throw new IllegalStateException(event);
+		}
+
+		@Subscribe
+		public void handleException(EventException e) {
+			this.exception = e;
+		}
+
+		@Subscribe
+		public void handleDead(DeadEvent e) {
+			this.dead = e;
+		}
+	}
+
+	private static class SubListener extends HiddenListener {
+	}
+
+	private static class OrderListener {
+		final CountDownLatch done;
+		final AtomicInteger running = new AtomicInteger();
+		int last = -1, outOfOrder;
+		volatile boolean concurrent;
+
+		OrderListener(int events) {
+			this.done = new CountDownLatch(events);
+		}
+
+		@Subscribe
+		public void handle(Integer event) {
+			if (running.incrementAndGet() != 1) concurrent = true;
+			if (event != last + 1) outOfOrder++;
+			last = event;
+			running.decrementAndGet();
+			done.countDown();
+		}
+	}
+
+	private static class Sample {
+		int producer, value;
+	}
+
+	private static class SampleListener {
+		final int[] last = {-1, -1, -1};
+		int count, outOfOrder;
+		long sum;
+
+		@Subscribe
+		public void handle(Sample sample) {
+			if (sample.value != last[sample.producer] + 1) outOfOrder++;
+			last[sample.producer] = sample.value;
+			sum += sample.value;
+			count++;
+		}
+	}
+
+	private static class BatchListener {
+		final List<List<Integer>> batches = new ArrayList<>();
+
+		@Subscribe(batch = true)
+		public void handle(List<? extends Integer> events) {
+			batches.add(new ArrayList<>(events));
+		}
+	}
+
+	private static class Move implements Coalescable {
+		final String id;
+		final int position;
+
+		Move(String id, int position) {
+			this.id = id;
+			this.position = position;
+		}
+
+		@Override
+		public Object getCoalescingKey() {
+			return id;
+		}
+	}
+
+	private static class EntityChanged implements Routable {
+		final Integer id;
+
+		EntityChanged(Integer id) {
+			this.id = id;
+		}
+
+		@Override
+		public Object getRoutingKey() {
+			return id;
+		}
+	}
+
+	private static class EntityListener {
+		int changes, others;
+
+		@Subscribe
+		public void handle(EntityChanged event) {
+			changes++;
+		}
+
+		@Subscribe
+		public void handle(Integer event) {
+			others++;
+		}
+	}
+
+	public static class IndexedListener extends HiddenListener {
+		@Override
+		@Subscribe
+		public void handleInteger(Integer event) {
+			super.handleInteger(event);
+		}
+	}
+
+	/**
+	 * What the annotation processor generates for {@link IndexedListener}.
+	 */
+	public static final class IndexedListener_SubscriberIndex extends SubscriberIndex {
+		static int calls;
+
+		public IndexedListener_SubscriberIndex() {
+			super(IndexedListener.class, new String[]{"handleInteger"}, new Class<?>[]{Integer.class});
+		}
+
+		@Override
+		public void invoke(int method, Object listener, Object event) throws Throwable {
+			calls++;
+			switch (method) {
+				case 0:
+					((IndexedListener) listener).handleInteger((Integer) event);
+					return;
+				default:
+					throw new IllegalArgumentException("No such subscriber method: " + method);
+			}
+		}
+	}
 }